@@ -0,0 +1,95 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.BlockStepKernel;
+import net.nologin.meep.ca.core.PackedCells;
+import net.nologin.meep.ca.core.StepKernel;
+import net.nologin.meep.ca.core.WolframRuleTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-generation step throughput, in cell generations per second (the <code>cells</code> counter), of a
+ * {@link BlockStepKernel} per number of generations per pass, against the same number of single steps of the rule's
+ * {@link StepKernel} (as in {@link StepBenchmark#stepPacked}).  The point where the table stops fitting in the cache
+ * shows up as the block steps falling behind again; {@link WolframRuleTable#DEFAULT_BLOCK_GENERATIONS} should be
+ * below it.
+ * <br/><br/>
+ * Only rules with a generic kernel are worth a block kernel (see {@link WolframRuleTable#getBlockKernel(int)}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockStepBenchmark {
+
+    @Param({"30", "110"})
+    public int rule;
+
+    @Param({"2", "3", "4", "5", "6"})
+    public int generations;
+
+    // several tile strips at the smallest zoom
+    @Param({"65536"})
+    public int width;
+
+    private StepKernel kernel;
+    private BlockStepKernel blockKernel;
+    private long[] cur, next;
+
+    @Setup
+    public void setUp() {
+
+        kernel = WolframRuleTable.getKernel(rule);
+        blockKernel = WolframRuleTable.getBlockKernel(rule, generations);
+
+        cur = new long[PackedCells.wordsFor(width)];
+        next = new long[cur.length];
+
+        Random random = new Random(rule);
+        for (int i = 0; i < width; i++) {
+            if (random.nextBoolean()) {
+                PackedCells.set(cur, i);
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] stepBlock(StepBenchmark.Cells counter) {
+
+        PackedCells.step(blockKernel, cur, next, width);
+
+        long[] tmp = cur;
+        cur = next;
+        next = tmp;
+
+        counter.cells += (long) width * generations;
+        return cur;
+    }
+
+    @Benchmark
+    public long[] stepSingle(StepBenchmark.Cells counter) {
+
+        for (int g = 0; g < generations; g++) {
+            PackedCells.step(kernel, cur, next, width);
+
+            long[] tmp = cur;
+            cur = next;
+            next = tmp;
+        }
+
+        counter.cells += (long) width * generations;
+        return cur;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.ColumnStream;
+import net.nologin.meep.ca.core.GenerationCheckpoints;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ColumnStream} throughput, in MB/s: the <code>bytes</code> counter, as the output time unit is microseconds.
+ * Each operation reads a buffer of bits, from a stream of rule 30 starting at a shallow or deep generation, of the
+ * center column alone or a band of 64 columns around it (which costs hardly any more to step, so gives many more
+ * bytes per second).
+ * <br/><br/>
+ * Every iteration starts a new stream at the same generation, from checkpoints shared by all iterations, so only the
+ * first has to step its way down to a deep start.  Streams are unbounded, as the stream would be for a simulation
+ * that doesn't know how many bits it'll need.  Throughput falls as the stream goes deeper (every generation costs
+ * the width of the cone), so compare results of the same iteration time only.  The deep single column rates are
+ * too small for JMH to print in full, the JSON results have them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnStreamBenchmark {
+
+    @Param({"0", "100000"})
+    public long startGeneration;
+
+    @Param({"1", "64"})
+    public int numColumns;
+
+    private GenerationCheckpoints checkpoints;
+    private int[] columns;
+    private ColumnStream stream;
+
+    private final long[] buffer = new long[16];
+
+    /**
+     * Counts the bytes read, which JMH reports per microsecond, ie MB/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+
+        checkpoints = new GenerationCheckpoints(30);
+
+        columns = new int[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            columns[i] = i - numColumns / 2;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startStream() {
+        stream = ColumnStream.create(checkpoints, columns, startGeneration, ColumnStream.UNBOUNDED);
+    }
+
+    @Benchmark
+    public long[] read(Bytes counter) throws IOException {
+
+        int n = stream.read(buffer, 0, buffer.length);
+        counter.bytes += n * 8L;
+        return buffer;
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.PrerequisitePlanner;
+import net.nologin.meep.ca.core.TileGeometry;
+import net.nologin.meep.ca.core.TileIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of planning the prerequisites of a screenful of tiles deep down the grid, with nothing calculated yet
+ * (as after jumping to a generation, or a rule change), for different limits on how far up the planner searches.
+ * The app's limit is 4.
+ * <br/><br/>
+ * As the provider does, the grid claims each tile at most once per plan (the screen's tiles share most of their
+ * prerequisites), and tiles outside the cone are never claimed as they need no calculation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlannerBenchmark {
+
+    // a phone screen's worth of tiles at 256 pixels each, as in TileRange
+    private static final int SCREEN_TILES_WIDE = 5, SCREEN_TILES_HIGH = 8;
+
+    @Param({"64", "4096"})
+    public int topRow;
+
+    @Param({"4", "16", "64"})
+    public int maxTileRows;
+
+    private PrerequisitePlanner planner;
+    private final TileGeometry geometry = new TileGeometry(2);
+    private final Set<Long> claimed = new HashSet<Long>();
+    private int numQueued;
+
+    private final PrerequisitePlanner.Grid grid = new PrerequisitePlanner.Grid() {
+
+        @Override
+        public boolean claim(int xId, int yId) {
+            return !geometry.isOutsideCone(0, xId, yId) && claimed.add(TileIndex.key(xId, yId));
+        }
+
+        @Override
+        public void enqueue(int xId, int yId) {
+            numQueued++;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        planner = new PrerequisitePlanner(maxTileRows);
+    }
+
+    @Benchmark
+    public int planScreen() {
+
+        claimed.clear();
+        numQueued = 0;
+
+        for (int y = topRow; y < topRow + SCREEN_TILES_HIGH; y++) {
+            for (int x = -SCREEN_TILES_WIDE / 2; x <= SCREEN_TILES_WIDE / 2; x++) {
+                planner.plan(x, y, grid);
+                if (claimed.add(TileIndex.key(x, y))) {
+                    numQueued++;
+                }
+            }
+        }
+        return numQueued;
+    }
+
+}
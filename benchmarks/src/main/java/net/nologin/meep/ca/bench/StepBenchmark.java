@@ -0,0 +1,109 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.PackedCells;
+import net.nologin.meep.ca.core.StepKernel;
+import net.nologin.meep.ca.core.WolframRuleTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single generation step throughput, in cells per second (the <code>cells</code> counter), for a few rules with
+ * different kernels (see {@link WolframRuleTable}) and row widths from a single word up to several tile strips.
+ * <br/><br/>
+ * {@link #stepPacked} is the word at a time kernel step the tiles use, {@link #stepPerCell} the cell at a time
+ * {@link WolframRuleTable#getNextState(int, boolean, boolean, boolean)} it replaced, as a reference.  Rows start from
+ * random cells, and are stepped back and forth between two arrays, so later generations are whatever the rule makes
+ * of them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StepBenchmark {
+
+    @Param({"30", "90", "110", "184"})
+    public int rule;
+
+    // a word, a tile at the smallest zoom, a band of 8 tiles (plus one either side) at the smallest zoom, and more
+    @Param({"64", "256", "2560", "65536"})
+    public int width;
+
+    private StepKernel kernel;
+    private long[] cur, next;
+    private boolean[] curCells, nextCells;
+
+    /**
+     * Counts the cells stepped, so that JMH reports them as a rate alongside the generations
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Cells {
+
+        public long cells;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            cells = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+
+        kernel = WolframRuleTable.getKernel(rule);
+
+        cur = new long[PackedCells.wordsFor(width)];
+        next = new long[cur.length];
+        curCells = new boolean[width];
+        nextCells = new boolean[width];
+
+        Random random = new Random(rule);
+        for (int i = 0; i < width; i++) {
+            if (random.nextBoolean()) {
+                PackedCells.set(cur, i);
+                curCells[i] = true;
+            }
+        }
+    }
+
+    @Benchmark
+    public long[] stepPacked(Cells counter) {
+
+        PackedCells.step(kernel, cur, next, width);
+
+        long[] tmp = cur;
+        cur = next;
+        next = tmp;
+
+        counter.cells += width;
+        return cur;
+    }
+
+    @Benchmark
+    public boolean[] stepPerCell(Cells counter) {
+
+        // the end cells have no neighbours beyond the row, and are left off (as PackedCells.step() does)
+        for (int i = 1; i < width - 1; i++) {
+            nextCells[i] = WolframRuleTable.getNextState(rule, curCells[i - 1], curCells[i], curCells[i + 1]);
+        }
+
+        boolean[] tmp = curCells;
+        curCells = nextCells;
+        nextCells = tmp;
+
+        counter.cells += width;
+        return curCells;
+    }
+
+}
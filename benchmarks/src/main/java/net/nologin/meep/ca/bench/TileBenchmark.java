@@ -0,0 +1,91 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of calculating a whole tile (every generation of its cells, and optionally rendering its pixels) with the
+ * {@link BandEngine}, at each zoom level the app allows (those <code>WolframUtils.sanitizeZoom()</code> returns).
+ * <br/><br/>
+ * The tile is below a row of already calculated tiles, as tiles mostly are when scrolling.  It's tile x=0, y=3 of
+ * rule 110, so near the center of the cone, where the cells are busiest.  The parent rows are calculated once up
+ * front, and no generation store is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileBenchmark {
+
+    private static final int RULE = 110;
+    private static final int X_ID = 0, Y_ID = 3;
+
+    @Param({"1", "2", "4", "6", "8", "10", "12", "14", "16"})
+    public int zoom;
+
+    // tiles only need rendering when on screen, prerequisites just need their last cell row
+    @Param({"true", "false"})
+    public boolean render;
+
+    private BandEngine engine;
+    private BandEngine.ParentRows parents;
+    private final long[][] lastCellRows = new long[1][];
+    private PixelSink sink;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+
+        this.blackhole = blackhole;
+
+        TileGeometry geometry = new TileGeometry(zoom);
+        final int cellsPerEdge = geometry.getCellsPerEdge();
+        engine = new BandEngine(new GenerationSeeker(RULE), geometry,
+                new TileRenderer(cellsPerEdge, 0xFFFFFFFF, 0xFF000000), null);
+
+        // the last cell rows of the tiles above, straight from the seeker
+        final long[][] parentRows = new long[3][];
+        for (int p = 0; p < 3; p++) {
+            parentRows[p] = new long[PackedCells.wordsFor(cellsPerEdge)];
+            engine.getSeeker().copyCells(geometry.getLastGeneration(0, Y_ID - 1),
+                    (int) geometry.getFirstCell(X_ID - 1 + p), cellsPerEdge, parentRows[p], 0);
+        }
+        parents = new BandEngine.ParentRows() {
+            @Override
+            public long[] getLastCellRow(int xId, int yId) {
+                return yId == Y_ID - 1 ? parentRows[xId - X_ID + 1] : null;
+            }
+        };
+
+        sink = new PixelSink() {
+            @Override
+            public boolean wantsPixels(int index) {
+                return render;
+            }
+
+            @Override
+            public void setPixels(int index, int[] pixels, int size) {
+                TileBenchmark.this.blackhole.consume(pixels);
+            }
+        };
+    }
+
+    @Benchmark
+    public long[] calculateTile() {
+        engine.calculateBand(0, X_ID, Y_ID, 1, parents, lastCellRows, sink);
+        return lastCellRows[0];
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import net.nologin.meep.ca.core.TileIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache hit lookups of the {@link TileIndex} behind the app's tile cache, as made for every visible tile on every
+ * frame the view draws (<code>getTile()</code>).  The index holds a cache's worth of tiles, and lookups cycle over a
+ * screenful of them.  Run with one thread (as the view's rendering thread does alone) and with four, as when the tile
+ * workers look up parent rows at the same time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileIndexBenchmark {
+
+    private static final int CACHED_TILES_WIDE = 32, CACHED_TILES_HIGH = 64;
+    private static final int SCREEN_TILES_WIDE = 5, SCREEN_TILES_HIGH = 8;
+
+    private TileIndex<BenchTile> index;
+
+    /**
+     * Each thread's position in the screen of tiles
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int x, y;
+    }
+
+    @Setup
+    public void setUp() {
+
+        index = new TileIndex<BenchTile>(new TileIndex.Factory<BenchTile>() {
+            @Override
+            public BenchTile create(int xId, int yId) {
+                return new BenchTile();
+            }
+        });
+
+        for (int y = 0; y < CACHED_TILES_HIGH; y++) {
+            for (int x = -CACHED_TILES_WIDE / 2; x < CACHED_TILES_WIDE / 2; x++) {
+                index.getOrCreate(x, y);
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public BenchTile getOrCreateHit(Cursor cursor) {
+        return next(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BenchTile getOrCreateHitContended(Cursor cursor) {
+        return next(cursor);
+    }
+
+    private BenchTile next(Cursor cursor) {
+
+        if (++cursor.x == SCREEN_TILES_WIDE) {
+            cursor.x = 0;
+            if (++cursor.y == SCREEN_TILES_HIGH) {
+                cursor.y = 0;
+            }
+        }
+        return index.getOrCreate(cursor.x - SCREEN_TILES_WIDE / 2, cursor.y + CACHED_TILES_HIGH / 2);
+    }
+
+    /**
+     * A tile that keeps nothing but its last use, like the LRU stamp of the app's tiles
+     */
+    public static class BenchTile implements TileIndex.Entry {
+
+        volatile long lastUsed;
+
+        @Override
+        public void setLastUsed(long tick) {
+            lastUsed = tick;
+        }
+    }
+
+}
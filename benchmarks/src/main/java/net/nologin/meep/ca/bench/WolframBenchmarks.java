@@ -0,0 +1,53 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler (so each result comes with its allocation rate,
+ * <code>gc.alloc.rate.norm</code> being the bytes allocated per operation), and writes the results as JSON, as a
+ * baseline to compare later runs against (eg with <a href="https://jmh.morethan.io/">JMH Visualizer</a>).
+ * <pre>
+ *      java -jar benchmarks.jar                                    all benchmarks, to jmh-baseline.json
+ *      java -jar benchmarks.jar before.json StepBenchmark         just the step kernels, to before.json
+ * </pre>
+ * Any other JMH options can be had by running the JMH main class instead:
+ * <code>java -cp benchmarks.jar org.openjdk.jmh.Main -h</code>
+ */
+public final class WolframBenchmarks {
+
+    /**
+     * Where the results go, unless told otherwise
+     */
+    public static final String DEFAULT_RESULT_FILE = "jmh-baseline.json";
+
+    private WolframBenchmarks() {
+    } // not instantiable
+
+    public static void main(String[] args) throws RunnerException {
+
+        String resultFile = args.length > 0 ? args[0] : DEFAULT_RESULT_FILE;
+        String include = args.length > 1 ? args[1] : WolframBenchmarks.class.getPackage().getName() + ".*";
+
+        Options opts = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+
+        new Runner(opts).run();
+    }
+
+}
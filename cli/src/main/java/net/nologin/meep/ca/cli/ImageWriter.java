@@ -0,0 +1,109 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.cli;
+
+import net.nologin.meep.ca.core.PackedCells;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Base for the two colour image formats, written a row of cells at a time as they're calculated, so the image never
+ * has to be held in memory.  Each cell becomes <code>pixelsPerCell</code> x <code>pixelsPerCell</code> pixels, packed
+ * into scanlines of 1 bit per pixel (most significant bit first, 1 for cells that are on), which both formats use
+ * as they are.
+ */
+abstract class ImageWriter implements Closeable {
+
+    // bit reversal of each byte, as our cells are packed least significant bit first
+    private static final byte[] REVERSED = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+        }
+    }
+
+    protected final int widthPixels, heightPixels;
+
+    private final int numCells, pixelsPerCell;
+    private final byte[] line;
+
+    /**
+     * Constructor
+     *
+     * @param numCells       The number of cells across
+     * @param numGenerations The number of rows of cells
+     * @param pixelsPerCell  The number of pixels across (and down) each cell
+     */
+    protected ImageWriter(int numCells, int numGenerations, int pixelsPerCell) {
+
+        if ((long) numCells * pixelsPerCell > Integer.MAX_VALUE
+                || (long) numGenerations * pixelsPerCell > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image too large: " + numCells + "x" + numGenerations + " cells at "
+                    + pixelsPerCell + " pixels per cell");
+        }
+
+        this.numCells = numCells;
+        this.pixelsPerCell = pixelsPerCell;
+        this.widthPixels = numCells * pixelsPerCell;
+        this.heightPixels = numGenerations * pixelsPerCell;
+        this.line = new byte[(widthPixels + 7) / 8];
+    }
+
+    /**
+     * Write the next row of cells, as <code>pixelsPerCell</code> scanlines
+     *
+     * @param cells   The packed cells
+     * @param cellPos The index of the first cell of the row in <code>cells</code>
+     * @throws IOException If writing fails
+     */
+    void writeRow(long[] cells, int cellPos) throws IOException {
+
+        if (pixelsPerCell == 1) {
+            // a byte of pixels is a byte of cells, just reversed
+            for (int b = 0; b < line.length; b++) {
+                line[b] = REVERSED[(int) PackedCells.getWord(cells, cellPos + b * 8) & 0xFF];
+            }
+            // nothing past the last cell
+            if ((numCells & 7) != 0) {
+                line[line.length - 1] &= (byte) (0xFF00 >>> (numCells & 7));
+            }
+        } else {
+            Arrays.fill(line, (byte) 0);
+            for (int c = 0; c < numCells; c += 64) {
+                // visit just the cells that are on
+                long word = PackedCells.getWord(cells, cellPos + c);
+                if (c + 64 > numCells) {
+                    word &= (1L << (numCells - c)) - 1;
+                }
+                while (word != 0) {
+                    int cell = c + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    for (int p = cell * pixelsPerCell, end = p + pixelsPerCell; p < end; p++) {
+                        line[p >>> 3] |= (byte) (0x80 >>> (p & 7));
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < pixelsPerCell; i++) {
+            writeLine(line);
+        }
+    }
+
+    /**
+     * Write a scanline
+     *
+     * @param line The pixels, 1 bit each, most significant bit first
+     * @throws IOException If writing fails
+     */
+    protected abstract void writeLine(byte[] line) throws IOException;
+
+}
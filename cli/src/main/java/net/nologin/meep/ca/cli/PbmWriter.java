@@ -0,0 +1,50 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.cli;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writes a raw ('P4') portable bitmap: a short text header, then the scanlines exactly as {@link ImageWriter} packs
+ * them.  PBM has no colours, 1 is black, so cells that are on are black and cells that are off are white.  Being
+ * uncompressed, it's the fastest format to write and the easiest to feed to other tools.
+ */
+final class PbmWriter extends ImageWriter {
+
+    private final OutputStream out;
+
+    /**
+     * Constructor, writing the header
+     *
+     * @param out            Where to write the bitmap
+     * @param numCells       The number of cells across
+     * @param numGenerations The number of rows of cells
+     * @param pixelsPerCell  The number of pixels across (and down) each cell
+     * @throws IOException If writing fails
+     */
+    PbmWriter(OutputStream out, int numCells, int numGenerations, int pixelsPerCell) throws IOException {
+
+        super(numCells, numGenerations, pixelsPerCell);
+
+        this.out = out;
+        out.write(("P4\n" + widthPixels + " " + heightPixels + "\n").getBytes(Charset.forName("US-ASCII")));
+    }
+
+    @Override
+    protected void writeLine(byte[] line) throws IOException {
+        out.write(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
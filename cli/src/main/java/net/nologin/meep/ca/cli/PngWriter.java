@@ -0,0 +1,163 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG with a two colour palette at 1 bit per pixel (index 0 the 'off' colour, 1 the 'on' colour), streaming
+ * the compressed scanlines out in fixed size <code>IDAT</code> chunks as they fill.  Memory use is a scanline, the
+ * deflater's window and one chunk, however tall the image.
+ * <pre>
+ *      signature, IHDR, PLTE, IDAT, IDAT, ..., IEND
+ * </pre>
+ */
+final class PngWriter extends ImageWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final DataOutputStream out;
+    private final Deflater deflater;
+    private final DeflaterOutputStream data;
+
+    /**
+     * Constructor, writing everything up to the image data
+     *
+     * @param out            Where to write the PNG
+     * @param numCells       The number of cells across
+     * @param numGenerations The number of rows of cells
+     * @param pixelsPerCell  The number of pixels across (and down) each cell
+     * @param colorOn        The colour of cells that are on, as <code>0xRRGGBB</code>
+     * @param colorOff       The colour of cells that are off, as <code>0xRRGGBB</code>
+     * @throws IOException If writing fails
+     */
+    PngWriter(OutputStream out, int numCells, int numGenerations, int pixelsPerCell, int colorOn, int colorOff)
+            throws IOException {
+
+        super(numCells, numGenerations, pixelsPerCell);
+
+        this.out = new DataOutputStream(out);
+        this.out.write(SIGNATURE);
+
+        ChunkBuffer header = new ChunkBuffer(13);
+        header.writeInt(widthPixels);
+        header.writeInt(heightPixels);
+        header.write(1); // bit depth
+        header.write(3); // colour type: palette
+        header.write(0); // compression: deflate
+        header.write(0); // filter method: adaptive (every line uses filter type 0, none)
+        header.write(0); // no interlace
+        header.writeTo(this.out, "IHDR");
+
+        ChunkBuffer palette = new ChunkBuffer(6);
+        for (int color : new int[]{colorOff, colorOn}) {
+            palette.write(color >>> 16);
+            palette.write(color >>> 8);
+            palette.write(color);
+        }
+        palette.writeTo(this.out, "PLTE");
+
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        data = new DeflaterOutputStream(new IdatStream(), deflater, CHUNK_SIZE);
+    }
+
+    @Override
+    protected void writeLine(byte[] line) throws IOException {
+        data.write(0); // filter type: none
+        data.write(line);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            data.close(); // flushes the last IDAT
+            new ChunkBuffer(0).writeTo(out, "IEND");
+            out.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // the data of a chunk, gathered up so that its length is known before it's written
+    private static class ChunkBuffer extends DataOutputStream {
+
+        ChunkBuffer(int size) {
+            super(new ByteArrayOutputStream(size));
+        }
+
+        void writeTo(DataOutputStream dst, String type) throws IOException {
+            flush();
+            byte[] bytes = ((ByteArrayOutputStream) out).toByteArray();
+            writeChunk(dst, type, bytes, bytes.length);
+        }
+    }
+
+    // cuts the compressed data into IDAT chunks
+    private class IdatStream extends OutputStream {
+
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk(out, "IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+
+    private static void writeChunk(DataOutputStream dst, String type, byte[] data, int len) throws IOException {
+
+        byte[] typeBytes = type.getBytes(ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, len);
+
+        dst.writeInt(len);
+        dst.write(typeBytes);
+        dst.write(data, 0, len);
+        dst.writeInt((int) crc.getValue());
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.cli;
+
+import net.nologin.meep.ca.core.PackedCells;
+import net.nologin.meep.ca.core.StepKernel;
+import net.nologin.meep.ca.core.WolframRuleTable;
+
+/**
+ * Steps a fixed width window of cells one generation at a time, with the same {@link StepKernel} the app's tiles use.
+ * Only two rows are ever held, so memory doesn't depend on the number of generations.
+ * <br/><br/>
+ * The window is padded with a word of cells either side, which before each step are set to the generation's
+ * background state (see {@link WolframRuleTable#getBackgroundState(int, long)}), so the cells at the edges of the
+ * window see the infinite plane the app shows, for as long as the pattern stays inside the window.
+ * <pre>
+ *      word:      [  padding  ] [  window ...                ] [  padding  ]
+ *      cell:       0 ...    63   64 ...      64 + width - 1
+ * </pre>
+ */
+final class RowStepper {
+
+    /**
+     * The index of the window's first cell in {@link #getCells()}
+     */
+    static final int CELL_POS = 64;
+
+    private final StepKernel kernel;
+    private final int rule, width;
+
+    private long[] cur, next;
+    private long generation = 0;
+
+    /**
+     * Constructor
+     *
+     * @param rule  The rule
+     * @param width The number of cells in the window
+     * @param seed  Generation 0, packed with the window's first cell at index 0
+     */
+    RowStepper(int rule, int width, long[] seed) {
+
+        this.kernel = WolframRuleTable.getKernel(rule);
+        this.rule = rule;
+        this.width = width;
+
+        int words = PackedCells.wordsFor(CELL_POS + width) + 1;
+        cur = new long[words];
+        next = new long[words];
+        PackedCells.copy(seed, 0, cur, CELL_POS, width);
+    }
+
+    /**
+     * @return The current generation, the window starting at cell {@link #CELL_POS}.  Valid until the next step.
+     */
+    long[] getCells() {
+        return cur;
+    }
+
+    /**
+     * @return The number of the current generation, 0 being the seed
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Advance the window by one generation
+     */
+    void step() {
+
+        // everything either side of the window is this generation's background
+        boolean background = WolframRuleTable.getBackgroundState(rule, generation);
+        PackedCells.fill(cur, 0, CELL_POS, background);
+        PackedCells.fill(cur, CELL_POS + width, cur.length * 64 - CELL_POS - width, background);
+
+        kernel.step(cur, next, 0, cur.length);
+
+        long[] tmp = cur;
+        cur = next;
+        next = tmp;
+        generation++;
+    }
+
+}
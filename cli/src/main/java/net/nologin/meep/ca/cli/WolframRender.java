@@ -0,0 +1,293 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.cli;
+
+import net.nologin.meep.ca.core.PackedCells;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Renders a CA straight to an image file, a generation at a time, for images far bigger than the app (or memory)
+ * could hold, eg posters or data sets.  Uses the same rules and stepping as the app's tiles (see {@link RowStepper}),
+ * and streams each row of cells into the image encoder as it's calculated, so memory use depends on the width only.
+ * <pre>
+ *      java -jar wolframca-render.jar [options] &lt;file.png|file.pbm|-&gt;
+ *
+ *      -r, --rule N           rule number, 0-255                                   (30)
+ *      -w, --width N          cells across                                         (1024)
+ *      -g, --generations N    rows of cells, including the seed                    (width / 2)
+ *      -p, --ppc N            pixels across (and down) each cell                   (1)
+ *      -s, --seed SEED        'single': one cell on in the middle, as in the app   (single)
+ *                             'random[:N]': each cell on or off at random, from seed N
+ *                             a pattern of 0s and 1s, placed in the middle
+ *      --on RRGGBB            colour of cells that are on, PNG only                (the app's)
+ *      --off RRGGBB           colour of cells that are off, PNG only               (the app's)
+ *      -f, --format png|pbm   image format                                         (from the file name)
+ * </pre>
+ * An output of <code>-</code> writes the image to stdout.  Once done, the throughput and peak memory are reported on
+ * stderr.  Cells beyond the edges of the image are taken to be the background (see {@link RowStepper}), so the
+ * default single cell seed renders exactly what the app shows until the pattern reaches the edges.
+ */
+public final class WolframRender {
+
+    // the app's colours, see res/values/colors.xml
+    private static final int DEFAULT_COLOR_ON = 0xAAAAFF, DEFAULT_COLOR_OFF = 0x000000;
+
+    private int rule = 30, width = 1024, generations = -1, pixelsPerCell = 1;
+    private String seed = "single", format, output;
+    private int colorOn = DEFAULT_COLOR_ON, colorOff = DEFAULT_COLOR_OFF;
+
+    private WolframRender() {
+    } // see main()
+
+    public static void main(String[] args) {
+
+        WolframRender render = new WolframRender();
+        try {
+            render.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            printUsage();
+            System.exit(2);
+        }
+
+        try {
+            render.run();
+        } catch (IOException e) {
+            System.err.println("Cannot write " + render.output + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void parse(String[] args) {
+
+        for (int i = 0; i < args.length; i++) {
+
+            String arg = args[i];
+            if (!arg.startsWith("-") || arg.equals("-")) {
+                if (output != null) {
+                    throw new IllegalArgumentException("More than one output given: " + output + ", " + arg);
+                }
+                output = arg;
+                continue;
+            }
+            if (arg.equals("-h") || arg.equals("--help")) {
+                printUsage();
+                System.exit(0);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("No value given for " + arg);
+            }
+
+            String value = args[++i];
+            if (arg.equals("-r") || arg.equals("--rule")) {
+                rule = parseInt(arg, value, 0, 255);
+            } else if (arg.equals("-w") || arg.equals("--width")) {
+                width = parseInt(arg, value, 1, Integer.MAX_VALUE - 128);
+            } else if (arg.equals("-g") || arg.equals("--generations")) {
+                generations = parseInt(arg, value, 1, Integer.MAX_VALUE);
+            } else if (arg.equals("-p") || arg.equals("--ppc")) {
+                pixelsPerCell = parseInt(arg, value, 1, 256);
+            } else if (arg.equals("-s") || arg.equals("--seed")) {
+                seed = value;
+            } else if (arg.equals("--on")) {
+                colorOn = parseColor(arg, value);
+            } else if (arg.equals("--off")) {
+                colorOff = parseColor(arg, value);
+            } else if (arg.equals("-f") || arg.equals("--format")) {
+                format = value.toLowerCase(Locale.US);
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+
+        if (output == null) {
+            throw new IllegalArgumentException("No output file given");
+        }
+        if (generations < 0) {
+            generations = Math.max(1, width / 2);
+        }
+        if (format == null) {
+            format = output.toLowerCase(Locale.US).endsWith(".pbm") ? "pbm" : "png";
+        }
+        if (!format.equals("png") && !format.equals("pbm")) {
+            throw new IllegalArgumentException("Unknown format " + format + ", expected png or pbm");
+        }
+    }
+
+    private void run() throws IOException {
+
+        long[] cells = createSeed();
+        RowStepper stepper = new RowStepper(rule, width, cells);
+
+        OutputStream out = output.equals("-") ? System.out : new FileOutputStream(output);
+        CountingStream counter = new CountingStream(new BufferedOutputStream(out, 64 * 1024));
+
+        ImageWriter image = format.equals("pbm")
+                ? new PbmWriter(counter, width, generations, pixelsPerCell)
+                : new PngWriter(counter, width, generations, pixelsPerCell, colorOn, colorOff);
+
+        long start = System.nanoTime();
+        try {
+            for (int g = 0; g < generations; g++) {
+                if (g > 0) {
+                    stepper.step();
+                }
+                image.writeRow(stepper.getCells(), RowStepper.CELL_POS);
+            }
+        } finally {
+            image.close();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        double cellCount = (double) width * generations;
+        System.err.println(String.format(Locale.US, "Rule %d, %d x %d cells (%d x %d pixels) to %s (%s)", rule,
+                width, generations, image.widthPixels, image.heightPixels, output, format));
+        System.err.println(String.format(Locale.US,
+                "%.2fs, %.0f generations/s, %.1f Mcells/s, %.1f MB written (%.1f MB/s), %s", secs,
+                generations / secs, cellCount / secs / 1e6, counter.count / 1e6, counter.count / secs / 1e6,
+                getPeakMemory()));
+    }
+
+    // generation 0, the window's first cell at index 0
+    private long[] createSeed() {
+
+        long[] cells = new long[PackedCells.wordsFor(width)];
+
+        if (seed.equals("single")) {
+            // the app's seed cell is the middle of tile 0, see BandEngine
+            PackedCells.set(cells, width / 2);
+
+        } else if (seed.equals("random") || seed.startsWith("random:")) {
+            Random random = seed.equals("random")
+                    ? new Random() : new Random(parseLong("--seed", seed.substring("random:".length())));
+            for (int w = 0; w < cells.length; w++) {
+                cells[w] = random.nextLong();
+            }
+            if ((width & 63) != 0) {
+                cells[cells.length - 1] &= (1L << width) - 1;
+            }
+
+        } else if (seed.matches("[01]+")) {
+            if (seed.length() > width) {
+                throw new IllegalArgumentException("Seed pattern is wider than the " + width + " cells");
+            }
+            int first = (width - seed.length()) / 2;
+            for (int i = 0; i < seed.length(); i++) {
+                if (seed.charAt(i) == '1') {
+                    PackedCells.set(cells, first + i);
+                }
+            }
+
+        } else {
+            throw new IllegalArgumentException("Unknown seed " + seed + ", expected single, random[:N] or 0s and 1s");
+        }
+        return cells;
+    }
+
+    // peak resident set size where the OS tells us (Linux), otherwise the peak JVM heap
+    private static String getPeakMemory() {
+
+        File status = new File("/proc/self/status");
+        if (status.canRead()) {
+            try {
+                BufferedReader reader = new BufferedReader(new FileReader(status));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith("VmHWM:")) {
+                            return "peak RSS " + line.substring("VmHWM:".length()).trim();
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // fall back to the heap
+            }
+        }
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+        return "peak heap " + (peakHeap / 1024) + " kB";
+    }
+
+    private static int parseInt(String arg, String value, int min, int max) {
+
+        long n = parseLong(arg, value);
+        if (n < min || n > max) {
+            throw new IllegalArgumentException(arg + " must be in the range " + min + "-" + max + ", not " + value);
+        }
+        return (int) n;
+    }
+
+    private static long parseLong(String arg, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(arg + " must be a number, not " + value);
+        }
+    }
+
+    private static int parseColor(String arg, String value) {
+
+        String hex = value.startsWith("#") ? value.substring(1) : value;
+        if (!hex.matches("[0-9a-fA-F]{6}")) {
+            throw new IllegalArgumentException(arg + " must be a colour as RRGGBB, not " + value);
+        }
+        return Integer.parseInt(hex, 16);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java -jar wolframca-render.jar [options] <file.png|file.pbm|->\n"
+                + "\n"
+                + "  -r, --rule N           rule number, 0-255 (default 30)\n"
+                + "  -w, --width N          cells across (default 1024)\n"
+                + "  -g, --generations N    rows of cells, including the seed (default width / 2)\n"
+                + "  -p, --ppc N            pixels across (and down) each cell (default 1)\n"
+                + "  -s, --seed SEED        'single' (default): one cell on in the middle\n"
+                + "                         'random[:N]': each cell on or off at random, from seed N\n"
+                + "                         a pattern of 0s and 1s, placed in the middle\n"
+                + "  --on RRGGBB            colour of cells that are on, PNG only (default aaaaff)\n"
+                + "  --off RRGGBB           colour of cells that are off, PNG only (default 000000)\n"
+                + "  -f, --format png|pbm   image format (default from the file name, else png)");
+    }
+
+    // counts the bytes written, for the report
+    private static class CountingStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
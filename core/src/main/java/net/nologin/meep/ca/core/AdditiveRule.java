@@ -0,0 +1,196 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Calculates any cell of any generation of an additive rule directly, in time proportional to the number of bits in
+ * the generation, without calculating any of the generations before it.
+ * <br/><br/>
+ * A rule is additive when its next state is an XOR of some of the cells of the neighbourhood, possibly inverted:
+ * 90 (<code>l^r</code>), 150 (<code>l^c^r</code>), 60 (<code>l^c</code>), 102 (<code>c^r</code>), the shifts 170, 204
+ * and 240, and their complements.  Writing a row as a polynomial over GF(2) (cell <i>i</i> being the coefficient of
+ * <i>x<sup>i</sup></i>), a generation is the one before it times <code>P(x) = x<sup>-1</sup>Q(x)</code>, where
+ * <code>Q(x) = r + cx + lx<sup>2</sup></code> has a term for each neighbour the rule XORs.  So starting from the
+ * single center cell, generation <i>t</i> is just <code>P(x)<sup>t</sup></code>, and cell <i>i</i> is the
+ * coefficient of <i>x<sup>i+t</sup></i> in <code>Q(x)<sup>t</sup></code>.  Since squaring is free over GF(2)
+ * (<code>Q(x)<sup>2</sup> = Q(x<sup>2</sup>)</code>):
+ * <pre>
+ *      Q(x)^t = product of Q(x^(2^j)), for each bit j set in t
+ * </pre>
+ * and the coefficient is the parity of the ways of picking a term from each factor whose exponents add up to
+ * <i>i+t</i>, counted a bit at a time with a carry (for two term rules, this is Lucas' theorem: Pascal's triangle mod
+ * 2).  The complemented rules just invert every cell of the generations in which their background (see
+ * {@link WolframRuleTable#getBackgroundState(int, long)}) is on.
+ * <br/><br/>
+ * Immutable, so safe for use from multiple threads.
+ *
+ * @see GenerationSeeker
+ */
+public class AdditiveRule implements GenerationSource {
+
+    private final int rule;
+
+    // bit d set if Q(x) has an x^d term
+    private final int terms;
+
+    /**
+     * Constructor
+     *
+     * @param rule The rule number, see {@link #isAdditive(int)}
+     * @throws IllegalArgumentException If the rule isn't additive
+     */
+    public AdditiveRule(int rule) {
+
+        if (!isAdditive(rule)) {
+            throw new IllegalArgumentException("Rule " + rule + " is not additive");
+        }
+        this.rule = rule;
+        this.terms = getTerms(rule);
+    }
+
+    /**
+     * @param rule The rule number (0-255)
+     * @return <code>true</code> if any cell of the rule can be calculated directly, see class doc
+     * @throws IllegalArgumentException If the rule is not a value from 0 to 255 (inclusive).
+     */
+    public static boolean isAdditive(int rule) {
+
+        if (rule < 0 || rule > 255) {
+            throw new IllegalArgumentException("Rule must be between 0 and 255");
+        }
+
+        // the XOR of the neighbours in Q, inverted if 000 -> 1, must give the rule's every bit
+        int terms = getTerms(rule);
+        for (int n = 0; n < 8; n++) {
+            int next = (rule & 1) ^ (Integer.bitCount(n & terms) & 1);
+            if (((rule >>> n) & 1) != next) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculate a single cell directly, starting from the single center cell that's on in generation 0
+     *
+     * @param rule       The rule number, see {@link #isAdditive(int)}
+     * @param cell       The cell, relative to the center cell
+     * @param generation The generation (0 being the first)
+     * @return Whether the cell is on
+     * @throws IllegalArgumentException If the rule isn't additive, or the generation is negative
+     */
+    public static boolean cellAt(int rule, int cell, long generation) {
+
+        if (!isAdditive(rule)) {
+            throw new IllegalArgumentException("Rule " + rule + " is not additive");
+        }
+        return cellAt(rule, getTerms(rule), cell, generation);
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * Calculate a single cell directly
+     *
+     * @param cell       The cell, relative to the center cell
+     * @param generation The generation (0 being the first)
+     * @return Whether the cell is on
+     * @throws IllegalArgumentException If the generation is negative
+     */
+    public boolean cellAt(int cell, long generation) {
+        return cellAt(rule, terms, cell, generation);
+    }
+
+    @Override
+    public void copyCells(long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        PackedCells.fill(dst, dstPos, numCells, false);
+        for (int i = 0; i < numCells; i++) {
+            if (cellAt(rule, terms, firstCell + i, generation)) {
+                PackedCells.set(dst, dstPos + i);
+            }
+        }
+    }
+
+    @Override
+    public String getDebugSummary() {
+        return "additive";
+    }
+
+    /* The neighbours a rule XORs, as the exponents of Q(x): r (bit 0), c (bit 1) and l (bit 2), which also happens to
+     * be the order of the neighbourhood bits in the rule number.  Each neighbour's term is whether flipping it alone
+     * (from 000) changes the next state. */
+    private static int getTerms(int rule) {
+
+        int terms = 0;
+        for (int d = 0; d < 3; d++) {
+            if ((((rule >>> (1 << d)) ^ rule) & 1) != 0) {
+                terms |= 1 << d;
+            }
+        }
+        return terms;
+    }
+
+    private static boolean cellAt(int rule, int terms, int cell, long generation) {
+
+        if (generation < 0) {
+            throw new IllegalArgumentException("Generation " + generation + " is negative");
+        }
+
+        boolean background = WolframRuleTable.getBackgroundState(rule, generation);
+
+        // the coefficient of x^n in Q(x)^t, nothing outside the cone
+        long t = generation;
+        if (cell < -t || cell > t) {
+            return background;
+        }
+        long n = cell + t;
+
+        /* the parity of the ways to pick an exponent d (a term of Q) for each bit j set in t, such that the d * 2^j
+         * add up to n.  Working up from the lowest bit, each bit of n must come out of the d picked for that bit plus
+         * the carry from below (0 or 1, as d + carry is at most 3) */
+        int ways0 = 1, ways1 = 0; // the parity of the ways that get this far with a carry of 0, and of 1
+        for (int j = 0; (t >>> j) != 0 || (n >>> j) != 0; j++) {
+
+            int picks = ((t >>> j) & 1) != 0 ? terms : 1; // a bit not in t has just the one term, x^0
+            int bit = (int) (n >>> j) & 1;
+
+            int next0 = 0, next1 = 0;
+            for (int carry = 0; carry < 2; carry++) {
+                if ((carry == 0 ? ways0 : ways1) == 0) {
+                    continue;
+                }
+                for (int d = 0; d < 3; d++) {
+                    int sum = d + carry;
+                    if ((picks & (1 << d)) != 0 && (sum & 1) == bit) {
+                        if (sum < 2) {
+                            next0 ^= 1;
+                        } else {
+                            next1 ^= 1;
+                        }
+                    }
+                }
+            }
+            ways0 = next0;
+            ways1 = next1;
+
+            if (ways0 == 0 && ways1 == 0) {
+                return background;
+            }
+        }
+
+        // nothing left of t or n, so the carry must be spent
+        return background ^ (ways0 != 0);
+    }
+
+}
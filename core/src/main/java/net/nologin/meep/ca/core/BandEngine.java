@@ -0,0 +1,427 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the cells of bands of neighbouring tiles (see {@link TileGeometry}), keeping the last cell row of each
+ * tile and handing the rendered pixels to a {@link PixelSink}.  This is all of the tile calculation that doesn't
+ * depend on Android, the app's tile provider just decides which bands to calculate and keeps the results.
+ * <br/><br/>
+ * Each cell depends on itself and its two neighbours in the previous generation, so cells near the edge of a tile
+ * depend on cells in the tiles either side, the further down the tile, the further out.  So a band is calculated as
+ * one strip of cells, one tile wider than the band on each side.  The cells at either end of the strip can't be
+ * calculated, and are left off, but the error only spreads one cell per generation, so never reaches the band's own
+ * tiles.  A band of <i>n</i> tiles costs <i>n+2</i> tiles worth of cell updates, rather than <i>3n</i> if each tile
+ * were done on its own.
+ * <br/><br/>
+ * Bands that only exist as the starting state of the bands below them (none of their tiles are rendered) only need
+ * their last generation, so are advanced several generations per pass with a {@link BlockStepKernel}, where the rule
+ * has one.
+ * <br/><br/>
+ * The starting state of the strip is the last cell row of the tiles above it.  Where those aren't available, it's
+ * read from the {@link GenerationStore} if there is one, or calculated by the {@link GenerationSeeker} (and then
+ * stored, unless the seeker {@link GenerationSeeker#isDirect() is direct}).  Only the seed row (the first row of
+ * tile row 0, when the origin is generation 0) has no starting state.
+ * <br/><br/>
+ * Every cell of a rendered tile also goes into the {@link CellStore}, if there is one, which is in absolute
+ * coordinates rather than tiles, so outlives a change of zoom (ie of geometry).  A tile the store covers is rendered
+ * from it with {@link #calculateStoredTile(long, int, int, PixelSink)}, without any stepping, and a strip whose
+ * starting state is in it starts from there.
+ * <br/><br/>
+ * Instances are immutable, and safe for use from multiple threads (working arrays come from each thread's own
+ * {@link ScratchArena}).
+ */
+public class BandEngine {
+
+    /**
+     * Rows from here on are worth keeping in the generation store, earlier ones are quick enough to recalculate
+     */
+    public static final long STORE_MIN_GENERATION = 1 << 12;
+
+    /**
+     * Gives the engine the last cell rows of tiles that have already been calculated
+     */
+    public interface ParentRows {
+
+        /**
+         * @param xId The tile's x ID
+         * @param yId The tile's y ID (may be -1, which never has a row)
+         * @return The tile's last cell row ({@link PackedCells packed}), or <code>null</code> if not available
+         */
+        long[] getLastCellRow(int xId, int yId);
+    }
+
+    private final GenerationSeeker seeker;
+    private final TileGeometry geometry;
+    private final TileRenderer renderer;
+    private final GenerationStore store;
+    private final CellStore cellStore;
+
+    private final int rule;
+    private final StepKernel kernel;
+    private final BlockStepKernel blockKernel; // null if the rule doesn't benefit
+
+    /**
+     * Constructor
+     *
+     * @param seeker   Calculates the starting state of bands whose parent tiles aren't available, also decides the rule
+     * @param geometry The tile geometry
+     * @param renderer The renderer, for the geometry's number of cells per edge
+     * @param store    Where deep cell rows are kept, or <code>null</code> for none
+     */
+    public BandEngine(GenerationSeeker seeker, TileGeometry geometry, TileRenderer renderer, GenerationStore store) {
+        this(seeker, geometry, renderer, store, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param seeker    Calculates the starting state of bands whose parent tiles aren't available, also decides the
+     *                  rule
+     * @param geometry  The tile geometry
+     * @param renderer  The renderer, for the geometry's number of cells per edge
+     * @param store     Where deep cell rows are kept, or <code>null</code> for none
+     * @param cellStore Where the cells of rendered tiles are kept, whatever the geometry, or <code>null</code> for none
+     */
+    public BandEngine(GenerationSeeker seeker, TileGeometry geometry, TileRenderer renderer, GenerationStore store,
+                      CellStore cellStore) {
+
+        if (renderer.getCellsPerEdge() != geometry.getCellsPerEdge()) {
+            throw new IllegalArgumentException("Renderer is for " + renderer.getCellsPerEdge()
+                    + " cells per edge, geometry has " + geometry.getCellsPerEdge());
+        }
+
+        this.seeker = seeker;
+        this.geometry = geometry;
+        this.renderer = renderer;
+        this.store = store;
+        this.cellStore = cellStore;
+
+        this.rule = seeker.getRule();
+        this.kernel = WolframRuleTable.getKernel(rule);
+        this.blockKernel = WolframRuleTable.getBlockKernel(rule);
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * @return The seeker, which can be kept for an engine with the same rule
+     */
+    public GenerationSeeker getSeeker() {
+        return seeker;
+    }
+
+    /**
+     * @return The tile geometry
+     */
+    public TileGeometry getGeometry() {
+        return geometry;
+    }
+
+    /**
+     * @return The renderer, which can be kept for an engine with the same geometry
+     */
+    public TileRenderer getRenderer() {
+        return renderer;
+    }
+
+    /**
+     * @return The generation store, or <code>null</code> if there isn't one
+     */
+    public GenerationStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return The cell store, or <code>null</code> if there isn't one
+     */
+    public CellStore getCellStore() {
+        return cellStore;
+    }
+
+    /**
+     * Calculate all the cells in a band of neighbouring tiles.  The last cell row of each tile is copied into a new
+     * array (the tile will want to keep it), and the tiles the sink wants are rendered.
+     *
+     * @param origin       The generation shown in the first cell row of tile row 0
+     * @param xMin         The x ID of the band's leftmost tile
+     * @param yId          The y ID of the band's tiles
+     * @param numTiles     The number of tiles in the band
+     * @param parents      The last cell rows of the tiles above the band (and one either side)
+     * @param lastCellRows Filled with the last cell row of each tile in the band
+     * @param sink         Where the rendered tiles go
+     */
+    public void calculateBand(long origin, int xMin, int yId, int numTiles, ParentRows parents,
+                              long[][] lastCellRows, PixelSink sink) {
+
+        // how many cells high/wide our square tiles measure
+        int cellsPerEdge = geometry.getCellsPerEdge();
+
+        // the strip of cells, from the first cell of tile xMin-1 to the last of tile xMax+1, packed 64 per word
+        int windowCells = cellsPerEdge * (numTiles + 2);
+        int words = PackedCells.wordsFor(windowCells);
+        int firstCell = (int) geometry.getFirstCell(xMin - 1); // relative to the seed cell
+
+        /* the 'starting state', then every generation of the strip (needed for rendering once all are done).
+         * These are the worker thread's own, reused from band to band, and may be bigger than we need */
+        ScratchArena scratch = ScratchArena.forCurrentThread();
+        long[] startCells = scratch.getStartRow(words);
+        long[][] rows = scratch.getRows(cellsPerEdge, words);
+
+        boolean isSeedRow = origin == 0 && yId == 0;
+
+        /* Copy the last cell row of each tile above the strip into the respective part of 'startCells' - this is
+         * our 'starting state' (the seed row has no starting state) */
+        if (!isSeedRow) {
+
+            boolean haveParents = true;
+            for (int p = 0; p < numTiles + 2 && haveParents; p++) {
+                long[] parentRow = parents.getLastCellRow(xMin - 1 + p, yId - 1);
+                if (parentRow != null) {
+                    PackedCells.copy(parentRow, 0, startCells, p * cellsPerEdge, cellsPerEdge);
+                } else {
+                    haveParents = false;
+                }
+            }
+
+            if (!haveParents) {
+                /* no parents to work from (top tile row, or the parents haven't been calculated), so seek the
+                 * generation before the band's first row directly */
+                long prevGen = geometry.getFirstGeneration(origin, yId) - 1;
+                if (!(cellStore != null && cellStore.read(rule, prevGen, firstCell, windowCells, startCells, 0))
+                        && !readStoredRows(prevGen, firstCell, cellsPerEdge, numTiles + 2, startCells)) {
+                    seeker.copyCells(prevGen, firstCell, windowCells, startCells, 0);
+                    writeStoredRows(prevGen, firstCell, cellsPerEdge, numTiles + 2, startCells);
+                }
+            }
+        }
+
+        long[] curGenCells = startCells;
+
+        // if no tile is to be rendered, only the last row is needed (see class doc)
+        boolean anyPixels = false;
+        for (int i = 0; i < numTiles && !anyPixels; i++) {
+            anyPixels = sink.wantsPixels(i);
+        }
+        boolean lastRowOnly = !anyPixels && blockKernel != null && cellsPerEdge > 1;
+
+        int row = 0;
+        while (row < cellsPerEdge) { // for each row of cells in the band
+
+            // rows that are only a step to the last one take turns with two arrays
+            long[] nextGenCells = !lastRowOnly ? rows[row] : curGenCells == rows[0] ? rows[1] : rows[0];
+
+            if (row == 0 && isSeedRow) {
+
+               /* For all our rules, we start our very first row of cells, in every tile on the first row (y=0)
+                * to be false(off), except for one cell right in the middle of tile x=0.  This is our CA starting
+                * data.
+                *
+                * If the strip includes the middle of tile x=0, we set that cell to true.  This includes strips
+                * that only have x=0 as their extra tile either side, as the tiles next to it need to see it. */
+                Arrays.fill(nextGenCells, 0, words, 0L);
+                int seedIdx = -firstCell;
+                if (seedIdx >= 0 && seedIdx < windowCells) {
+                    PackedCells.set(nextGenCells, seedIdx);
+                }
+                row++;
+
+            } else if (lastRowOnly && cellsPerEdge - row >= blockKernel.getGenerations()) {
+                /* skip over the rows nobody will see, several generations per pass.  The error from the ends of
+                 * the strip still spreads one cell per generation, so still stays out of the band's tiles */
+                PackedCells.step(blockKernel, curGenCells, nextGenCells, windowCells);
+                row += blockKernel.getGenerations();
+
+            } else {
+                /* for all other cell rows in all other tiles, step the whole strip a word (64 cells) at a
+                 * time. The cells at either end can't be calculated, and are left off (see class doc).  Any
+                 * words beyond the strip left over from earlier use only affect the end cells, so are harmless */
+                PackedCells.step(kernel, curGenCells, nextGenCells, windowCells);
+                row++;
+            }
+
+            /* the 'next' generation becomes the current, and we loop. Each generation has its own array (or shares
+             * one of two), so nothing is copied or allocated per generation */
+            curGenCells = nextGenCells;
+        }
+
+        // slice the strip up into the band's tiles
+        long firstGen = geometry.getFirstGeneration(origin, yId);
+        long lastGen = firstGen + cellsPerEdge - 1;
+        for (int i = 0; i < numTiles; i++) {
+
+            int cellPos = (i + 1) * cellsPerEdge;
+
+            // regardless of whether we render or not, we keep a copy of the last cell row
+            long[] lastCellRow = new long[PackedCells.wordsFor(cellsPerEdge)];
+            PackedCells.copy(curGenCells, cellPos, lastCellRow, 0, cellsPerEdge);
+            lastCellRows[i] = lastCellRow;
+
+            // deep enough to be worth having on disk for next time
+            writeStoredRows(lastGen, firstCell + cellPos, cellsPerEdge, 1, lastCellRow);
+
+            // if needed, render each row of the tile's cells into the pixels, and hand them over
+            if (anyPixels && sink.wantsPixels(i)) {
+
+                int[] pixels = scratch.getPixels();
+                for (int r = 0; r < cellsPerEdge; r++) {
+                    renderer.renderRow(r, rows[r], cellPos, pixels);
+                }
+                sink.setPixels(i, pixels, TileRenderer.SIZE);
+
+                // likely to be viewed again, maybe at another zoom
+                if (cellStore != null) {
+                    cellStore.writeRows(rule, firstGen, cellsPerEdge, firstCell + cellPos, cellsPerEdge, rows, cellPos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate a tile from the cell store alone, if it has the tile's cells: all of them if the sink wants pixels,
+     * otherwise just the last row.
+     *
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param xId    The tile's x ID
+     * @param yId    The tile's y ID
+     * @param sink   Where the rendered tile goes, as index 0
+     * @return The tile's last cell row ({@link PackedCells packed}), or <code>null</code> if the store doesn't have
+     *         the cells (in which case nothing is rendered)
+     */
+    public long[] calculateStoredTile(long origin, int xId, int yId, PixelSink sink) {
+
+        if (cellStore == null) {
+            return null;
+        }
+
+        int cellsPerEdge = geometry.getCellsPerEdge();
+        int firstCell = (int) geometry.getFirstCell(xId);
+        long firstGen = geometry.getFirstGeneration(origin, yId);
+        boolean pixels = sink.wantsPixels(0);
+
+        // just the last row if that's all that's wanted
+        int firstRow = pixels ? 0 : cellsPerEdge - 1;
+        if (!cellStore.contains(rule, firstGen + firstRow, cellsPerEdge - firstRow, firstCell, cellsPerEdge)) {
+            return null;
+        }
+
+        ScratchArena scratch = ScratchArena.forCurrentThread();
+        long[][] rows = scratch.getRows(cellsPerEdge, PackedCells.wordsFor(cellsPerEdge));
+        for (int r = firstRow; r < cellsPerEdge; r++) {
+            if (!cellStore.read(rule, firstGen + r, firstCell, cellsPerEdge, rows[r], 0)) {
+                return null; // evicted since
+            }
+        }
+
+        if (pixels) {
+            int[] px = scratch.getPixels();
+            for (int r = 0; r < cellsPerEdge; r++) {
+                renderer.renderRow(r, rows[r], 0, px);
+            }
+            sink.setPixels(0, px, TileRenderer.SIZE);
+        }
+
+        long[] lastCellRow = new long[PackedCells.wordsFor(cellsPerEdge)];
+        PackedCells.copy(rows[cellsPerEdge - 1], 0, lastCellRow, 0, cellsPerEdge);
+        return lastCellRow;
+    }
+
+    /**
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param xId    The tile's x ID
+     * @param yId    The tile's y ID
+     * @return <code>true</code> if all of the tile's cells are in the cell store (for now), so it can be rendered
+     *         with {@link #calculateStoredTile(long, int, int, PixelSink)} rather than from its parents
+     */
+    public boolean isStored(long origin, int xId, int yId) {
+
+        int cellsPerEdge = geometry.getCellsPerEdge();
+        return cellStore != null && cellStore.contains(rule, geometry.getFirstGeneration(origin, yId), cellsPerEdge,
+                (int) geometry.getFirstCell(xId), cellsPerEdge);
+    }
+
+    /**
+     * Create the last cell row of a tile that's entirely outside the cone (see
+     * {@link TileGeometry#isOutsideCone(long, int, int)}), which is all background.
+     *
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param yId    The y ID of the tile
+     * @return The packed row
+     */
+    public long[] createBackgroundRow(long origin, int yId) {
+
+        int cellsPerEdge = geometry.getCellsPerEdge();
+        long[] lastCellRow = new long[PackedCells.wordsFor(cellsPerEdge)];
+        PackedCells.fill(lastCellRow, 0, cellsPerEdge,
+                WolframRuleTable.getBackgroundState(rule, geometry.getLastGeneration(origin, yId)));
+        return lastCellRow;
+    }
+
+    /**
+     * Render a tile's worth of background rows, as shown by a tile entirely outside the cone.
+     *
+     * @param firstGen The generation shown in the tile's first cell row
+     * @param pixels   The pixel buffer to render to, see {@link TileRenderer#createPixelBuffer()}
+     */
+    public void renderBackground(long firstGen, int[] pixels) {
+
+        int cellsPerEdge = geometry.getCellsPerEdge();
+        long[] cells = ScratchArena.forCurrentThread().getStartRow(PackedCells.wordsFor(cellsPerEdge));
+
+        for (int row = 0; row < cellsPerEdge; row++) {
+            PackedCells.fill(cells, 0, cellsPerEdge, WolframRuleTable.getBackgroundState(rule, firstGen + row));
+            renderer.renderRow(row, cells, 0, pixels);
+        }
+    }
+
+    /**
+     * @return A short summary of the engine's state, for debug summaries
+     */
+    public String getDebugSummary() {
+        return seeker.getDebugSummary() + (store == null ? "" : "," + store.getDebugSummary())
+                + (cellStore == null ? "" : "," + cellStore.getDebugSummary());
+    }
+
+    /* Try to fill the starting state of a strip from the generation store, as the last cell rows of the tiles
+     * above it (whether stored by those tiles, or by an earlier seek).  Not worth it if the seeker is direct */
+    private boolean readStoredRows(long generation, int firstCell, int cellsPerEdge, int numTiles, long[] dst) {
+
+        if (store == null || generation < STORE_MIN_GENERATION || seeker.isDirect()) {
+            return false;
+        }
+
+        for (int p = 0; p < numTiles; p++) {
+            int pos = p * cellsPerEdge;
+            if (!store.read(rule, generation, firstCell + pos, cellsPerEdge, dst, pos)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Store the tile sized rows of a strip of cells, if they're deep enough (and the seeker slow enough) to be worth it
+    private void writeStoredRows(long generation, int firstCell, int cellsPerEdge, int numTiles, long[] src) {
+
+        if (store == null || generation < STORE_MIN_GENERATION || seeker.isDirect()) {
+            return;
+        }
+
+        for (int p = 0; p < numTiles; p++) {
+            int pos = p * cellsPerEdge;
+            store.write(rule, generation, firstCell + pos, cellsPerEdge, src, pos);
+        }
+    }
+
+}
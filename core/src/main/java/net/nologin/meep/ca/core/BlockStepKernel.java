@@ -0,0 +1,136 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Advances a {@link PackedCells packed} row of cells by <i>k</i> generations in a single pass, rather than the
+ * <i>k</i> passes of a {@link StepKernel}, for when the generations in between aren't wanted (eg seeking).
+ * <br/><br/>
+ * After <i>k</i> generations, a block of 8 cells depends only on the <i>2k+8</i> cells from <i>k</i> to its left to
+ * <i>k</i> to its right.  So a table with an entry for every one of the <i>2<sup>2k+8</sup></i> possible
+ * neighbourhoods gives the block <i>k</i> generations later, and a word (8 blocks) takes 8 lookups:
+ * <pre>
+ *      cells now:          [ k cells ][ 8 cell block ][ k cells ]      -> table index
+ *      k generations on:              [ 8 cell block ]                 &lt;- table entry
+ * </pre>
+ * The table takes <i>2<sup>2k+8</sup></i> bytes, so <i>k</i> is limited to {@link #MAX_GENERATIONS} (a 1MB
+ * table).  Tables are built on first use, and kept by {@link WolframRuleTable#getBlockKernel(int, int)}.
+ * <br/><br/>
+ * Just like {@link StepKernel}, cells beyond the ends of the row are taken to be off, so the <i>k</i> cells at each
+ * end of the row can't be calculated.  Instances are immutable, and safe for use from multiple threads.
+ *
+ * @see WolframRuleTable#getBlockKernel(int, int)
+ */
+public final class BlockStepKernel {
+
+    /**
+     * The most generations a kernel can advance per pass (its table being <code>2^(2*MAX_GENERATIONS+8)</code> bytes)
+     */
+    public static final int MAX_GENERATIONS = 6;
+
+    private final int rule, generations;
+    private final int mask;
+
+    // the block 'generations' on, for each neighbourhood
+    private final byte[] table;
+
+    /**
+     * Constructor, building the table
+     *
+     * @param rule        The rule number (0-255)
+     * @param generations The number of generations to advance per pass, 1 to {@link #MAX_GENERATIONS}
+     */
+    BlockStepKernel(int rule, int generations) {
+
+        if (generations < 1 || generations > MAX_GENERATIONS) {
+            throw new IllegalArgumentException("Generations per pass must be between 1 and " + MAX_GENERATIONS);
+        }
+
+        this.rule = rule;
+        this.generations = generations;
+
+        int bits = 2 * generations + 8;
+        this.mask = (1 << bits) - 1;
+        this.table = new byte[1 << bits];
+
+        /* Step every neighbourhood at once would be nice, but they're only ~20 bits: step each as a (mostly empty)
+         * word.  Its cells shrink by one at each end per generation, leaving the 8 cell block */
+        StepKernel kernel = new StepKernel.Generic(rule);
+        for (int n = 0; n < table.length; n++) {
+            long cells = n;
+            for (int g = 0; g < generations; g++) {
+                cells = kernel.next(cells << 1, cells, cells >>> 1);
+            }
+            table[n] = (byte) (cells >>> generations);
+        }
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * @return The number of generations advanced per pass
+     */
+    public int getGenerations() {
+        return generations;
+    }
+
+    /**
+     * @return The size of the kernel's table
+     */
+    public int getTableBytes() {
+        return table.length;
+    }
+
+    /**
+     * Calculate the state <i>k</i> generations on of words <code>from</code> (inclusive) to <code>to</code>
+     * (exclusive).  The <i>k</i> cells beyond either end of the range are taken from the adjacent words of
+     * <code>src</code> if they exist, otherwise they are considered off.  Words in <code>dst</code> outside of the
+     * range are untouched.
+     *
+     * @param src  The current generation
+     * @param dst  Where the generation <i>k</i> on should be written (must not be the same array as <code>src</code>)
+     * @param from The index of the first word to calculate
+     * @param to   The index after the last word to calculate
+     */
+    public void step(long[] src, long[] dst, int from, int to) {
+
+        int k = generations;
+        int last = src.length - 1;
+
+        long prev = from > 0 ? src[from - 1] : 0;
+        long cur = src[from];
+
+        for (int w = from; w < to; w++) {
+
+            long next = w < last ? src[w + 1] : 0;
+
+            // the first block borrows its left neighbours from the previous word
+            long out = table[(int) ((cur << k) | (prev >>> (64 - k))) & mask] & 0xFFL;
+
+            // the middle blocks are within the word, except the rightmost neighbours of the last few
+            for (int b = 8; b < 64; b += 8) {
+                int shift = b - k;
+                long n = cur >>> shift;
+                if (shift + 2 * k + 8 > 64) {
+                    n |= next << (64 - shift);
+                }
+                out |= (table[(int) n & mask] & 0xFFL) << b;
+            }
+
+            dst[w] = out;
+            prev = cur;
+            cur = next;
+        }
+    }
+
+}
@@ -0,0 +1,336 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory store of every calculated cell, in absolute coordinates (generation, and cell relative to the center
+ * cell, see {@link GenerationSource}), so that the cells outlive the tile grid they were calculated for.  After a zoom
+ * change, the tiles of the new grid can be rendered from the store wherever it covers them, rather than calculated
+ * all over again.
+ * <br/><br/>
+ * Cells are kept in square blocks of {@link #BLOCK_CELLS} cells by {@link #BLOCK_CELLS} generations, aligned to
+ * multiples of {@link #BLOCK_CELLS}, each block row being one {@link PackedCells packed} word.  Tiles don't line up
+ * with the blocks at most zoom levels, so each block row also has a word of flags saying which of its cells have
+ * been written:
+ * <pre>
+ *      key:    rule, generation / 64, cell / 64     (rounded down)
+ *      block:  cells[64]   one word per generation, cell (cell % 64) is bit (cell % 64)
+ *              valid[64]   the cells of each word that have been written
+ * </pre>
+ * Once every cell of a block has been written, the block is handed to the {@link BlockListener} if there is one (eg
+ * the {@link DensityPyramid}, to build overviews from cells already calculated).
+ * <br/><br/>
+ * Blocks are evicted least recently used first once the store holds more than its maximum.  Unlike the
+ * {@link GenerationStore}, which keeps a tile's worth of the odd deep row across restarts, this keeps whole tiles'
+ * worth of rows, but only for as long as the process.  Instances are safe for use from multiple threads.
+ *
+ * @see BandEngine
+ */
+public class CellStore {
+
+    /**
+     * The width and height of a block, in cells and generations
+     */
+    public static final int BLOCK_CELLS = 64;
+
+    /**
+     * The default most bytes of cells (and their flags) to keep
+     */
+    public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final int BLOCK_BYTES = 2 * BLOCK_CELLS * 8;
+
+    /**
+     * Told about each block of cells as it's completed
+     */
+    public interface BlockListener {
+
+        /**
+         * Called once every cell of a block has been written, with the store's lock held, so should be quick and not
+         * use the store.
+         *
+         * @param rule      The rule number
+         * @param firstGen  The first generation of the block, a multiple of {@link #BLOCK_CELLS}
+         * @param firstCell The first cell of the block, relative to the center cell, a multiple of
+         *                  {@link #BLOCK_CELLS}
+         * @param cells     The block's cells, one word per generation (cell <code>firstCell+i</code> being bit
+         *                  <i>i</i>), only valid during the call
+         */
+        void onBlockComplete(int rule, long firstGen, int firstCell, long[] cells);
+    }
+
+    private final int maxBlocks;
+
+    // least recently used first. Guarded by 'this'.
+    private final LinkedHashMap<Key, Block> blocks;
+    private final Key lookupKey = new Key(0, 0, 0); // reused for lookups, so they don't allocate
+
+    // guarded by 'this'
+    private BlockListener listener;
+
+    // stats for the debug summary
+    private long numHits = 0, numMisses = 0, numWrites = 0, numEvictions = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxBytes The most bytes of cells to keep, see {@link #DEFAULT_MAX_BYTES}
+     */
+    public CellStore(int maxBytes) {
+
+        this.maxBlocks = Math.max(1, maxBytes / BLOCK_BYTES);
+        this.blocks = new LinkedHashMap<Key, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Block> eldest) {
+                if (size() > maxBlocks) {
+                    numEvictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param listener Told about each block as it's completed, or <code>null</code> for none
+     */
+    public synchronized void setBlockListener(BlockListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Store the cells of a row, in addition to any already stored for the generation
+     *
+     * @param rule       The rule number
+     * @param generation The generation
+     * @param firstCell  The first cell of the row, relative to the center cell
+     * @param numCells   The number of cells in the row
+     * @param src        The packed row to copy from
+     * @param srcPos     The index in <code>src</code> of the first cell
+     */
+    public synchronized void write(int rule, long generation, int firstCell, int numCells, long[] src, int srcPos) {
+        writeRow(rule, generation, firstCell, numCells, src, srcPos);
+    }
+
+    /**
+     * Store the cells of consecutive generations, eg all the rows of a tile, in addition to any already stored.  The
+     * same as writing each row in turn, but takes the store's lock just the once.
+     *
+     * @param rule      The rule number
+     * @param firstGen  The generation of the first row
+     * @param numRows   The number of rows (generations)
+     * @param firstCell The first cell of each row, relative to the center cell
+     * @param numCells  The number of cells in each row
+     * @param rows      The packed rows to copy from, <code>rows[i]</code> being generation <code>firstGen+i</code>
+     * @param srcPos    The index in each row of the first cell
+     */
+    public synchronized void writeRows(int rule, long firstGen, int numRows, int firstCell, int numCells,
+                                       long[][] rows, int srcPos) {
+
+        int end = firstCell + numCells;
+        for (int r = 0; r < numRows; ) {
+
+            // the rows in the same blocks, looked up once for all of them
+            long generation = firstGen + r;
+            int numBlockRows = Math.min(BLOCK_CELLS - (int) (generation & (BLOCK_CELLS - 1)), numRows - r);
+            for (int c = firstCell; c < end; ) {
+
+                int offset = c & (BLOCK_CELLS - 1);
+                int n = Math.min(BLOCK_CELLS - offset, end - c);
+
+                Block block = getBlock(rule, generation, c);
+                for (int i = 0; i < numBlockRows; i++) {
+                    writeBlockRow(block, rule, generation + i, c, n, rows[r + i], srcPos + (c - firstCell));
+                }
+                c += n;
+            }
+            r += numBlockRows;
+        }
+        numWrites += numRows;
+    }
+
+    // see write(), the caller holding the lock
+    private void writeRow(int rule, long generation, int firstCell, int numCells, long[] src, int srcPos) {
+
+        int end = firstCell + numCells;
+        for (int c = firstCell; c < end; ) {
+
+            int n = Math.min(BLOCK_CELLS - (c & (BLOCK_CELLS - 1)), end - c);
+            writeBlockRow(getBlock(rule, generation, c), rule, generation, c, n, src, srcPos + (c - firstCell));
+            c += n;
+        }
+        numWrites++;
+    }
+
+    // the block a cell is in, created if necessary, the caller holding the lock
+    private Block getBlock(int rule, long generation, int cell) {
+
+        Block block = blocks.get(lookupKey.set(rule, generation, cell));
+        if (block == null) {
+            block = new Block();
+            blocks.put(new Key(rule, generation, cell), block);
+        }
+        return block;
+    }
+
+    // copy 'n' cells of a row into its block, from 'cell' on, the caller holding the lock
+    private void writeBlockRow(Block block, int rule, long generation, int cell, int n, long[] src, int srcPos) {
+
+        // the block's cells are one packed row of rows, so can be copied straight in
+        int row = (int) (generation & (BLOCK_CELLS - 1)), offset = cell & (BLOCK_CELLS - 1);
+        PackedCells.copy(src, srcPos, block.cells, row * BLOCK_CELLS + offset, n);
+        if (block.valid[row] != -1L && (block.valid[row] |= mask(offset, n)) == -1L
+                && ++block.numFullRows == BLOCK_CELLS && listener != null) {
+            listener.onBlockComplete(rule, generation & ~(BLOCK_CELLS - 1), cell & ~(BLOCK_CELLS - 1), block.cells);
+        }
+    }
+
+    /**
+     * Copy the cells of a row, if every one of them is stored
+     *
+     * @param rule       The rule number
+     * @param generation The generation
+     * @param firstCell  The first cell of the row, relative to the center cell
+     * @param numCells   The number of cells in the row
+     * @param dst        The packed row to copy to, which may be partly written even if the row isn't all there
+     * @param dstPos     The index in <code>dst</code> of the first cell
+     * @return <code>true</code> if the whole row was found (and copied)
+     */
+    public synchronized boolean read(int rule, long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        int row = (int) (generation & (BLOCK_CELLS - 1));
+        int end = firstCell + numCells;
+        for (int c = firstCell; c < end; ) {
+
+            int offset = c & (BLOCK_CELLS - 1);
+            int n = Math.min(BLOCK_CELLS - offset, end - c);
+
+            Block block = blocks.get(lookupKey.set(rule, generation, c));
+            long mask = mask(offset, n);
+            if (block == null || (block.valid[row] & mask) != mask) {
+                numMisses++;
+                return false;
+            }
+
+            PackedCells.copy(block.cells, row * BLOCK_CELLS + offset, dst, dstPos + (c - firstCell), n);
+            c += n;
+        }
+        numHits++;
+        return true;
+    }
+
+    /**
+     * Check whether a rectangle of cells is all stored.  Counts as a use of the blocks, as they're likely to be read
+     * next, though they may of course be evicted before then.
+     *
+     * @param rule           The rule number
+     * @param firstGen       The first generation
+     * @param numGenerations The number of generations
+     * @param firstCell      The first cell of each row, relative to the center cell
+     * @param numCells       The number of cells in each row
+     * @return <code>true</code> if every cell is stored
+     */
+    public synchronized boolean contains(int rule, long firstGen, int numGenerations, int firstCell, int numCells) {
+
+        int end = firstCell + numCells;
+        for (long g = firstGen; g < firstGen + numGenerations; ) {
+
+            // the generations in the same blocks, each block looked up once for all of them
+            int firstRow = (int) (g & (BLOCK_CELLS - 1));
+            int endRow = (int) Math.min(BLOCK_CELLS, firstRow + (firstGen + numGenerations - g));
+            for (int c = firstCell; c < end; ) {
+
+                int offset = c & (BLOCK_CELLS - 1);
+                int n = Math.min(BLOCK_CELLS - offset, end - c);
+
+                Block block = blocks.get(lookupKey.set(rule, g, c));
+                if (block == null) {
+                    return false;
+                }
+                long mask = mask(offset, n);
+                for (int row = firstRow; row < endRow; row++) {
+                    if ((block.valid[row] & mask) != mask) {
+                        return false;
+                    }
+                }
+                c += n;
+            }
+            g += endRow - firstRow;
+        }
+        return true;
+    }
+
+    /**
+     * Remove every stored cell
+     */
+    public synchronized void clear() {
+        blocks.clear();
+    }
+
+    /**
+     * @return A short summary of the store's contents and stats, for debug summaries
+     */
+    public synchronized String getDebugSummary() {
+        return String.format("cells=%dK,hit=%d,miss=%d,wr=%d,ev=%d", blocks.size() * BLOCK_BYTES / 1024, numHits,
+                numMisses, numWrites, numEvictions);
+    }
+
+    // the bits of a word from 'offset', 'n' long
+    private static long mask(int offset, int n) {
+        return (n == 64 ? -1L : (1L << n) - 1) << offset;
+    }
+
+    /* BLOCK_CELLS generations of BLOCK_CELLS cells */
+    private static class Block {
+
+        final long[] cells = new long[BLOCK_CELLS];
+        final long[] valid = new long[BLOCK_CELLS];
+        int numFullRows = 0; // rows whose cells are all valid
+    }
+
+    // which block a cell is in
+    private static class Key {
+
+        int rule;
+        long genBlock;
+        int cellBlock;
+
+        Key(int rule, long generation, int cell) {
+            set(rule, generation, cell);
+        }
+
+        // only for the lookup key, keys in the map are never changed
+        Key set(int rule, long generation, int cell) {
+            this.rule = rule;
+            this.genBlock = generation >> 6;
+            this.cellBlock = cell >> 6;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = rule;
+            h = h * 31 + (int) (genBlock ^ (genBlock >>> 32));
+            return h * 31 + cellBlock;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rule == other.rule && genBlock == other.genBlock && cellBlock == other.cellBlock;
+        }
+    }
+
+}
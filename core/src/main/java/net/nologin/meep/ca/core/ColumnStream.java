@@ -0,0 +1,426 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The cells of a fixed set of columns, generation after generation, as a stream of packed bits.  The center column
+ * of rule 30 makes a reproducible pseudo-random source:
+ * <pre>
+ *      ColumnStream random = ColumnStream.centerColumn(30, 0, 1 &lt;&lt; 20);     // generations 0 to 2^20-1
+ *      byte[] buf = new byte[4096];
+ *      random.read(buf);                                                     // the first 32768 of them
+ * </pre>
+ * Bit <i>k</i> of the stream is column <code>columns[k % columns.length]</code> of generation
+ * <code>startGeneration + k / columns.length</code>.  The bits are packed least significant first, just like
+ * {@link PackedCells}, eight to a byte ({@link #read(byte[], int, int)}) or 64 to a long
+ * ({@link #read(long[], int, int)}).  If the stream doesn't end on a whole byte (or long), the last one is padded
+ * with zeros.
+ * <br/><br/>
+ * Only the cells that can affect the columns are calculated: those within the cone of the seed (everything outside
+ * it being background), and within <i>n</i> cells of the columns when <i>n</i> generations remain.  For the center
+ * column of a bounded stream from generation 0 that's a diamond, half the cells of the seed's cone.  They're stepped
+ * a word (64 cells) at a time by the rule's {@link StepKernel}.  Still, every generation costs the width of the cone,
+ * so a stream slows down the deeper it goes.  Every generation is output, so only generations skipped over (see
+ * below) can be stepped several at a time with a {@link BlockStepKernel}.
+ * <br/><br/>
+ * The first generation of the stream, and any generation skipped to by {@link #skipGenerations(long)}, is seeked
+ * from a {@link GenerationCheckpoints}, which calculates it from its nearest checkpoint.  While the stream steps the
+ * seed's whole cone (it's unbounded, or far from its end), it hands generations back to the checkpoints as they
+ * fall on the checkpoint interval, so later streams and skips of the same checkpoints start from closer by.
+ * <br/><br/>
+ * A stream is for use by a single thread (its checkpoints may be shared).
+ *
+ * @see GenerationStream
+ */
+public class ColumnStream extends InputStream {
+
+    /**
+     * The number of generations of a stream that never ends (until memory or
+     * {@link GenerationCheckpoints#getMaxGeneration()} runs out)
+     */
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    // the bits buffered at once, at least one generation's worth
+    private static final int BUFFER_BITS = 1 << 16;
+
+    // skips shorter than this are stepped over rather than seeked
+    private static final int MIN_SEEK_GENERATIONS = 4096;
+
+    private final GenerationCheckpoints checkpoints;
+    private final int rule;
+    private final StepKernel kernel;
+    private final BlockStepKernel blockKernel; // null if the rule doesn't benefit
+    private final int[] columns;
+    private final int colMin, colMax;
+    private final int seedFirst, seedLast;
+    private final long startGeneration, endGeneration; // end is exclusive
+
+    /* the cells being stepped, cell c at index c + offset, holding generation 'generation' (the next to be output).
+     * Only cells between the range's ends (see getLeft() and getRight()) are valid, and none if 'valid' is false */
+    private long[] cur, next;
+    private int offset;
+    private long generation;
+    private boolean background, valid;
+
+    /* the output bits, bits[0] being stream bit 'bitsBase'.  The consumer is at 'bitsPos', and the bits up to
+     * 'bitsLen' (those of the generations before 'generation') are calculated */
+    private long[] bits, spare;
+    private long bitsBase;
+    private int bitsPos, bitsLen;
+
+    private ColumnStream(GenerationCheckpoints checkpoints, int[] columns, long startGeneration, long numGenerations) {
+
+        if (columns.length < 1) {
+            throw new IllegalArgumentException("No columns");
+        }
+        if (startGeneration < 0 || startGeneration > checkpoints.getMaxGeneration() || numGenerations < 0) {
+            throw new IllegalArgumentException("Cannot stream " + numGenerations + " generations from "
+                    + startGeneration);
+        }
+
+        this.checkpoints = checkpoints;
+        this.rule = checkpoints.getRule();
+        this.kernel = WolframRuleTable.getKernel(rule);
+        this.blockKernel = WolframRuleTable.getBlockKernel(rule);
+        this.columns = columns.clone();
+        this.seedFirst = checkpoints.getSeedFirstCell();
+        this.seedLast = checkpoints.getSeedLastCell();
+        this.startGeneration = startGeneration;
+        this.endGeneration = numGenerations > UNBOUNDED - startGeneration ? UNBOUNDED
+                : startGeneration + numGenerations;
+
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+        for (int col : columns) {
+            min = Math.min(min, col);
+            max = Math.max(max, col);
+        }
+        this.colMin = min;
+        this.colMax = max;
+
+        int words = (Math.max(BUFFER_BITS, columns.length) >>> 6) + 2;
+        this.bits = new long[words];
+        this.spare = new long[words];
+
+        seek(startGeneration);
+    }
+
+    /**
+     * Create a stream of the center column of a rule, starting from the single center cell that's on in generation 0
+     * (just like the app)
+     *
+     * @param rule            The rule number (0-255)
+     * @param startGeneration The generation of the first bit
+     * @param numGenerations  The number of generations in the stream, or {@link #UNBOUNDED}
+     * @return The stream
+     */
+    public static ColumnStream centerColumn(int rule, long startGeneration, long numGenerations) {
+        return new ColumnStream(new GenerationCheckpoints(rule), new int[]{0}, startGeneration, numGenerations);
+    }
+
+    /**
+     * Create a stream of any set of columns, from any seed
+     *
+     * @param checkpoints     The rule and seed, and where the first generation is seeked from.  May be shared with
+     *                        other streams (of any columns), and gains checkpoints as the stream goes.
+     * @param columns         The columns, relative to the center cell, in the order their bits should appear in each
+     *                        generation (a column may appear more than once)
+     * @param startGeneration The generation of the first bit
+     * @param numGenerations  The number of generations in the stream, or {@link #UNBOUNDED}
+     * @return The stream
+     */
+    public static ColumnStream create(GenerationCheckpoints checkpoints, int[] columns, long startGeneration,
+                                      long numGenerations) {
+        return new ColumnStream(checkpoints, columns, startGeneration, numGenerations);
+    }
+
+    /**
+     * @return The number of bits per generation
+     */
+    public int getNumColumns() {
+        return columns.length;
+    }
+
+    /**
+     * @return The generation of the next bit to be read (the stream's end if there are none)
+     */
+    public long getGeneration() {
+        return startGeneration + (bitsBase + bitsPos) / columns.length;
+    }
+
+    /**
+     * Skip to the first bit of the generation <code>n</code> after {@link #getGeneration()}, dropping any bits of the
+     * current generation not yet read.  Short skips are stepped over, longer ones seek from the checkpoints.
+     *
+     * @param n The number of generations to skip
+     */
+    public void skipGenerations(long n) {
+
+        if (n < 0) {
+            throw new IllegalArgumentException("Cannot skip " + n + " generations");
+        }
+
+        long target = Math.min(getGeneration() + n, endGeneration);
+        long targetBit = (target - startGeneration) * columns.length;
+
+        // already buffered
+        if (targetBit <= bitsBase + bitsLen) {
+            bitsPos = (int) (targetBit - bitsBase);
+            return;
+        }
+
+        bitsBase = targetBit;
+        bitsPos = 0;
+        bitsLen = 0;
+
+        if (target - generation < MIN_SEEK_GENERATIONS) {
+            while (generation < target) {
+                step(blockKernel != null && target - generation >= blockKernel.getGenerations()
+                        ? blockKernel.getGenerations() : 1);
+            }
+        } else {
+            seek(target);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        if (!ensureBits(8)) {
+            return -1;
+        }
+        int n = Math.min(8, bitsLen - bitsPos);
+        int val = (int) PackedCells.getWord(bits, bitsPos) & ((1 << n) - 1);
+        bitsPos += n;
+        return val;
+    }
+
+    @Override
+    public int read(byte[] dst, int off, int len) throws IOException {
+
+        int n = 0;
+        while (n < len && ensureBits(64)) {
+
+            int avail = bitsLen - bitsPos;
+            long word = PackedCells.getWord(bits, bitsPos);
+            if (avail < 64) {
+                word &= (1L << avail) - 1;
+            }
+
+            int bytes = Math.min(len - n, Math.min(8, (avail + 7) >>> 3));
+            for (int i = 0; i < bytes; i++) {
+                dst[off + n++] = (byte) (word >>> (i << 3));
+            }
+            bitsPos += Math.min(avail, bytes << 3);
+        }
+        return n == 0 && len > 0 ? -1 : n;
+    }
+
+    /**
+     * Read bits 64 at a time
+     *
+     * @param dst Where to put the bits
+     * @param off The index in <code>dst</code> of the first long
+     * @param len The most longs to read
+     * @return The number of longs read, or -1 if the stream has ended
+     * @throws IOException If the stream goes beyond the generations that can be calculated
+     */
+    public int read(long[] dst, int off, int len) throws IOException {
+
+        int n = 0;
+        while (n < len && ensureBits(64)) {
+
+            int avail = bitsLen - bitsPos;
+            long word = PackedCells.getWord(bits, bitsPos);
+            if (avail < 64) {
+                word &= (1L << avail) - 1;
+            }
+            dst[off + n++] = word;
+            bitsPos += Math.min(avail, 64);
+        }
+        return n == 0 && len > 0 ? -1 : n;
+    }
+
+    @Override
+    public int available() {
+        return (bitsLen - bitsPos) >>> 3;
+    }
+
+    // try to have at least 'n' bits buffered, returning false if there are none left at all
+    private boolean ensureBits(int n) throws IOException {
+
+        if (bitsLen - bitsPos < n && generation < endGeneration) {
+
+            // move what's left to the start of the buffer, and clear the rest of its last word
+            int remaining = bitsLen - bitsPos;
+            PackedCells.copy(bits, bitsPos, spare, 0, remaining);
+            if ((remaining & 63) != 0) {
+                spare[remaining >>> 6] &= (1L << remaining) - 1;
+            }
+            long[] swap = bits;
+            bits = spare;
+            spare = swap;
+            bitsBase += bitsPos;
+            bitsPos = 0;
+            bitsLen = remaining;
+
+            // then as many whole generations as fit
+            int capacity = (bits.length - 1) << 6;
+            while (bitsLen + columns.length <= capacity && generation < endGeneration) {
+                if (generation >= checkpoints.getMaxGeneration()) {
+                    throw new IOException("Generation " + generation + " out of range");
+                }
+                output();
+                step(1);
+            }
+        }
+        return bitsLen > bitsPos;
+    }
+
+    // append the columns of the current generation to the buffer
+    private void output() {
+
+        long left = getLeft(generation), right = getRight(generation);
+        for (int col : columns) {
+
+            // the columns are always within the range, unless they're outside the seed's cone
+            boolean on = valid && col >= left && col <= right ? PackedCells.get(cur, col + offset) : background;
+
+            if ((bitsLen & 63) == 0) {
+                bits[bitsLen >>> 6] = 0;
+            }
+            if (on) {
+                bits[bitsLen >>> 6] |= 1L << bitsLen;
+            }
+            bitsLen++;
+        }
+    }
+
+    /* The range of cells needed at a generation: within the seed's cone, and within reach of the columns before
+     * the stream ends (so a range no longer reached by the cone is empty).  The range at the next generation is the
+     * one before it less a cell at each end, except where the cone grows, where the new cells are background. */
+    private long getLeft(long g) {
+        return endGeneration == UNBOUNDED ? seedFirst - g : Math.max(seedFirst - g, colMin - (endGeneration - 1 - g));
+    }
+
+    private long getRight(long g) {
+        return endGeneration == UNBOUNDED ? seedLast + g : Math.min(seedLast + g, colMax + (endGeneration - 1 - g));
+    }
+
+    // start from a generation seeked from the checkpoints
+    private void seek(long target) {
+
+        generation = target;
+        background = WolframRuleTable.getBackgroundState(rule, target);
+        valid = false;
+
+        long left = getLeft(target), right = getRight(target);
+        if (left > right) {
+            return;
+        }
+
+        ensureCapacity((int) left, (int) right);
+        PackedCells.fill(cur, 0, cur.length << 6, background);
+        checkpoints.copyCells(target, (int) left, (int) (right - left + 1), cur, (int) left + offset);
+        valid = true;
+    }
+
+    /* calculate the range 'k' generations on, which is the range now less 'k' cells at each end (where the cone
+     * doesn't limit it), so the error from the stale cells outside the range now doesn't reach it */
+    private void step(int k) {
+
+        long g = generation + k;
+        long left = getLeft(g), right = getRight(g);
+
+        boolean nextBackground = WolframRuleTable.getBackgroundState(rule, g);
+        if (left > right) {
+            generation = g;
+            background = nextBackground;
+            valid = false;
+            return;
+        }
+
+        ensureCapacity((int) left - 1, (int) right + 1);
+        int from = ((int) left + offset) >>> 6;
+        int to = (((int) right + offset) >>> 6) + 1;
+
+        // nothing was needed of this generation, so whatever is now must be outside the cone
+        if (!valid) {
+            PackedCells.fill(cur, (from - 1) << 6, (to - from + 2) << 6, background);
+        }
+
+        // where the cone limits the range, the words either side are outside it, so hold background
+        boolean coneLeft = seedFirst - g >= left, coneRight = seedLast + g <= right;
+        if (coneLeft) {
+            cur[from - 1] = background ? -1L : 0L;
+        }
+        if (coneRight) {
+            cur[to] = background ? -1L : 0L;
+        }
+
+        if (k > 1) {
+            blockKernel.step(cur, next, from, to);
+        } else {
+            kernel.step(cur, next, from, to);
+        }
+
+        if (coneLeft) {
+            next[from - 1] = nextBackground ? -1L : 0L;
+        }
+        if (coneRight) {
+            next[to] = nextBackground ? -1L : 0L;
+        }
+
+        long[] swap = cur;
+        cur = next;
+        next = swap;
+        generation = g;
+        background = nextBackground;
+        valid = true;
+
+        // the whole cone, as good as any the checkpoints calculate themselves
+        if (coneLeft && coneRight) {
+            checkpoints.offerCheckpoint(g, cur, offset);
+        }
+    }
+
+    /* Make sure the cells 'first' to 'last' are in the arrays, with a word to spare either side.  Growing keeps the
+     * cells of the current generation, moving them a whole number of words */
+    private void ensureCapacity(int first, int last) {
+
+        if (cur != null && (long) first + offset >= 64 && (((long) last + offset) >>> 6) + 2 <= cur.length) {
+            return;
+        }
+
+        // room for the range and as much again, so the cone can grow for a while
+        int words = (int) (((long) last - first) >>> 6) + 4;
+        int newLength = Math.max(words * 2, cur == null ? 0 : cur.length * 2);
+
+        // center the range, at the same bit within a word as before
+        int newOffset = (((newLength - words) / 2 + 1) << 6) - first;
+        if (cur != null) {
+            newOffset -= ((newOffset - offset) % 64 + 64) % 64;
+        }
+
+        long[] grown = new long[newLength];
+        if (cur != null) {
+            int shift = (newOffset - offset) >> 6;
+            int srcFrom = Math.max(0, -shift), srcTo = Math.min(cur.length, newLength - shift);
+            if (srcFrom < srcTo) {
+                System.arraycopy(cur, srcFrom, grown, srcFrom + shift, srcTo - srcFrom);
+            }
+        }
+
+        cur = grown;
+        next = new long[newLength];
+        offset = newOffset;
+    }
+
+}
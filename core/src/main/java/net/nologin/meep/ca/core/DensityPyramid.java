@@ -0,0 +1,703 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+/**
+ * Overviews of a rule, zoomed out past one pixel per cell: a mipmap pyramid of cell density, where each pixel of
+ * level <i>L</i> is the fraction of cells that are on in a block of <code>2<sup>L</sup></code> cells by
+ * <code>2<sup>L</sup></code> generations, as a grey level from 0 (all off) to 255 (all on).
+ * <br/><br/>
+ * Each level is divided into chunks of {@link #CHUNK_SIZE} by {@link #CHUNK_SIZE} pixels, aligned to absolute pixel
+ * coordinates (pixel <i>p</i> of level <i>L</i> covering cells <code>p * 2<sup>L</sup></code> onwards, relative to
+ * the center cell, and likewise generations), so that each chunk of level <i>L+1</i> is exactly four chunks of level
+ * <i>L</i> averaged down:
+ * <pre>
+ *      level L:    | a | b |         level L+1:   | (a+b+c+d)/4 |
+ *                  | c | d |
+ * </pre>
+ * A chunk is built from the four below it when they've already been built (eg the user zoomed out a level at a
+ * time), and otherwise by stepping its cells in a single strip, counting as it goes.  Either way it costs no more
+ * than the cells it covers, and only once: chunks are kept in memory (least recently used first out), and written
+ * to a directory so they outlive the process.  Chunks entirely outside the cone are just background, and cost
+ * nothing.  Every chunk is the same size whatever its level, so memory per pixel on screen is bounded at any scale,
+ * and levels above {@link #MAX_LEVEL} aren't offered because the cells under a screen of them would take too long
+ * to step.
+ * <br/><br/>
+ * Cells that have already been calculated for the tiles shown at one pixel per cell or more needn't be stepped
+ * again.  Given to the pyramid as the blocks of a {@link CellStore} are completed (see
+ * {@link #onBlockComplete(int, long, int, long[])}), they're counted into level 1 chunks as they come:
+ * <pre>
+ *      level 1 chunk:   8 x 8 cell store blocks (64 cells by 64 generations, 32 x 32 pixels each)
+ * </pre>
+ * A chunk whose blocks have all come in (or are outside the cone) is complete without any stepping.  Otherwise only
+ * the generations of the block rows still missing are stepped, and a level 2 chunk with any such partly counted
+ * chunks below it is merged from them.
+ * <br/><br/>
+ * Overview tiles have the same layout as the tiles of {@link TileGeometry}, with pixels for cells: tile <i>x</i>
+ * starts at pixel <code>x * 256 - 128</code>, so the center cell is in the middle of tile 0.  Tiles don't line up
+ * with chunks, each is put together from up to four.
+ * <br/><br/>
+ * Instances are safe for use from multiple threads.  Two threads wanting the same chunk at once share the one
+ * calculation.
+ */
+public class DensityPyramid implements CellStore.BlockListener {
+
+    private static final Logger LOG = Logger.getLogger(DensityPyramid.class.getName());
+
+    /**
+     * The width and height of a chunk, in pixels (the same as a tile)
+     */
+    public static final int CHUNK_SIZE = TileGeometry.TILE_SIZE;
+
+    /**
+     * The most zoomed out level, at 64 cells per pixel: a screen of these covers a few hundred thousand
+     * generations, and stepping a chunk of them is the best part of a billion cell updates
+     */
+    public static final int MAX_LEVEL = 6;
+
+    /**
+     * The version of the chunk file format, files with any other version are ignored
+     */
+    public static final int VERSION = 1;
+
+    // in-memory chunks kept, and chunk files kept on disk
+    private static final int MAX_MEMORY_CHUNKS = 32;
+    private static final int MAX_DISK_CHUNKS = 512;
+
+    // level 1 chunks being counted from cell store blocks
+    private static final int MAX_PARTIAL_CHUNKS = 16;
+
+    // a level 1 chunk is SUB_BLOCKS x SUB_BLOCKS cell store blocks, each SUB_PIXELS pixels square
+    private static final int SUB_PIXELS = CellStore.BLOCK_CELLS / 2;
+    private static final int SUB_BLOCKS = CHUNK_SIZE / SUB_PIXELS;
+
+    private static final String FILE_SUFFIX = ".dpc";
+
+    private final File dir;
+
+    // least recently used first. Guarded by 'this'.
+    private final LinkedHashMap<Key, byte[]> chunks = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            return size() > MAX_MEMORY_CHUNKS;
+        }
+    };
+
+    // level 1 chunks being counted from cell store blocks, least recently used first. Guarded by 'this'.
+    private final LinkedHashMap<Key, Partial> partials = new LinkedHashMap<Key, Partial>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Partial> eldest) {
+            return size() > MAX_PARTIAL_CHUNKS;
+        }
+    };
+
+    /* chunks completed from cell store blocks, to be written to disk by the next thread rendering a tile (rather
+     * than the thread completing them, which holds the cell store's lock).  Guarded by 'this'. */
+    private final LinkedHashMap<Key, byte[]> unsaved = new LinkedHashMap<Key, byte[]>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+            return size() > MAX_MEMORY_CHUNKS;
+        }
+    };
+
+    // chunks being built, so that they're only built once
+    private final ConcurrentMap<Key, FutureTask<byte[]>> building = new ConcurrentHashMap<Key, FutureTask<byte[]>>();
+
+    // stats for the debug summary, guarded by 'this'
+    private long numHits = 0, numLoads = 0, numMerges = 0, numSteps = 0, numDiskFiles = -1;
+    private long numCounted = 0, numFinished = 0;
+
+    /**
+     * Constructor
+     *
+     * @param dir Where chunks are kept between runs (created if necessary), or <code>null</code> to keep them in
+     *            memory only
+     */
+    public DensityPyramid(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Create the grey levels to render densities with, blending from the off color to the on color
+     *
+     * @param colorOn  The color of a cell that's on, as ARGB
+     * @param colorOff The color of a cell that's off, as ARGB
+     * @return 256 colors, index 0 being all off
+     */
+    public static int[] createPalette(int colorOn, int colorOff) {
+
+        int[] palette = new int[256];
+        for (int d = 0; d < 256; d++) {
+            int color = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                int on = (colorOn >>> shift) & 0xff, off = (colorOff >>> shift) & 0xff;
+                color |= ((off * (255 - d) + on * d + 127) / 255) << shift;
+            }
+            palette[d] = color;
+        }
+        return palette;
+    }
+
+    /**
+     * Render an overview tile, building any chunks it needs.  May take a while at higher levels, see class doc.
+     *
+     * @param seeker  For the starting state of any chunks that have to be stepped, also decides the rule
+     * @param level   The level, from 1 (2 cells per pixel) to {@link #MAX_LEVEL}
+     * @param origin  The generation shown at the top of tile row 0 (rounded down to a whole pixel)
+     * @param xId     The tile's x ID
+     * @param yId     The tile's y ID
+     * @param palette The colors for each density, see {@link #createPalette(int, int)}
+     * @param pixels  The pixel buffer to render to, see {@link TileRenderer#createPixelBuffer()}
+     */
+    public void renderTile(GenerationSeeker seeker, int level, long origin, int xId, int yId, int[] palette,
+                           int[] pixels) {
+
+        if (level < 1 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Level " + level + " not in range 1-" + MAX_LEVEL);
+        }
+
+        saveCounted();
+
+        long firstCol = (long) xId * CHUNK_SIZE - CHUNK_SIZE / 2;
+        long firstRow = (origin >> level) + (long) yId * CHUNK_SIZE;
+
+        // the (up to) four chunks the tile overlaps
+        for (long cy = firstRow >> 8; cy <= (firstRow + CHUNK_SIZE - 1) >> 8; cy++) {
+            for (long cx = firstCol >> 8; cx <= (firstCol + CHUNK_SIZE - 1) >> 8; cx++) {
+
+                byte[] chunk = getChunk(seeker, level, cx, cy);
+
+                // the overlap, in tile pixels
+                int u0 = (int) Math.max(0, cx * CHUNK_SIZE - firstCol);
+                int u1 = (int) Math.min(CHUNK_SIZE, (cx + 1) * CHUNK_SIZE - firstCol);
+                int v0 = (int) Math.max(0, cy * CHUNK_SIZE - firstRow);
+                int v1 = (int) Math.min(CHUNK_SIZE, (cy + 1) * CHUNK_SIZE - firstRow);
+
+                for (int v = v0; v < v1; v++) {
+                    int src = (int) (firstRow + v - cy * CHUNK_SIZE) * CHUNK_SIZE + (int) (firstCol - cx * CHUNK_SIZE);
+                    for (int u = u0; u < u1; u++) {
+                        pixels[v * CHUNK_SIZE + u] = palette[chunk[src + u] & 0xff];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return A short summary of the pyramid's contents and stats, for debug summaries
+     */
+    public synchronized String getDebugSummary() {
+        return String.format("pyr=%d/%d,hit=%d,load=%d,merge=%d,step=%d,count=%d,fin=%d", chunks.size(),
+                partials.size(), numHits, numLoads, numMerges, numSteps, numCounted, numFinished);
+    }
+
+    /**
+     * Count a block of calculated cells into its level 1 chunk, see class doc
+     *
+     * @see CellStore.BlockListener#onBlockComplete(int, long, int, long[])
+     */
+    @Override
+    public void onBlockComplete(int rule, long firstGen, int firstCell, long[] cells) {
+
+        Key key = new Key(rule, 1, (long) firstCell >> 9, firstGen >> 9); // 512 cells per level 1 chunk
+        int subRow = (int) (firstGen >> 6) & (SUB_BLOCKS - 1), subCol = (firstCell >> 6) & (SUB_BLOCKS - 1);
+
+        synchronized (this) {
+
+            if (chunks.containsKey(key)) {
+                return;
+            }
+            Partial partial = partials.get(key);
+            if (partial == null) {
+                partial = new Partial(key);
+                partials.put(key, partial);
+            }
+            if (!partial.add(subRow, subCol, cells)) {
+                return;
+            }
+
+            numCounted++;
+            if (partial.isComplete()) {
+                partials.remove(key);
+                chunks.put(key, partial.pixels);
+                unsaved.put(key, partial.pixels);
+            }
+        }
+    }
+
+    /* Get a chunk, building it if necessary.  Pixels are row-major, CHUNK_SIZE wide */
+    private byte[] getChunk(final GenerationSeeker seeker, final int level, final long cx, final long cy) {
+
+        final Key key = new Key(seeker.getRule(), level, cx, cy);
+
+        synchronized (this) {
+            byte[] chunk = chunks.get(key);
+            if (chunk != null) {
+                numHits++;
+                return chunk;
+            }
+        }
+
+        // whoever gets here first builds it, anyone else waits for them
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return buildChunk(seeker, key);
+            }
+        });
+        FutureTask<byte[]> existing = building.putIfAbsent(key, task);
+        if (existing == null) {
+            task.run();
+            existing = task;
+        }
+
+        try {
+            byte[] chunk = existing.get();
+            synchronized (this) {
+                chunks.put(key, chunk);
+            }
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for chunk " + key, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Cannot build chunk " + key, e.getCause());
+        } finally {
+            building.remove(key, task);
+        }
+    }
+
+    private byte[] buildChunk(GenerationSeeker seeker, Key key) {
+
+        // in memory again if another thread built it since we looked
+        synchronized (this) {
+            byte[] chunk = chunks.get(key);
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+
+        byte[] chunk = readChunk(key);
+        if (chunk != null) {
+            synchronized (this) {
+                numLoads++;
+            }
+            return chunk;
+        }
+
+        chunk = buildOutsideCone(key);
+        if (chunk == null && key.level == 1) {
+            chunk = finishPartial(seeker, key);
+        }
+        if (chunk == null && key.level > 1) {
+            chunk = mergeChildren(seeker, key);
+        }
+        if (chunk == null) {
+            chunk = stepChunk(seeker, key);
+        }
+
+        writeChunk(key, chunk);
+        return chunk;
+    }
+
+    // a chunk entirely outside the cone is just background, whose density only depends on the generations
+    private byte[] buildOutsideCone(Key key) {
+
+        long scale = 1L << key.level;
+        long firstCell = key.cx * CHUNK_SIZE * scale, lastCell = firstCell + CHUNK_SIZE * scale - 1;
+        long firstGen = key.cy * CHUNK_SIZE * scale, lastGen = firstGen + CHUNK_SIZE * scale - 1;
+        if (!(firstCell > lastGen || lastCell < -lastGen)) {
+            return null;
+        }
+
+        byte[] chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        for (int v = 0; v < CHUNK_SIZE; v++) {
+            long on = 0;
+            for (long g = firstGen + v * scale; g < firstGen + (v + 1) * scale; g++) {
+                if (WolframRuleTable.getBackgroundState(key.rule, g)) {
+                    on++;
+                }
+            }
+            Arrays.fill(chunk, v * CHUNK_SIZE, (v + 1) * CHUNK_SIZE, (byte) ((on * 255 + scale / 2) / scale));
+        }
+        return chunk;
+    }
+
+    // a level 1 chunk partly counted from cell store blocks, with the rest stepped.  Null if none was counted.
+    private byte[] finishPartial(GenerationSeeker seeker, Key key) {
+
+        Partial partial;
+        synchronized (this) {
+            partial = partials.remove(key);
+        }
+        if (partial == null) {
+            return null;
+        }
+
+        // the block rows with anything missing, only their generations are stepped
+        int first = -1, last = -1;
+        for (int r = 0; r < SUB_BLOCKS; r++) {
+            if (((partial.filled >>> (r * SUB_BLOCKS)) & 0xff) != 0xff) {
+                first = first < 0 ? r : first;
+                last = r;
+            }
+        }
+        if (first >= 0) {
+            stepChunk(seeker, key, first * SUB_PIXELS, (last + 1) * SUB_PIXELS, partial.pixels);
+        }
+
+        synchronized (this) {
+            numFinished++;
+        }
+        return partial.pixels;
+    }
+
+    /* Average down the four chunks of the level below, if they're all to hand (in memory or on disk).  Level 1
+     * chunks that are partly counted from cell store blocks are worth building for a level 2 chunk, along with any
+     * others it needs. */
+    private byte[] mergeChildren(GenerationSeeker seeker, Key key) {
+
+        Key[] childKeys = new Key[4];
+        byte[][] children = new byte[4][];
+        boolean anyCounted = false;
+        for (int i = 0; i < 4; i++) {
+            childKeys[i] = new Key(key.rule, key.level - 1, key.cx * 2 + (i & 1), key.cy * 2 + (i >> 1));
+            synchronized (this) {
+                children[i] = chunks.get(childKeys[i]);
+                anyCounted |= partials.containsKey(childKeys[i]);
+            }
+            if (children[i] == null) {
+                children[i] = readChunk(childKeys[i]);
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            if (children[i] == null) {
+                if (!anyCounted) {
+                    return null;
+                }
+                children[i] = getChunk(seeker, childKeys[i].level, childKeys[i].cx, childKeys[i].cy);
+            }
+        }
+
+        int half = CHUNK_SIZE / 2;
+        byte[] chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        for (int i = 0; i < 4; i++) {
+            byte[] c = children[i];
+            int u0 = (i & 1) * half, v0 = (i >> 1) * half;
+            for (int v = 0; v < half; v++) {
+                for (int u = 0; u < half; u++) {
+                    int src = 2 * v * CHUNK_SIZE + 2 * u;
+                    int sum = (c[src] & 0xff) + (c[src + 1] & 0xff) + (c[src + CHUNK_SIZE] & 0xff)
+                            + (c[src + CHUNK_SIZE + 1] & 0xff);
+                    chunk[(v0 + v) * CHUNK_SIZE + u0 + u] = (byte) ((sum + 2) / 4);
+                }
+            }
+        }
+
+        synchronized (this) {
+            numMerges++;
+        }
+        return chunk;
+    }
+
+    private byte[] stepChunk(GenerationSeeker seeker, Key key) {
+
+        byte[] chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        stepChunk(seeker, key, 0, CHUNK_SIZE, chunk);
+
+        synchronized (this) {
+            numSteps++;
+        }
+        return chunk;
+    }
+
+    /* Step the generations of a range of the chunk's pixel rows in one strip, counting the cells of each pixel.  The
+     * strip is wider than the chunk by the number of generations on each side, as the ends of a strip can't be
+     * calculated, and the error spreads a cell per generation (see BandEngine) */
+    private void stepChunk(GenerationSeeker seeker, Key key, int fromRow, int toRow, byte[] chunk) {
+
+        int scale = 1 << key.level;
+        int width = CHUNK_SIZE * scale; // in cells
+        int height = (toRow - fromRow) * scale; // in generations
+        long firstGen = key.cy * width + (long) fromRow * scale;
+        int firstCell = (int) (key.cx * width);
+        int stripFirst = firstCell - height, stripCells = width + 2 * height;
+
+        int words = PackedCells.wordsFor(stripCells);
+        long[] cur = new long[words], next = new long[words];
+
+        if (firstGen == 0) {
+            // the seed row, off except for the center cell
+            if (-stripFirst >= 0 && -stripFirst < stripCells) {
+                PackedCells.set(cur, -stripFirst);
+            }
+        } else {
+            seeker.copyCells(firstGen, stripFirst, stripCells, cur, 0);
+        }
+
+        StepKernel kernel = WolframRuleTable.getKernel(key.rule);
+        long[] counts = new long[CHUNK_SIZE];
+
+        for (int g = 0; g < height; g++) {
+
+            // count each pixel's cells in this generation
+            for (int u = 0; u < CHUNK_SIZE; u++) {
+                int pos = height + u * scale;
+                for (int i = 0; i < scale; i += 64) {
+                    int n = Math.min(64, scale - i);
+                    long word = PackedCells.getWord(cur, pos + i);
+                    counts[u] += Long.bitCount(n == 64 ? word : word & ((1L << n) - 1));
+                }
+            }
+
+            // a pixel row is complete every 'scale' generations
+            if ((g + 1) % scale == 0) {
+                int v = fromRow + g / scale;
+                long area = (long) scale * scale;
+                for (int u = 0; u < CHUNK_SIZE; u++) {
+                    chunk[v * CHUNK_SIZE + u] = (byte) ((counts[u] * 255 + area / 2) / area);
+                }
+                Arrays.fill(counts, 0);
+            }
+
+            if (g < height - 1) {
+                PackedCells.step(kernel, cur, next, stripCells);
+                long[] tmp = cur;
+                cur = next;
+                next = tmp;
+            }
+        }
+    }
+
+    // write the chunks completed from cell store blocks to disk
+    private void saveCounted() {
+
+        if (dir == null) {
+            return;
+        }
+        while (true) {
+            Map.Entry<Key, byte[]> next;
+            synchronized (this) {
+                if (unsaved.isEmpty()) {
+                    return;
+                }
+                next = unsaved.entrySet().iterator().next();
+                unsaved.remove(next.getKey());
+            }
+            writeChunk(next.getKey(), next.getValue());
+        }
+    }
+
+    private File chunkFile(Key key) {
+        return new File(dir, key.rule + "_" + key.level + "_" + key.cx + "_" + key.cy + FILE_SUFFIX);
+    }
+
+    // the chunk from disk, or null if it's not there (or not readable)
+    private byte[] readChunk(Key key) {
+
+        if (dir == null) {
+            return null;
+        }
+        File file = chunkFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            byte[] chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+            in.readFully(chunk);
+            return chunk;
+        } catch (IOException e) {
+            LOG.warning("Cannot read " + file + ", error:" + e.getMessage());
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    // best effort, a chunk that isn't written is just built again next time
+    private void writeChunk(Key key, byte[] chunk) {
+
+        if (dir == null || (!dir.isDirectory() && !dir.mkdirs())) {
+            return;
+        }
+        trimDisk();
+
+        File file = chunkFile(key), tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.write(chunk);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                LOG.warning("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            LOG.warning("Cannot write " + file + ", error:" + e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+
+    // keep the directory to MAX_DISK_CHUNKS files, dropping the oldest quarter when it's full
+    private synchronized void trimDisk() {
+
+        if (numDiskFiles < 0) {
+            File[] files = dir.listFiles();
+            numDiskFiles = files == null ? 0 : files.length;
+        }
+        if (++numDiskFiles <= MAX_DISK_CHUNKS) {
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long ma = a.lastModified(), mb = b.lastModified();
+                return ma < mb ? -1 : (ma == mb ? 0 : 1);
+            }
+        });
+        int numDeleted = 0;
+        for (int i = 0; i < files.length / 4; i++) {
+            if (files[i].delete()) {
+                numDeleted++;
+            }
+        }
+        numDiskFiles = files.length - numDeleted + 1;
+    }
+
+    private static void close(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing more to do
+            }
+        }
+    }
+
+    /* A level 1 chunk being counted from cell store blocks, see class doc.  Sub-blocks entirely outside the cone are
+     * filled in from the start, as the cell store never has them. */
+    private static class Partial {
+
+        final byte[] pixels = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        long filled = 0; // bit (row * SUB_BLOCKS + column) for each sub-block
+
+        Partial(Key key) {
+
+            for (int r = 0; r < SUB_BLOCKS; r++) {
+                long firstGen = key.cy * 2 * CHUNK_SIZE + r * CellStore.BLOCK_CELLS;
+                long lastGen = firstGen + CellStore.BLOCK_CELLS - 1;
+                for (int c = 0; c < SUB_BLOCKS; c++) {
+                    long firstCell = key.cx * 2 * CHUNK_SIZE + c * CellStore.BLOCK_CELLS;
+                    long lastCell = firstCell + CellStore.BLOCK_CELLS - 1;
+                    if (firstCell > lastGen || lastCell < -lastGen) {
+                        fillBackground(key.rule, r, c, firstGen);
+                    }
+                }
+            }
+        }
+
+        // the density of each pair of background rows (just like buildOutsideCone())
+        private void fillBackground(int rule, int subRow, int subCol, long firstGen) {
+
+            for (int v = 0; v < SUB_PIXELS; v++) {
+                int on = (WolframRuleTable.getBackgroundState(rule, firstGen + 2 * v) ? 1 : 0)
+                        + (WolframRuleTable.getBackgroundState(rule, firstGen + 2 * v + 1) ? 1 : 0);
+                int pos = (subRow * SUB_PIXELS + v) * CHUNK_SIZE + subCol * SUB_PIXELS;
+                Arrays.fill(pixels, pos, pos + SUB_PIXELS, (byte) ((on * 255 + 1) / 2));
+            }
+            filled |= 1L << (subRow * SUB_BLOCKS + subCol);
+        }
+
+        // count a block's cells, two by two, returning false if it was already counted
+        boolean add(int subRow, int subCol, long[] cells) {
+
+            long bit = 1L << (subRow * SUB_BLOCKS + subCol);
+            if ((filled & bit) != 0) {
+                return false;
+            }
+
+            for (int v = 0; v < SUB_PIXELS; v++) {
+                long a = cells[2 * v], b = cells[2 * v + 1];
+                int pos = (subRow * SUB_PIXELS + v) * CHUNK_SIZE + subCol * SUB_PIXELS;
+                for (int u = 0; u < SUB_PIXELS; u++) {
+                    int on = Long.bitCount((a >>> (2 * u)) & 3) + Long.bitCount((b >>> (2 * u)) & 3);
+                    pixels[pos + u] = (byte) ((on * 255 + 2) / 4);
+                }
+            }
+            filled |= bit;
+            return true;
+        }
+
+        boolean isComplete() {
+            return filled == -1L;
+        }
+    }
+
+    // a chunk's place in the pyramid
+    private static class Key {
+
+        final int rule, level;
+        final long cx, cy;
+
+        Key(int rule, int level, long cx, long cy) {
+            this.rule = rule;
+            this.level = level;
+            this.cx = cx;
+            this.cy = cy;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = rule;
+            h = h * 31 + level;
+            h = h * 31 + (int) (cx ^ (cx >>> 32));
+            return h * 31 + (int) (cy ^ (cy >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rule == other.rule && level == other.level && cx == other.cx && cy == other.cy;
+        }
+
+        @Override
+        public String toString() {
+            return rule + "/" + level + "/" + cx + "," + cy;
+        }
+    }
+
+}
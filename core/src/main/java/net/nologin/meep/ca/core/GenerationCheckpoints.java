@@ -0,0 +1,329 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Calculates the cells of any generation of a rule directly, without going through the tile grid.
+ * <br/><br/>
+ * Starting from the single 'on' cell of generation 0, only the cells within <i>g</i> cells of the center can have
+ * been affected by generation <i>g</i>; everything outside that cone is the uniform background (see
+ * {@link WolframRuleTable#getBackgroundState(int, long)}).  So a generation can be stored in full as just the
+ * <i>2g+1</i> cells of the cone, and calculated from any earlier stored generation by stepping the (growing) cone
+ * one generation at a time.  Any other finite seed (a pattern of <i>n</i> cells on an 'off' background) works the
+ * same way, with a cone of <i>n+2g</i> cells.
+ * <br/><br/>
+ * As generations are calculated, a full copy is kept at sparse intervals as a checkpoint.  The intervals start at
+ * every 2^{@link #INITIAL_INTERVAL_LOG} generations, and double (dropping every other checkpoint) whenever the
+ * checkpoints outgrow {@link #MAX_CHECKPOINT_BYTES}.  Finding the nearest checkpoint at or before a generation is
+ * O(log n), and only the cone rows from there on have to be calculated - the intermediate generations are
+ * discarded as we go.
+ * <br/><br/>
+ * The generations in between are never needed, so the cone is stepped several generations per pass with a
+ * {@link BlockStepKernel} where the rule has one.  Even so, the work of stepping the cone grows with the square of the
+ * generation, so for very deep generations {@link HashLifeEngine} is the better choice.
+ *
+ * @see GenerationSeeker
+ */
+public class GenerationCheckpoints implements GenerationSource {
+
+    // start with a checkpoint every 1024 generations
+    private static final int INITIAL_INTERVAL_LOG = 10;
+
+    // checkpoints get thinned out once they hold this many bytes of cell data
+    private static final long MAX_CHECKPOINT_BYTES = 4 * 1024 * 1024;
+
+    private final int rule;
+    private final StepKernel kernel;
+    private final BlockStepKernel blockKernel; // null if the rule doesn't benefit
+
+    // the cells generation 0 can have something other than background in, so the cone of generation 'g' is the cells
+    // 'seedFirst-g' to 'seedLast+g', which has to fit in an array index
+    private final int seedFirst, seedLast;
+    private final long maxGeneration;
+
+    // guarded by 'this'
+    private final TreeMap<Long, Row> checkpoints = new TreeMap<Long, Row>();
+    private int intervalLog = INITIAL_INTERVAL_LOG;
+    private long checkpointBytes = 0;
+    private Row lastRow;
+
+    /**
+     * Constructor
+     *
+     * @param rule The rule number (0-255 inclusive)
+     */
+    public GenerationCheckpoints(int rule) {
+
+        // generation 0 - just the center cell, which is on
+        this(rule, new long[]{1L}, 0, 1);
+    }
+
+    /**
+     * Constructor for a seed other than the single center cell.  All cells outside the seed are off in generation 0.
+     *
+     * @param rule      The rule number (0-255 inclusive)
+     * @param seed      The packed cells of the seed, which are copied
+     * @param firstCell The cell number of the first cell of the seed, relative to the center cell
+     * @param numCells  The number of cells in the seed
+     */
+    public GenerationCheckpoints(int rule, long[] seed, int firstCell, int numCells) {
+
+        if (numCells < 1 || (long) firstCell + numCells > Integer.MAX_VALUE / 2
+                || firstCell < Integer.MIN_VALUE / 2) {
+            throw new IllegalArgumentException("Seed of " + numCells + " cells at " + firstCell + " out of range");
+        }
+
+        this.rule = rule;
+        this.kernel = WolframRuleTable.getKernel(rule);
+        this.blockKernel = WolframRuleTable.getBlockKernel(rule);
+        this.seedFirst = firstCell;
+        this.seedLast = firstCell + numCells - 1;
+        this.maxGeneration = (Integer.MAX_VALUE - numCells) / 2 - 256;
+
+        long[] cells = new long[PackedCells.wordsFor(numCells)];
+        PackedCells.copy(seed, 0, cells, 0, numCells);
+        checkpoints.put(0L, new Row(0, false, firstCell, numCells, cells));
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * @return The first cell of the seed, relative to the center cell.  The cone of generation <i>g</i> starts
+     *         <i>g</i> cells to its left.
+     */
+    public int getSeedFirstCell() {
+        return seedFirst;
+    }
+
+    /**
+     * @return The last cell of the seed, relative to the center cell.  The cone of generation <i>g</i> ends <i>g</i>
+     *         cells to its right.
+     */
+    public int getSeedLastCell() {
+        return seedLast;
+    }
+
+    /**
+     * @return The deepest generation that can be calculated, the cone having to fit in an array
+     */
+    public long getMaxGeneration() {
+        return maxGeneration;
+    }
+
+    /**
+     * Copy a range of cells of the specified generation into a packed row, calculating the generation from the
+     * nearest checkpoint if necessary.
+     *
+     * @see GenerationSource#copyCells(long, int, int, long[], int)
+     */
+    @Override
+    public void copyCells(long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        getRow(generation).copyTo(firstCell, numCells, dst, dstPos);
+    }
+
+    /**
+     * @return The number of checkpoints currently held
+     */
+    public synchronized int getNumCheckpoints() {
+        return checkpoints.size();
+    }
+
+    @Override
+    public synchronized String getDebugSummary() {
+        return String.format("ckpt=%d/%dK@%d", checkpoints.size(), checkpointBytes / 1024, 1 << intervalLog);
+    }
+
+    /* Only finding where to start from and keeping the results hold the lock, the stepping itself doesn't, so that
+     * threads seeking different generations (or a ColumnStream sharing the checkpoints) don't queue up behind one
+     * long calculation.  Two threads seeking the same uncached generation at once both calculate it. */
+    private Row getRow(long generation) {
+
+        if (generation < 0 || generation > maxGeneration) {
+            throw new IllegalArgumentException("Generation " + generation + " out of range 0-" + maxGeneration);
+        }
+
+        Row start;
+        int interval;
+        synchronized (this) {
+
+            // several tiles generally want the same generation one after the other
+            if (lastRow != null && lastRow.generation == generation) {
+                return lastRow;
+            }
+
+            start = checkpoints.floorEntry(generation).getValue();
+            if (lastRow != null && lastRow.generation < generation && lastRow.generation > start.generation) {
+                start = lastRow;
+            }
+            interval = intervalLog;
+        }
+
+        Row row = stepForward(start, generation, interval);
+        synchronized (this) {
+            lastRow = row;
+        }
+        return row;
+    }
+
+    // calculate generation 'target' from an earlier row, taking checkpoints on the way (every 2^interval generations,
+    // the interval when the calculation started)
+    private Row stepForward(Row start, long target, int interval) {
+
+        /* The cone at the target generation is at most 2*target+1 cells wide (plus the seed).  Add margins of a
+         * couple of words so there's always a background word either side of the words being stepped.  The
+         * arrays are the calling thread's, kept from one call to the next. */
+        int offset = (int) target + 128 - seedFirst; // array index of cell 0
+        int words = PackedCells.wordsFor(offset + seedLast + (int) target + 129);
+        long[][] rows = ScratchArena.forCurrentThread().getConeRows(words);
+        long[] cur = rows[0];
+        long[] next = rows[1];
+
+        boolean background = start.background;
+        PackedCells.fill(cur, 0, words * 64, background);
+        start.copyTo(start.firstCell, start.numCells, cur, offset + start.firstCell);
+
+        long g = start.generation;
+        while (g < target) {
+
+            // several generations per pass, as long as that doesn't pass the target or the next checkpoint
+            long nextCheckpoint = ((g >>> interval) + 1) << interval;
+            int k = blockKernel != null && Math.min(target, nextCheckpoint) - g >= blockKernel.getGenerations()
+                    ? blockKernel.getGenerations() : 1;
+
+            // words covering the cone after the pass
+            int from = (offset + seedFirst - (int) (g + k)) >>> 6;
+            int to = ((offset + seedLast + (int) (g + k)) >>> 6) + 1;
+
+            // the words either side of them are outside the cone, so hold this generation's background
+            cur[from - 1] = background ? -1L : 0L;
+            cur[to] = background ? -1L : 0L;
+
+            if (k > 1) {
+                blockKernel.step(cur, next, from, to);
+            } else {
+                kernel.step(cur, next, from, to);
+            }
+
+            g += k;
+            background = WolframRuleTable.getBackgroundState(rule, g);
+            next[from - 1] = background ? -1L : 0L;
+            next[to] = background ? -1L : 0L;
+
+            long[] swap = cur;
+            cur = next;
+            next = swap;
+
+            if ((g & ((1L << interval) - 1)) == 0 && g < target) {
+                offerCheckpoint(extractCone(cur, offset, g, background));
+            }
+        }
+
+        Row row = extractCone(cur, offset, target, background);
+        offerCheckpoint(row);
+        return row;
+    }
+
+    /**
+     * Offer a generation calculated elsewhere (by a {@link ColumnStream}), to be kept if it falls on the checkpoint
+     * interval and isn't already kept
+     *
+     * @param generation The generation
+     * @param cells      Packed cells holding at least the generation's whole cone
+     * @param offset     The index in <code>cells</code> of the center cell
+     */
+    synchronized void offerCheckpoint(long generation, long[] cells, int offset) {
+
+        if ((generation & ((1L << intervalLog) - 1)) != 0 || checkpoints.containsKey(generation)) {
+            return;
+        }
+        offerCheckpoint(extractCone(cells, offset, generation, WolframRuleTable.getBackgroundState(rule, generation)));
+    }
+
+    // keep a row if it's (still) on the checkpoint interval, which may have grown since it was calculated
+    private synchronized void offerCheckpoint(Row row) {
+
+        if ((row.generation & ((1L << intervalLog) - 1)) != 0 || checkpoints.containsKey(row.generation)) {
+            return;
+        }
+
+        checkpoints.put(row.generation, row);
+        checkpointBytes += row.cells.length * 8L;
+
+        // too much data, double the interval and drop the checkpoints that are no longer on it
+        while (checkpointBytes > MAX_CHECKPOINT_BYTES && checkpoints.size() > 1) {
+
+            intervalLog++;
+            long mask = (1L << intervalLog) - 1;
+
+            Iterator<Map.Entry<Long, Row>> it = checkpoints.entrySet().iterator();
+            while (it.hasNext()) {
+                Row r = it.next().getValue();
+                if (r.generation != 0 && (r.generation & mask) != 0) {
+                    checkpointBytes -= r.cells.length * 8L;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // copy out the cells of the cone (seedFirst-generation to seedLast+generation)
+    private Row extractCone(long[] cells, int offset, long generation, boolean background) {
+
+        int firstCell = seedFirst - (int) generation;
+        int numCells = seedLast - seedFirst + 2 * (int) generation + 1;
+        long[] cone = new long[PackedCells.wordsFor(numCells)];
+        PackedCells.copy(cells, offset + firstCell, cone, 0, numCells);
+
+        return new Row(generation, background, firstCell, numCells, cone);
+    }
+
+    /* A calculated generation: the cells in a range (normally the generation's cone), and the state of all cells
+     * outside of it. Immutable once created. */
+    static class Row {
+
+        final long generation;
+        final boolean background;
+        final int firstCell, numCells;
+        final long[] cells;
+
+        Row(long generation, boolean background, int firstCell, int numCells, long[] cells) {
+            this.generation = generation;
+            this.background = background;
+            this.firstCell = firstCell;
+            this.numCells = numCells;
+            this.cells = cells;
+        }
+
+        // copy any range of cells to a packed row, cells outside of the stored range get the background state
+        void copyTo(int from, int len, long[] dst, int dstPos) {
+
+            int overlapFrom = Math.max(from, firstCell);
+            int overlapTo = Math.min(from + len, firstCell + numCells);
+
+            if (overlapFrom >= overlapTo) {
+                PackedCells.fill(dst, dstPos, len, background);
+                return;
+            }
+
+            PackedCells.fill(dst, dstPos, overlapFrom - from, background);
+            PackedCells.copy(cells, overlapFrom - firstCell, dst, dstPos + overlapFrom - from, overlapTo - overlapFrom);
+            PackedCells.fill(dst, dstPos + overlapTo - from, from + len - overlapTo, background);
+        }
+    }
+
+}
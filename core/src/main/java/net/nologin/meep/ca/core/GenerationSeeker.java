@@ -0,0 +1,142 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.logging.Logger;
+
+/**
+ * Gets the cells of any generation of a rule from whichever {@link GenerationSource} suits: the
+ * {@link GenerationCheckpoints} for shallow generations, and the {@link HashLifeEngine} for deep ones.  If HashLife
+ * gives up on the rule (it's too chaotic), the checkpoints are used from then on.
+ * <br/><br/>
+ * Additive rules (see {@link AdditiveRule}) need neither: any cell of any generation is calculated directly, so
+ * {@link #isDirect()} tells callers they can seek rather than calculate their way down to a generation.
+ * <br/><br/>
+ * Zoom independent, so one instance can be kept for as long as the rule doesn't change.  Instances are safe for use
+ * from multiple threads.
+ *
+ * @see BandEngine
+ */
+public class GenerationSeeker implements GenerationSource {
+
+    private static final Logger LOG = Logger.getLogger(GenerationSeeker.class.getName());
+
+    /**
+     * Generations from here on are calculated by the HashLife engine, if the rule allows it
+     */
+    public static final long HASHLIFE_MIN_GENERATION = 1 << 14;
+
+    private final int rule;
+
+    // either the additive rule (the others being null), or the checkpoints and HashLife
+    private final AdditiveRule additive;
+    private final GenerationCheckpoints checkpoints;
+    private final HashLifeEngine hashLife;
+
+    // cleared if HashLife gives up, for the rest of this instance's life
+    private volatile boolean useHashLife = true;
+
+    /**
+     * Constructor
+     *
+     * @param rule The rule number (0-255)
+     */
+    public GenerationSeeker(int rule) {
+
+        this.rule = rule;
+        if (AdditiveRule.isAdditive(rule)) {
+            this.additive = new AdditiveRule(rule);
+            this.checkpoints = null;
+            this.hashLife = null;
+        } else {
+            this.additive = null;
+            this.checkpoints = new GenerationCheckpoints(rule);
+            this.hashLife = new HashLifeEngine(rule);
+        }
+    }
+
+    /**
+     * Get a single cell of any generation of a rule, starting from the single center cell that's on in generation
+     * 0.  Additive rules take time proportional to the number of bits in the generation, others have to calculate
+     * the cone of cells above, so for more than a few cells keep a seeker (or use a {@link GenerationStream}).
+     *
+     * @param rule       The rule number (0-255)
+     * @param cell       The cell, relative to the center cell
+     * @param generation The generation (0 being the first)
+     * @return Whether the cell is on
+     */
+    public static boolean cellAt(int rule, int cell, long generation) {
+
+        if (AdditiveRule.isAdditive(rule)) {
+            return AdditiveRule.cellAt(rule, cell, generation);
+        }
+        return new GenerationSeeker(rule).cellAt(cell, generation);
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * @return <code>true</code> if any generation is calculated directly, in time that hardly depends on how deep it
+     *         is, so is no cheaper to calculate from the generation before it
+     */
+    public boolean isDirect() {
+        return additive != null;
+    }
+
+    /**
+     * Get a single cell of any generation
+     *
+     * @param cell       The cell, relative to the center cell
+     * @param generation The generation (0 being the first)
+     * @return Whether the cell is on
+     */
+    public boolean cellAt(int cell, long generation) {
+
+        if (additive != null) {
+            return additive.cellAt(cell, generation);
+        }
+        long[] word = new long[1];
+        copyCells(generation, cell, 1, word, 0);
+        return PackedCells.get(word, 0);
+    }
+
+    @Override
+    public void copyCells(long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        if (additive != null) {
+            additive.copyCells(generation, firstCell, numCells, dst, dstPos);
+            return;
+        }
+
+        if (generation >= HASHLIFE_MIN_GENERATION && useHashLife) {
+            try {
+                hashLife.copyCells(generation, firstCell, numCells, dst, dstPos);
+                return;
+            } catch (IllegalStateException e) {
+                LOG.warning("Falling back to checkpoints, error:" + e.getMessage());
+                useHashLife = false;
+            }
+        }
+
+        checkpoints.copyCells(generation, firstCell, numCells, dst, dstPos);
+    }
+
+    @Override
+    public String getDebugSummary() {
+        if (additive != null) {
+            return additive.getDebugSummary();
+        }
+        return checkpoints.getDebugSummary() + "," + hashLife.getDebugSummary();
+    }
+
+}
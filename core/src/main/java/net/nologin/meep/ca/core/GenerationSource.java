@@ -0,0 +1,40 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Something that can produce the cells of any generation of a rule directly, without going through the tile grid.
+ * The {@link BandEngine} uses these to get the starting state of tiles whose parent tiles aren't available.
+ * <br/><br/>
+ * Cells are numbered relative to the center cell that's on in generation 0, so cell -1 is its left neighbour, etc.
+ * Implementations must be safe for use from multiple threads.
+ *
+ * @see GenerationCheckpoints
+ * @see HashLifeEngine
+ */
+public interface GenerationSource {
+
+    /**
+     * Copy a range of cells of the specified generation into a packed row.  Any cell in the range is valid, cells
+     * outside of the generation's cone just get the background state.
+     *
+     * @param generation The generation (0 being the first)
+     * @param firstCell  The first cell to copy, relative to the center cell
+     * @param numCells   The number of cells to copy
+     * @param dst        The packed row to copy to
+     * @param dstPos     The index in <code>dst</code> of the first cell
+     * @throws IllegalArgumentException If the generation is negative, or too big to calculate
+     */
+    void copyCells(long generation, int firstCell, int numCells, long[] dst, int dstPos);
+
+    /**
+     * @return A short summary of the source's state, for debug summaries
+     */
+    String getDebugSummary();
+
+}
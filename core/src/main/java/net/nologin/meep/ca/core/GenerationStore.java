@@ -0,0 +1,338 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A persistent store of calculated cell rows, so that deep generations don't have to be calculated again after the
+ * tile cache is cleared, or the app restarts.
+ * <br/><br/>
+ * Rows are stored {@link PackedCells packed}, keyed by rule, generation, first cell (relative to the center cell, see
+ * {@link GenerationSource}) and number of cells.  They're kept in a single memory-mapped file of fixed size, made up
+ * of a header, an index of fixed size entries, and one fixed size data slot per index entry:
+ * <pre>
+ *      header:  magic, version, slot size (words), number of slots
+ *      index:   [rule+1, first cell, number of cells, generation]   x number of slots   (rule+1 = 0 when unused)
+ *      data:    [packed cells]                                       x number of slots
+ * </pre>
+ * On opening, the index is read into memory for lookups.  A file with the wrong magic, version or layout is
+ * discarded and started over.  When all slots are in use, a slot is reused using the 'clock' approximation of least
+ * recently used: the hand sweeps the slots, skipping (and clearing the flag of) those used since its last pass.
+ * <br/><br/>
+ * The file is opened on first use, so construction is cheap enough for the UI thread.  If the file can't be opened,
+ * the store just stays empty.  Instances are safe for use from multiple threads.
+ *
+ * @see BandEngine
+ */
+public class GenerationStore {
+
+    private static final Logger LOG = Logger.getLogger(GenerationStore.class.getName());
+
+    private static final int MAGIC = 0x57434147; // "WCAG"
+
+    /**
+     * The version of the file format, files with any other version are discarded
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The largest row that can be stored: a window of three tiles at the smallest zoom level
+     */
+    public static final int MAX_CELLS = 3 * 256;
+
+    /**
+     * The default size of the file, in bytes
+     */
+    public static final int DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int SLOT_WORDS = PackedCells.wordsFor(MAX_CELLS);
+    private static final int SLOT_BYTES = SLOT_WORDS * 8;
+
+    private final File file;
+    private final int numSlots;
+
+    // everything below is guarded by 'this'
+    private MappedByteBuffer buf;
+    private boolean openFailed = false;
+
+    private final Map<Key, Integer> index = new HashMap<Key, Integer>();
+    private final Key lookupKey = new Key(0, 0, 0, 0); // reused by read(), so lookups don't allocate
+    private Key[] slotKeys;
+    private boolean[] recentlyUsed;
+    private int clockHand = 0, numUsed = 0;
+
+    // stats for the debug summary
+    private long numHits = 0, numMisses = 0, numWrites = 0, numEvictions = 0;
+
+    /**
+     * Constructor
+     *
+     * @param file     The file to keep the rows in, normally in the app's private files directory
+     * @param maxBytes The maximum size of the file
+     */
+    public GenerationStore(File file, int maxBytes) {
+
+        this.file = file;
+        this.numSlots = Math.max(1, (maxBytes - HEADER_BYTES) / (INDEX_ENTRY_BYTES + SLOT_BYTES));
+    }
+
+    /**
+     * Copy a stored row into a packed row, if there is one with exactly the specified key.
+     *
+     * @param rule       The rule number
+     * @param generation The generation
+     * @param firstCell  The first cell of the row, relative to the center cell
+     * @param numCells   The number of cells in the row
+     * @param dst        The packed row to copy to
+     * @param dstPos     The index in <code>dst</code> of the first cell
+     * @return <code>true</code> if the row was found (and copied)
+     */
+    public synchronized boolean read(int rule, long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        if (!open()) {
+            return false;
+        }
+
+        Integer slot = index.get(lookupKey.set(rule, generation, firstCell, numCells));
+        if (slot == null) {
+            numMisses++;
+            return false;
+        }
+
+        // read a word at a time into the destination
+        int dataPos = dataOffset(slot);
+        for (int i = 0; i < numCells; i += 64) {
+            PackedCells.setBits(dst, dstPos + i, buf.getLong(dataPos + (i >>> 6) * 8), Math.min(64, numCells - i));
+        }
+
+        recentlyUsed[slot] = true;
+        numHits++;
+        return true;
+    }
+
+    /**
+     * Store a row, replacing any row with the same key.  Rows wider than {@link #MAX_CELLS} are ignored.
+     *
+     * @param rule       The rule number
+     * @param generation The generation
+     * @param firstCell  The first cell of the row, relative to the center cell
+     * @param numCells   The number of cells in the row
+     * @param src        The packed row to copy from
+     * @param srcPos     The index in <code>src</code> of the first cell
+     */
+    public synchronized void write(int rule, long generation, int firstCell, int numCells, long[] src, int srcPos) {
+
+        if (numCells > MAX_CELLS || !open()) {
+            return;
+        }
+
+        Key key = new Key(rule, generation, firstCell, numCells);
+        Integer existing = index.get(key);
+        int slot = existing != null ? existing : claimSlot();
+
+        // unused while it's being written, in case we don't get to finish
+        int entryPos = entryOffset(slot);
+        buf.putInt(entryPos, 0);
+
+        int dataPos = dataOffset(slot);
+        for (int i = 0; i < numCells; i += 64) {
+            buf.putLong(dataPos + (i >>> 6) * 8, PackedCells.getWord(src, srcPos + i));
+        }
+
+        buf.putInt(entryPos + 4, firstCell);
+        buf.putInt(entryPos + 8, numCells);
+        buf.putLong(entryPos + 12, generation);
+        buf.putInt(entryPos, rule + 1);
+
+        slotKeys[slot] = key;
+        index.put(key, slot);
+        recentlyUsed[slot] = true;
+        numWrites++;
+    }
+
+    /**
+     * Write any changes out to the file.  Not required for the rows to be kept (the OS writes out the mapped pages
+     * even if the process dies), but worth calling when the app is going to the background.
+     */
+    public synchronized void flush() {
+        if (buf != null) {
+            buf.force();
+        }
+    }
+
+    /**
+     * @return A short summary of the store's contents and stats, for debug summaries
+     */
+    public synchronized String getDebugSummary() {
+        return String.format("store=%d/%d,hit=%d,miss=%d,wr=%d,ev=%d", numUsed, numSlots, numHits, numMisses,
+                numWrites, numEvictions);
+    }
+
+    // a free slot if there is one, otherwise evict one
+    private int claimSlot() {
+
+        if (numUsed < numSlots) {
+            // slots are filled in order, and never freed other than by reuse
+            return numUsed++;
+        }
+
+        while (recentlyUsed[clockHand]) {
+            recentlyUsed[clockHand] = false;
+            clockHand = (clockHand + 1) % numSlots;
+        }
+
+        int slot = clockHand;
+        clockHand = (clockHand + 1) % numSlots;
+
+        index.remove(slotKeys[slot]);
+        slotKeys[slot] = null;
+        numEvictions++;
+        return slot;
+    }
+
+    // map the file (creating or resetting it as necessary), and load the index. Returns false if that's not possible
+    private boolean open() {
+
+        if (buf != null) {
+            return true;
+        }
+        if (openFailed) {
+            return false;
+        }
+
+        long fileBytes = HEADER_BYTES + (long) numSlots * (INDEX_ENTRY_BYTES + SLOT_BYTES);
+        slotKeys = new Key[numSlots];
+        recentlyUsed = new boolean[numSlots];
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                boolean valid = raf.length() == fileBytes;
+                if (!valid) {
+                    raf.setLength(0); // any previous contents are of no use
+                    raf.setLength(fileBytes);
+                }
+
+                // the mapping stays valid after the file is closed
+                buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileBytes);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            LOG.warning("Cannot open generation store " + file + ", error:" + e.getMessage());
+            openFailed = true;
+            return false;
+        }
+
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION || buf.getInt(8) != SLOT_WORDS
+                || buf.getInt(12) != numSlots) {
+            LOG.info("Generation store " + file + " empty or out of date, starting over");
+            reset();
+            return true;
+        }
+
+        /* Slots are filled in order, so the used ones are all at the start.  Any not properly written are kept in
+         * use (they'll be reused in time), but aren't indexed */
+        while (numUsed < numSlots) {
+
+            int entryPos = entryOffset(numUsed);
+            int rule = buf.getInt(entryPos) - 1;
+            if (rule < 0 && buf.getInt(entryPos + 8) == 0) {
+                break;
+            }
+
+            if (rule >= 0) {
+                Key key = new Key(rule, buf.getLong(entryPos + 12), buf.getInt(entryPos + 4),
+                        buf.getInt(entryPos + 8));
+                slotKeys[numUsed] = key;
+                index.put(key, numUsed);
+            }
+            numUsed++;
+        }
+
+        LOG.info("Generation store " + file + " opened, " + index.size() + " rows");
+        return true;
+    }
+
+    // clear the index and write a new header
+    private void reset() {
+
+        for (int i = 0; i < numSlots; i++) {
+            int entryPos = entryOffset(i);
+            buf.putInt(entryPos, 0);
+            buf.putInt(entryPos + 8, 0);
+        }
+
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, SLOT_WORDS);
+        buf.putInt(12, numSlots);
+
+        index.clear();
+        numUsed = 0;
+    }
+
+    private static int entryOffset(int slot) {
+        return HEADER_BYTES + slot * INDEX_ENTRY_BYTES;
+    }
+
+    private int dataOffset(int slot) {
+        return HEADER_BYTES + numSlots * INDEX_ENTRY_BYTES + slot * SLOT_BYTES;
+    }
+
+    // what a row is stored under
+    private static class Key {
+
+        int rule;
+        long generation;
+        int firstCell, numCells;
+
+        Key(int rule, long generation, int firstCell, int numCells) {
+            set(rule, generation, firstCell, numCells);
+        }
+
+        // only for the lookup key, keys in the index are never changed
+        Key set(int rule, long generation, int firstCell, int numCells) {
+            this.rule = rule;
+            this.generation = generation;
+            this.firstCell = firstCell;
+            this.numCells = numCells;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = rule;
+            h = h * 31 + (int) (generation ^ (generation >>> 32));
+            h = h * 31 + firstCell;
+            return h * 31 + numCells;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return rule == other.rule && generation == other.generation && firstCell == other.firstCell
+                    && numCells == other.numCells;
+        }
+    }
+
+}
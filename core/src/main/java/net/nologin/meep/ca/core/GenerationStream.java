@@ -0,0 +1,425 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A lazy, endless sequence of the generations of a rule, each a {@link PackedCells packed} row of a fixed window of
+ * cells, for code that wants to consume the CA row by row rather than a tile at a time.  Nothing is calculated until
+ * a row is read, and rows that are skipped are only calculated if that's cheaper than seeking past them.
+ * <pre>
+ *      GenerationStream stream = GenerationStream.create(30, -500, 1000);   // rule 30, cells -500 to 499
+ *      stream.skip(1000000);
+ *      long[] row = new long[PackedCells.wordsFor(1000)];
+ *      for (...) {
+ *          stream.next(row);                                               // generation 1000000, 1000001 ...
+ *      }
+ * </pre>
+ * Every row is exact: each cell is just what the app would show at that position.  Underneath, the stream seeks the
+ * window plus a margin either side from a {@link GenerationSource}, then steps that strip one generation at a time
+ * with the rule's {@link StepKernel}.  The strip loses a valid cell at each end per generation, so once the margin is
+ * used up (after <code>margin</code> generations) the stream seeks again.  The margin is the window width (but at
+ * least {@link #MIN_MARGIN}), so stepping costs about twice the window per generation, and seeks are rare.  Skipped
+ * generations are stepped over several at a time with a {@link BlockStepKernel}, where the rule has one.
+ * <br/><br/>
+ * {@link #readAhead(int)} moves the calculation onto a background thread, a bounded number of rows ahead of the
+ * consumer, and {@link #split(int)} divides the window into column ranges, independent streams that can be
+ * consumed (and read ahead) on threads of their own.
+ * <br/><br/>
+ * A stream is for use by a single thread (its source may be shared).
+ *
+ * @see GenerationSource
+ */
+public abstract class GenerationStream implements Closeable {
+
+    /**
+     * The fewest cells either side of the window that are stepped along with it, see class doc
+     */
+    public static final int MIN_MARGIN = 4096;
+
+    protected final int firstCell, numCells;
+
+    // the generation of the next row to be read
+    protected long generation = 0;
+
+    /**
+     * Constructor
+     *
+     * @param firstCell The first cell of the window, relative to the center cell
+     * @param numCells  The number of cells in the window
+     */
+    protected GenerationStream(int firstCell, int numCells) {
+
+        if (numCells < 1) {
+            throw new IllegalArgumentException("Window of " + numCells + " cells");
+        }
+        this.firstCell = firstCell;
+        this.numCells = numCells;
+    }
+
+    /**
+     * Create a stream of a window of cells, starting from the single center cell that's on in generation 0 (just
+     * like the app), using a new {@link GenerationSeeker} to seek.
+     *
+     * @param rule      The rule number (0-255)
+     * @param firstCell The first cell of the window, relative to the center cell
+     * @param numCells  The number of cells in the window
+     * @return The stream, at generation 0
+     */
+    public static GenerationStream create(int rule, int firstCell, int numCells) {
+        return new Strip(new GenerationSeeker(rule), rule, firstCell, numCells);
+    }
+
+    /**
+     * Create a stream of a window of cells of any source, eg a {@link GenerationCheckpoints} with a seed of its own,
+     * or a {@link GenerationSeeker} shared with other streams.
+     *
+     * @param source    Where to seek generations from
+     * @param rule      The source's rule
+     * @param firstCell The first cell of the window, relative to the source's center cell
+     * @param numCells  The number of cells in the window
+     * @return The stream, at generation 0
+     */
+    public static GenerationStream create(GenerationSource source, int rule, int firstCell, int numCells) {
+        return new Strip(source, rule, firstCell, numCells);
+    }
+
+    /**
+     * @return The first cell of the window, relative to the center cell
+     */
+    public int getFirstCell() {
+        return firstCell;
+    }
+
+    /**
+     * @return The number of cells in the window, and so in each row
+     */
+    public int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * @return The generation the next row read will be
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Read the next generation
+     *
+     * @param dst Where to write the row, which must hold at least {@link #getNumCells()} cells.  The first cell of
+     *            the window goes to index 0, any bits beyond the window are undefined.
+     */
+    public abstract void next(long[] dst);
+
+    /**
+     * Read the next generation into a new row
+     *
+     * @return The row, the first cell of the window at index 0
+     */
+    public long[] next() {
+        long[] row = new long[PackedCells.wordsFor(numCells)];
+        next(row);
+        return row;
+    }
+
+    /**
+     * Skip generations without reading them.  Cheap: nothing happens until the next row is read, which then seeks
+     * straight to its generation if that's quicker than stepping.
+     *
+     * @param n The number of generations to skip
+     */
+    public void skip(long n) {
+
+        if (n < 0) {
+            throw new IllegalArgumentException("Cannot skip " + n + " generations");
+        }
+        generation += n;
+    }
+
+    /**
+     * Divide the window into column ranges of (nearly) equal width, each an independent stream starting at this
+     * stream's current generation.  The parts don't share any state but the source, so each can be consumed (and
+     * read ahead) on a thread of its own.  Each part steps its own margins, so more parts mean more work in total.
+     * The parts of a {@link #readAhead(int) read ahead} stream read ahead too, each on a thread of its own, so
+     * have to be closed.
+     *
+     * @param numParts The number of parts, at most the number of cells
+     * @return The parts, left to right
+     */
+    public GenerationStream[] split(int numParts) {
+
+        if (numParts < 1 || numParts > numCells) {
+            throw new IllegalArgumentException("Cannot split " + numCells + " cells into " + numParts + " parts");
+        }
+
+        GenerationStream[] parts = new GenerationStream[numParts];
+        for (int i = 0; i < numParts; i++) {
+            int from = (int) ((long) numCells * i / numParts);
+            int to = (int) ((long) numCells * (i + 1) / numParts);
+            parts[i] = columns(firstCell + from, to - from);
+        }
+        return parts;
+    }
+
+    /**
+     * Create an independent stream of any window of cells, starting at this stream's current generation.  A read
+     * ahead stream creates another read ahead stream, with a thread of its own.
+     *
+     * @param firstCell The first cell of the window, relative to the center cell
+     * @param numCells  The number of cells in the window
+     * @return The new stream
+     */
+    public abstract GenerationStream columns(int firstCell, int numCells);
+
+    /**
+     * Calculate this stream's rows on a background thread, up to <code>maxRows</code> ahead of the consumer.  Once
+     * that many are waiting, the thread blocks until the consumer catches up.  This stream must not be used
+     * directly afterwards.  The read ahead stream can still be {@link #split(int) split}, into parts that each read
+     * the same number of rows ahead.
+     *
+     * @param maxRows The most rows to calculate ahead
+     * @return The read ahead stream, which must be {@link #close() closed} to stop the thread
+     */
+    public GenerationStream readAhead(int maxRows) {
+        return new ReadAhead(this, maxRows);
+    }
+
+    /**
+     * Release anything the stream holds (eg a read ahead thread)
+     */
+    @Override
+    public void close() {
+    }
+
+
+    /* Seeks a strip of the window plus margins from the source, and steps it until the margins are used up */
+    static final class Strip extends GenerationStream {
+
+        private final GenerationSource source;
+        private final int rule;
+        private final StepKernel kernel;
+        private final BlockStepKernel blockKernel; // null if the rule doesn't benefit
+        private final int margin, stripCells;
+
+        // the strip: 'cur' is generation 'stripGen', 'steps' generations after it was seeked (null until then)
+        private long[] cur, nextCells;
+        private long stripGen;
+        private int steps;
+
+        Strip(GenerationSource source, int rule, int firstCell, int numCells) {
+
+            super(firstCell, numCells);
+
+            // word aligned, so the window is a plain copy out of the strip
+            int margin = (Math.max(MIN_MARGIN, numCells) + 63) & ~63;
+            if ((long) numCells + 2L * margin > Integer.MAX_VALUE - 64
+                    || (long) firstCell - margin < Integer.MIN_VALUE
+                    || (long) firstCell + numCells + margin > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Window of " + numCells + " cells at " + firstCell + " too wide");
+            }
+
+            this.source = source;
+            this.rule = rule;
+            this.kernel = WolframRuleTable.getKernel(rule);
+            this.blockKernel = WolframRuleTable.getBlockKernel(rule);
+            this.margin = margin;
+            this.stripCells = numCells + 2 * margin;
+        }
+
+        @Override
+        public void next(long[] dst) {
+
+            advance();
+            PackedCells.copy(cur, margin, dst, 0, numCells);
+            generation++;
+        }
+
+        @Override
+        public GenerationStream columns(int firstCell, int numCells) {
+
+            Strip strip = new Strip(source, rule, firstCell, numCells);
+            strip.skip(generation);
+            return strip;
+        }
+
+        // bring the strip to the next row's generation, stepping if the margins last that long, otherwise seeking
+        private void advance() {
+
+            long gap = generation - stripGen;
+            if (cur == null || gap < 0 || gap > margin - steps) {
+                if (cur == null) {
+                    cur = new long[PackedCells.wordsFor(stripCells)];
+                    nextCells = new long[cur.length];
+                }
+                source.copyCells(generation, firstCell - margin, stripCells, cur, 0);
+                stripGen = generation;
+                steps = 0;
+                return;
+            }
+
+            while (stripGen < generation) {
+
+                // skipped generations several at a time
+                int k = blockKernel != null && generation - stripGen >= blockKernel.getGenerations()
+                        ? blockKernel.getGenerations() : 1;
+
+                /* after 's' steps, cells 's' to 'stripCells-s-1' are valid.  Only step the words covering the
+                 * valid cells after this pass, the rest are stale but never read */
+                int from = (steps + k) >>> 6;
+                int to = PackedCells.wordsFor(stripCells - steps - k);
+                if (k > 1) {
+                    blockKernel.step(cur, nextCells, from, to);
+                } else {
+                    kernel.step(cur, nextCells, from, to);
+                }
+                stripGen += k;
+                steps += k;
+
+                long[] swap = cur;
+                cur = nextCells;
+                nextCells = swap;
+            }
+        }
+    }
+
+    /* Runs another stream on a background thread, handing rows over through a bounded queue */
+    static final class ReadAhead extends GenerationStream implements Runnable {
+
+        // handed over when the background thread fails
+        private static final long[] FAILED = new long[0];
+
+        private final GenerationStream stream;
+        private final int maxRows;
+        private final Thread thread;
+
+        /* a copy of the stream that's never read, so never touched by the thread, to create column streams from on
+         * the consumer's thread (see columns()) */
+        private final GenerationStream template;
+
+        /* rows calculated but not yet read, and empty rows for the thread to fill (which bounds how far ahead it
+         * gets).  Each row has an extra word at the end holding its generation */
+        private final BlockingQueue<long[]> full, empty;
+
+        // set by the consumer, the thread skips ahead to here
+        private volatile long skipTo = 0;
+
+        private volatile RuntimeException failure;
+
+        ReadAhead(GenerationStream stream, int maxRows) {
+
+            super(stream.firstCell, stream.numCells);
+
+            if (maxRows < 1) {
+                throw new IllegalArgumentException("Cannot read " + maxRows + " rows ahead");
+            }
+
+            this.stream = stream;
+            this.maxRows = maxRows;
+            this.template = stream instanceof ReadAhead ? ((ReadAhead) stream).template
+                    : stream.columns(stream.firstCell, stream.numCells);
+            this.generation = stream.generation;
+            this.skipTo = stream.generation;
+
+            full = new ArrayBlockingQueue<long[]>(maxRows + 1); // room for FAILED
+            empty = new ArrayBlockingQueue<long[]>(maxRows);
+            for (int i = 0; i < maxRows; i++) {
+                empty.add(new long[PackedCells.wordsFor(numCells) + 1]);
+            }
+
+            thread = new Thread(this, "GenerationStream[" + firstCell + "+" + numCells + "]");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+
+            int genIdx = PackedCells.wordsFor(numCells);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+
+                    long[] row = empty.take();
+
+                    long target = skipTo;
+                    if (target > stream.generation) {
+                        stream.skip(target - stream.generation);
+                    }
+
+                    row[genIdx] = stream.generation;
+                    stream.next(row);
+                    full.put(row);
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (RuntimeException e) {
+                failure = e;
+                full.offer(FAILED);
+            }
+        }
+
+        @Override
+        public void next(long[] dst) {
+
+            int genIdx = PackedCells.wordsFor(numCells);
+            while (true) {
+
+                long[] row;
+                try {
+                    row = full.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for generation " + generation, e);
+                }
+
+                if (row == FAILED) {
+                    full.offer(FAILED); // for any later reads
+                    throw new IllegalStateException("Read ahead failed", failure);
+                }
+
+                // rows from before a skip are just recycled
+                boolean wanted = row[genIdx] == generation;
+                if (wanted) {
+                    System.arraycopy(row, 0, dst, 0, genIdx);
+                }
+                empty.offer(row);
+
+                if (wanted) {
+                    generation++;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void skip(long n) {
+            super.skip(n);
+            skipTo = generation;
+        }
+
+        @Override
+        public GenerationStream columns(int firstCell, int numCells) {
+
+            // the template is at the generation this stream started at, or earlier
+            GenerationStream part = template.columns(firstCell, numCells);
+            part.skip(generation - part.generation);
+            return new ReadAhead(part, maxRows);
+        }
+
+        @Override
+        public void close() {
+            thread.interrupt();
+            stream.close();
+        }
+    }
+
+}
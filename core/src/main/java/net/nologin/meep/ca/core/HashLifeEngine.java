@@ -0,0 +1,422 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Calculates very deep generations of a rule using a 1-dimensional version of
+ * <a href="http://en.wikipedia.org/wiki/Hashlife">HashLife</a>.
+ * <br/><br/>
+ * A row of cells is stored as a binary tree of blocks: a block of level <i>k</i> holds 2^<i>k</i> cells, and is made
+ * of a left and right block of level <i>k-1</i>, down to 64 cell blocks (a single <code>long</code>, see
+ * {@link PackedCells}).  Identical blocks are only ever stored once (they are 'hash-consed'), so a row full of
+ * repeating patterns takes very little space.  The cells of a block fully determine the center half of the block for
+ * the next 2^(<i>k</i>-2) generations, and that future is memoised in the block itself:
+ * <pre>
+ *      gen g:          [  q0  |  q1  |  q2  |  q3  ]      a level k block
+ *      gen g+2^(k-3):     [  r0  |  r1  |  r2  ]          futures of (q0,q1), (q1,q2) and (q2,q3)
+ *      gen g+2^(k-2):         [  s0  |  s1  ]             futures of (r0,r1) and (r1,r2)
+ * </pre>
+ * As every block is only ever calculated once, rules whose rows repeat themselves (eg 90, 150, 184, or the periodic
+ * background of 110) can reach far generations in close to logarithmic time.  Chaotic rules like 30 gain little.
+ * <br/><br/>
+ * The table of blocks is limited to {@link #MAX_NODES} entries.  When it outgrows that between steps, all memoised
+ * futures are forgotten and any blocks not part of the current row are swept from the table.  A single step that
+ * needs more than twice that many blocks (a chaotic rule, far down) is abandoned, and the caller should fall back to
+ * another {@link GenerationSource}.
+ *
+ * @see GenerationCheckpoints
+ * @see GenerationSeeker
+ */
+public class HashLifeEngine implements GenerationSource {
+
+    private static final Logger LOG = Logger.getLogger(HashLifeEngine.class.getName());
+
+    // the smallest block is a single word of cells
+    private static final int LEAF_LEVEL = 6;
+
+    // a level 7 block (two words) has its future calculated directly, up to 2^(7-2) generations ahead
+    private static final int BASE_LEVEL = LEAF_LEVEL + 1;
+
+    /**
+     * The number of distinct blocks kept before the table is swept.  Each is around 48 bytes.
+     */
+    public static final int MAX_NODES = 1 << 17;
+
+    // the table can't be swept in the middle of a step, so give up on the step beyond this
+    private static final int MAX_NODES_IN_STEP = MAX_NODES * 2;
+
+    // cells are addressed with ints, so the row must fit within that range
+    private static final long MAX_GENERATION = 1L << 30;
+
+    private final int rule;
+    private final StepKernel kernel;
+
+    // all distinct blocks, guarded by 'this' (as is everything else below)
+    private final Map<Node, Node> nodes = new HashMap<Node, Node>();
+    private int nextId = 0;
+
+    // blocks of all off [0] and all on [1] cells, by level
+    private final Node[][] uniform = new Node[2][64];
+
+    // the last calculated row, centered on cell 0, and its generation
+    private Node state;
+    private long stateGen;
+
+    // mark value for the sweep
+    private int sweepMark = 0;
+
+    // stats for the debug summary
+    private long numSteps = 0, numMemoHits = 0, numSweeps = 0;
+
+    // scratch words for stepping base level blocks
+    private final long[] baseCur = new long[2], baseNext = new long[2], leafWord = new long[1];
+
+    /**
+     * Constructor
+     *
+     * @param rule The rule number (0-255 inclusive)
+     */
+    public HashLifeEngine(int rule) {
+
+        this.rule = rule;
+        this.kernel = WolframRuleTable.getKernel(rule);
+    }
+
+    /**
+     * @return The rule number
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * Copy a range of cells of the specified generation into a packed row, stepping forward from the last
+     * calculated generation (or from generation 0, if the last one was later).
+     *
+     * @throws IllegalStateException If the generation can't be reached within the size limit of the block table
+     * @see GenerationSource#copyCells(long, int, int, long[], int)
+     */
+    @Override
+    public synchronized void copyCells(long generation, int firstCell, int numCells, long[] dst, int dstPos) {
+
+        Node row = seek(generation);
+
+        // anything outside of the row is background, the row's cells are then written over it
+        PackedCells.fill(dst, dstPos, numCells, WolframRuleTable.getBackgroundState(rule, generation));
+        extract(row, -halfWidth(row), firstCell, (long) firstCell + numCells, dst, dstPos);
+    }
+
+    /**
+     * @return The number of distinct blocks currently held
+     */
+    public synchronized int getNumNodes() {
+        return nodes.size();
+    }
+
+    @Override
+    public synchronized String getDebugSummary() {
+        return String.format("hl=%d@%d,steps=%d,memo=%d,sweep=%d", nodes.size(), stateGen, numSteps, numMemoHits,
+                numSweeps);
+    }
+
+    // get a row (centered on cell 0) holding the whole cone of the specified generation
+    private Node seek(long generation) {
+
+        if (generation < 0 || generation > MAX_GENERATION) {
+            throw new IllegalArgumentException("Generation " + generation + " out of range 0-" + MAX_GENERATION);
+        }
+
+        // can only step forwards, start again from generation 0 if necessary
+        if (state == null || stateGen > generation) {
+            state = join(leaf(0), leaf(1L)); // cells -64 to 63, cell 0 on
+            stateGen = 0;
+        }
+
+        // biggest steps first, one per bit of the remaining distance
+        long remaining = generation - stateGen;
+        while (remaining > 0) {
+
+            int stepLog = 63 - Long.numberOfLeadingZeros(remaining);
+            long step = 1L << stepLog;
+
+            /* The result of a step is the center half of the block, so pad the row out with background until that
+             * half is wide enough to hold the cone after the step (and the block's big enough to step that far) */
+            boolean background = WolframRuleTable.getBackgroundState(rule, stateGen);
+            while (state.level < BASE_LEVEL || state.level - 2 < stepLog || halfWidth(state) / 2 <= stateGen + step) {
+                state = expand(state, background);
+            }
+
+            try {
+                state = advance(state, stepLog);
+            } catch (IllegalStateException e) {
+                // start from scratch next time, everything in the table is tied up in the abandoned step
+                reset();
+                throw e;
+            }
+            stateGen += step;
+            remaining -= step;
+
+            if (nodes.size() > MAX_NODES) {
+                sweep();
+            }
+        }
+
+        return state;
+    }
+
+    /* The center half of block 'n', 2^stepLog generations ahead (stepLog being at most level-2).  Memoised in the
+     * block, the full step of 2^(level-2) generations permanently, and one smaller step size at a time */
+    private Node advance(Node n, int stepLog) {
+
+        boolean fullStep = stepLog == n.level - 2;
+
+        Node memo = fullStep ? n.result : (n.stepLog == stepLog ? n.stepResult : null);
+        if (memo != null) {
+            numMemoHits++;
+            return memo;
+        }
+
+        Node res;
+        if (n.level == BASE_LEVEL) {
+
+            res = leaf(stepBase(n.left.cells, n.right.cells, 1 << stepLog));
+
+        } else {
+
+            // the three overlapping half size blocks
+            Node n0 = n.left, n1 = join(n.left.right, n.right.left), n2 = n.right;
+
+            if (fullStep) {
+                // half the step in the first stage, half in the second
+                Node r0 = advance(n0, stepLog - 1), r1 = advance(n1, stepLog - 1), r2 = advance(n2, stepLog - 1);
+                res = join(advance(join(r0, r1), stepLog - 1), advance(join(r1, r2), stepLog - 1));
+            } else {
+                // the whole step in the first stage, the second just takes the center cells
+                Node r0 = advance(n0, stepLog), r1 = advance(n1, stepLog), r2 = advance(n2, stepLog);
+                res = join(center(r0, r1), center(r1, r2));
+            }
+        }
+
+        numSteps++;
+        if (fullStep) {
+            n.result = res;
+        } else {
+            n.stepLog = stepLog;
+            n.stepResult = res;
+        }
+        return res;
+    }
+
+    // step a two word block directly, returning the center word
+    private long stepBase(long left, long right, int generations) {
+
+        long[] cur = baseCur, next = baseNext;
+        cur[0] = left;
+        cur[1] = right;
+
+        /* cells beyond the ends are considered off, which is wrong for one more cell at each end each generation,
+         * but at most 2^(7-2) generations never reaches the center word */
+        for (int g = 0; g < generations; g++) {
+            kernel.step(cur, next, 0, 2);
+            long[] swap = cur;
+            cur = next;
+            next = swap;
+        }
+
+        return (cur[0] >>> 32) | (cur[1] << 32);
+    }
+
+    // the block made of the right half of 'l' and the left half of 'r'
+    private Node center(Node l, Node r) {
+
+        if (l.level == LEAF_LEVEL) {
+            return leaf((l.cells >>> 32) | (r.cells << 32));
+        }
+        return join(l.right, r.left);
+    }
+
+    // the block twice the size of 'n', with 'n' in the center and background either side
+    private Node expand(Node n, boolean background) {
+
+        if (n.level == LEAF_LEVEL) {
+            long pad = background ? -1L : 0L;
+            return join(leaf((n.cells << 32) | (pad >>> 32)), leaf((n.cells >>> 32) | (pad << 32)));
+        }
+
+        Node pad = uniform(n.level - 1, background);
+        return join(join(pad, n.left), join(n.right, pad));
+    }
+
+    private Node uniform(int level, boolean on) {
+
+        int idx = on ? 1 : 0;
+        Node n = uniform[idx][level];
+        if (n == null) {
+            n = level == LEAF_LEVEL ? leaf(on ? -1L : 0L) : join(uniform(level - 1, on), uniform(level - 1, on));
+            uniform[idx][level] = n;
+        }
+        return n;
+    }
+
+    // write the cells of block 'n' (whose first cell is 'nodeFirst') that fall within [from,to) to the row
+    private void extract(Node n, long nodeFirst, long from, long to, long[] dst, int dstPos) {
+
+        long lo = Math.max(from, nodeFirst), hi = Math.min(to, nodeFirst + (1L << n.level));
+        if (lo >= hi) {
+            return;
+        }
+
+        if (n.level == LEAF_LEVEL) {
+            leafWord[0] = n.cells;
+            PackedCells.copy(leafWord, (int) (lo - nodeFirst), dst, dstPos + (int) (lo - from), (int) (hi - lo));
+            return;
+        }
+
+        extract(n.left, nodeFirst, from, to, dst, dstPos);
+        extract(n.right, nodeFirst + (1L << (n.level - 1)), from, to, dst, dstPos);
+    }
+
+    private static long halfWidth(Node n) {
+        return 1L << (n.level - 1);
+    }
+
+    private Node leaf(long cells) {
+        return intern(new Node(cells));
+    }
+
+    private Node join(Node left, Node right) {
+        return intern(new Node(left, right));
+    }
+
+    private Node intern(Node n) {
+
+        Node existing = nodes.get(n);
+        if (existing != null) {
+            return existing;
+        }
+
+        if (nodes.size() >= MAX_NODES_IN_STEP) {
+            throw new IllegalStateException("HashLife table full (" + nodes.size() + " blocks), rule " + rule
+                    + " too complex at generation " + stateGen);
+        }
+
+        n.id = nextId++;
+        nodes.put(n, n);
+        return n;
+    }
+
+    // forget everything, including the current row
+    private void reset() {
+
+        nodes.clear();
+        uniform[0] = new Node[64];
+        uniform[1] = new Node[64];
+        state = null;
+        stateGen = 0;
+    }
+
+    /* Forget every memoised future, and remove any blocks that aren't part of the current row.  Without the futures,
+     * nothing else can refer to the removed blocks */
+    private void sweep() {
+
+        int before = nodes.size();
+
+        sweepMark++;
+        mark(state);
+
+        Iterator<Node> it = nodes.keySet().iterator();
+        while (it.hasNext()) {
+            Node n = it.next();
+            if (n.mark != sweepMark) {
+                it.remove();
+            } else {
+                n.result = null;
+                n.stepResult = null;
+                n.stepLog = -1;
+            }
+        }
+
+        // any that survived will be found again in the table
+        uniform[0] = new Node[64];
+        uniform[1] = new Node[64];
+
+        numSweeps++;
+        LOG.fine("HashLife sweep, " + before + " blocks reduced to " + nodes.size());
+    }
+
+    private void mark(Node n) {
+
+        if (n.mark == sweepMark) {
+            return;
+        }
+        n.mark = sweepMark;
+        if (n.level > LEAF_LEVEL) {
+            mark(n.left);
+            mark(n.right);
+        }
+    }
+
+    /* A block of 2^level cells.  Leaves hold their cells in a single word, larger blocks are made of two half size
+     * blocks.  Equality is by content, which (as the halves are themselves unique) is just the identity of the
+     * halves. */
+    private static class Node {
+
+        final int level;
+        final long cells;
+        final Node left, right;
+        final int hash;
+
+        int id;
+        int mark;
+
+        // the memoised futures, see advance()
+        Node result;
+        Node stepResult;
+        int stepLog = -1;
+
+        Node(long cells) {
+            this.level = LEAF_LEVEL;
+            this.cells = cells;
+            this.left = null;
+            this.right = null;
+            this.hash = (int) (cells ^ (cells >>> 32)) * 0x9E3779B1;
+        }
+
+        Node(Node left, Node right) {
+            this.level = left.level + 1;
+            this.cells = 0;
+            this.left = left;
+            this.right = right;
+            this.hash = (left.id * 31 + right.id) * 0x9E3779B1 + level;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Node other = (Node) o;
+            if (level != other.level) {
+                return false;
+            }
+            return level == LEAF_LEVEL ? cells == other.cells : (left == other.left && right == other.right);
+        }
+    }
+
+}
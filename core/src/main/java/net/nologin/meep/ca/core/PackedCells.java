@@ -0,0 +1,180 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Static helpers for working with rows of CA cells packed 64 to a <code>long</code> word, rather than one cell per
+ * <code>boolean</code>.  Cell <i>i</i> of a row is stored in bit <code>(i % 64)</code> of word <code>(i / 64)</code>,
+ * so the left neighbour of a cell is the next lower bit, and the right neighbour the next higher bit:
+ * <pre>
+ *     word:           [         0          ] [         1          ]
+ *     bit:             0  1  2  ...  62  63   0  1  2  ...  62  63
+ *     cell:            0  1  2  ...  62  63  64 65 66  ... 126 127
+ * </pre>
+ * Working with whole words lets us compute the next state of 64 cells at once, with a handful of shifts and
+ * bitwise operations standing in for a per-cell rule lookup.
+ *
+ * @see StepKernel
+ */
+public final class PackedCells {
+
+    private PackedCells() {
+    } // no instantiation
+
+    /**
+     * @param numCells The number of cells in the row
+     * @return The number of <code>long</code> words needed to hold that many cells
+     */
+    public static int wordsFor(int numCells) {
+        return (numCells + 63) >>> 6;
+    }
+
+    /**
+     * @param cells The packed row
+     * @param idx   The index of the cell
+     * @return The state of the specified cell
+     */
+    public static boolean get(long[] cells, int idx) {
+        return (cells[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    /**
+     * @param cells The packed row
+     * @param idx   The index of the cell to switch on
+     */
+    public static void set(long[] cells, int idx) {
+        cells[idx >>> 6] |= 1L << idx;
+    }
+
+    /**
+     * Read up to 64 cells starting at an arbitrary (not necessarily word aligned) position.  Positions beyond the
+     * end of the array read as off.
+     *
+     * @param cells The packed row
+     * @param pos   The index of the first cell to read
+     * @return A word whose bit 0 holds cell <code>pos</code>, bit 1 cell <code>pos+1</code> and so on
+     */
+    public static long getWord(long[] cells, int pos) {
+
+        int w = pos >>> 6, shift = pos & 63;
+
+        long val = cells[w] >>> shift;
+        if (shift != 0 && w + 1 < cells.length) {
+            val |= cells[w + 1] << (64 - shift);
+        }
+        return val;
+    }
+
+    /**
+     * Copy a range of cells between two packed rows, neither position needing to be word aligned.  Cells in the
+     * destination outside of the copied range are left untouched.
+     *
+     * @param src    The source row
+     * @param srcPos The index of the first source cell
+     * @param dst    The destination row
+     * @param dstPos The index of the first destination cell
+     * @param len    The number of cells to copy
+     */
+    public static void copy(long[] src, int srcPos, long[] dst, int dstPos, int len) {
+
+        for (int i = 0; i < len; i += 64) {
+            int n = Math.min(64, len - i);
+            setBits(dst, dstPos + i, getWord(src, srcPos + i), n);
+        }
+    }
+
+    /**
+     * Set a range of cells in a packed row to the same state, the position not needing to be word aligned.
+     *
+     * @param dst The row
+     * @param pos The index of the first cell to set
+     * @param len The number of cells to set
+     * @param on  The state to set the cells to
+     */
+    public static void fill(long[] dst, int pos, int len, boolean on) {
+
+        long val = on ? -1L : 0L;
+        for (int i = 0; i < len; i += 64) {
+            setBits(dst, pos + i, val, Math.min(64, len - i));
+        }
+    }
+
+    // write the lowest 'n' bits of 'val' into the row starting at an arbitrary position
+    static void setBits(long[] dst, int pos, long val, int n) {
+
+        long mask = n == 64 ? -1L : (1L << n) - 1;
+        val &= mask;
+
+        int w = pos >>> 6, shift = pos & 63;
+
+        dst[w] = (dst[w] & ~(mask << shift)) | (val << shift);
+
+        // the range straddles a word boundary, write the remainder into the following word
+        if (shift != 0 && shift + n > 64) {
+            int carry = 64 - shift;
+            dst[w + 1] = (dst[w + 1] & ~(mask >>> carry)) | (val >>> carry);
+        }
+    }
+
+    /**
+     * Calculate the next generation for a packed row of cells, as a drop-in for calling
+     * {@link WolframRuleTable#getNextState(int, boolean, boolean, boolean)} on each cell in turn.
+     * <br/><br/>
+     * The row has no neighbours beyond its ends, so (just like the ends of the strips calculated by a
+     * {@link BandEngine}) the first and last cells can't be calculated, and are left off in the next
+     * generation.  Any bits beyond <code>numCells</code> in the last word are also cleared.
+     *
+     * @param kernel   The kernel for the rule, see {@link WolframRuleTable#getKernel(int)}
+     * @param src      The current generation
+     * @param dst      Where the next generation should be written (must not be the same array as <code>src</code>)
+     * @param numCells The number of cells in the row
+     */
+    public static void step(StepKernel kernel, long[] src, long[] dst, int numCells) {
+
+        int words = wordsFor(numCells);
+
+        kernel.step(src, dst, 0, words);
+
+        // the end cells have no outer neighbour, so they stay off
+        dst[0] &= ~1L;
+        dst[(numCells - 1) >>> 6] &= ~(1L << (numCells - 1));
+
+        // don't leave anything past the end of the row
+        if ((numCells & 63) != 0) {
+            dst[words - 1] &= (1L << numCells) - 1;
+        }
+    }
+
+    /**
+     * As {@link #step(StepKernel, long[], long[], int)}, but advancing several generations at once.  As many cells at
+     * each end of the row as generations advanced can't be calculated, and are left off.
+     *
+     * @param kernel   The block kernel for the rule, see {@link WolframRuleTable#getBlockKernel(int)}
+     * @param src      The current generation
+     * @param dst      Where the generation <i>k</i> on should be written (must not be the same array as
+     *                 <code>src</code>)
+     * @param numCells The number of cells in the row
+     */
+    public static void step(BlockStepKernel kernel, long[] src, long[] dst, int numCells) {
+
+        int words = wordsFor(numCells);
+        int k = Math.min(kernel.getGenerations(), numCells);
+
+        kernel.step(src, dst, 0, words);
+
+        // the end cells have no outer neighbours, so they stay off
+        fill(dst, 0, k, false);
+        fill(dst, numCells - k, k, false);
+
+        // don't leave anything past the end of the row
+        if ((numCells & 63) != 0) {
+            dst[words - 1] &= (1L << numCells) - 1;
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Where a {@link BandEngine} sends the rendered pixels of each tile in a band, so the core doesn't depend on any
+ * particular kind of bitmap (the app puts them in Android bitmaps, a desktop tool might write image files).
+ * <br/><br/>
+ * Tiles are identified by their index in the band, 0 being the leftmost.  Calls are made on the thread calculating
+ * the band.
+ */
+public interface PixelSink {
+
+    /**
+     * @param index The tile's index in the band
+     * @return <code>true</code> if the tile should be rendered, otherwise only its last cell row is kept
+     */
+    boolean wantsPixels(int index);
+
+    /**
+     * Take the rendered pixels of a tile.  The buffer belongs to the calling thread, and will be overwritten once
+     * this returns, so the pixels must be copied out.
+     *
+     * @param index  The tile's index in the band
+     * @param pixels The pixels, one int (ARGB) each, <code>size</code> x <code>size</code> row by row
+     * @param size   The width and height of the tile, in pixels
+     */
+    void setPixels(int index, int[] pixels, int size);
+
+}
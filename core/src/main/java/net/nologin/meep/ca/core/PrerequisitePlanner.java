@@ -0,0 +1,122 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Works out which tiles have to be calculated before a tile can be.  To calculate any given tile, we need the last
+ * cell row of the above left, above, and above right tiles.  If those tiles haven't been calculated, we keep
+ * iterating up the inverse triangle of dependencies (claiming all those found), until we hit the top row (y=0), a row
+ * where nothing is missing, or have gone {@link #getMaxTileRows()} rows up.  The topmost tiles claimed then get their
+ * starting state from a {@link GenerationSeeker} instead (see {@link BandEngine}), which deep down the grid is cheaper
+ * than filling in the whole triangle up to y=0.
+ * <br/><br/>
+ * The claimed tiles are queued highest first, so that they can be calculated in order.  Not thread safe, the working
+ * buffer is reused from one call to the next.
+ */
+public class PrerequisitePlanner {
+
+    /**
+     * The tile grid being planned, as seen by the planner
+     */
+    public interface Grid {
+
+        /**
+         * @param xId The tile's x ID
+         * @param yId The tile's y ID
+         * @return <code>true</code> if the tile needs calculating and hasn't already been claimed, in which case it
+         *         now counts as claimed (and will be queued)
+         */
+        boolean claim(int xId, int yId);
+
+        /**
+         * Queue a claimed tile for calculation
+         *
+         * @param xId The tile's x ID
+         * @param yId The tile's y ID
+         */
+        void enqueue(int xId, int yId);
+    }
+
+    private final int maxTileRows;
+
+    // x and y of each claimed tile, in the order they were found
+    private int[] claimed = new int[64];
+
+    /**
+     * Constructor
+     *
+     * @param maxTileRows How many tile rows above a tile to search before giving up and letting the top row of
+     *                    prerequisites start from a seek instead
+     */
+    public PrerequisitePlanner(int maxTileRows) {
+        this.maxTileRows = maxTileRows;
+    }
+
+    /**
+     * @return How many tile rows above a tile are searched
+     */
+    public int getMaxTileRows() {
+        return maxTileRows;
+    }
+
+    /**
+     * Claim and queue the prerequisite tiles of a tile (not including the tile itself).
+     *
+     * @param xId  The tile's x ID
+     * @param yId  The tile's y ID
+     * @param grid The grid
+     */
+    public void plan(int xId, int yId, Grid grid) {
+
+        if (yId <= 0) {  // top tile doesn't have prerequisite tiles
+            return;
+        }
+
+        int numClaimed = 0;
+
+        int curY = yId - 1;   // start one tile row up
+        int curXMin = xId - 1, curXMax = xId + 1;  // scan from x-1 to x+1 of that parent tile row
+
+        // keep looping up to the top tile row (y=0) unless we hit a set of already calculated tiles first
+        int minY = Math.max(0, yId - maxTileRows);
+        while (curY >= minY) {
+
+            boolean foundMissing = false;
+
+            for (int x = curXMin; x <= curXMax; x++) {
+                if (grid.claim(x, curY)) {
+                    foundMissing = true;
+                    if (numClaimed * 2 == claimed.length) {
+                        int[] bigger = new int[claimed.length * 2];
+                        System.arraycopy(claimed, 0, bigger, 0, claimed.length);
+                        claimed = bigger;
+                    }
+                    claimed[numClaimed * 2] = x;
+                    claimed[numClaimed * 2 + 1] = curY;
+                    numClaimed++;
+                }
+            }
+
+            // if the current level of prerequisite tiles are already calculated, we're done
+            if (!foundMissing) {
+                break;
+            }
+
+            // move up a tile row, expand left and right by one tile
+            curXMin--;
+            curXMax++;
+            curY--;
+        }
+
+        // we claimed tiles while working upwards - queue them in reverse so higher up tiles get processed first!
+        for (int i = numClaimed - 1; i >= 0; i--) {
+            grid.enqueue(claimed[i * 2], claimed[i * 2 + 1]);
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.*;
+
+/**
+ * Small previews of all 256 rules: the first generations of each, from the usual single center cell, calculated
+ * together in one pass.
+ * <br/><br/>
+ * Rather than stepping each rule's row in turn, the cells are 'bit sliced': each word holds the same cell under 64
+ * different rules, one rule per bit, so a cell's neighbours are just the words either side of it, and one
+ * {@link StepKernel} evaluation (with a different rule in each bit, see <code>StepKernel.Generic</code>) calculates
+ * the cell under 64 rules at once.  All 256 rules take 4 words per cell:
+ * <pre>
+ *      word (group g, generation y, cell x):   bit j = cell x of generation y under rule 64g+j
+ * </pre>
+ * The cells either side of the thumbnail are each rule's background (see
+ * {@link WolframRuleTable#getBackgroundState(int, long)}), sliced the same way, so with a width of at least
+ * <code>2 * height - 1</code> the thumbnails are exactly what the app shows at the top of the CA.
+ * <br/><br/>
+ * Immutable once calculated (or read), so safe for use from multiple threads.
+ */
+public class RuleThumbnails {
+
+    /**
+     * The number of rules, and so thumbnails
+     */
+    public static final int NUM_RULES = 256;
+
+    // rules per word, and words per cell
+    private static final int LANES = 64, GROUPS = NUM_RULES / LANES;
+
+    // for write() and read(), bumped whenever the thumbnails would come out different
+    private static final int FILE_MAGIC = 0x57435448; // "WCTH"
+    private static final int FILE_VERSION = 1;
+
+    private final int width, height;
+
+    // slices[(group * height + generation) * width + cell]
+    private final long[] slices;
+
+    private RuleThumbnails(int width, int height, long[] slices) {
+        this.width = width;
+        this.height = height;
+        this.slices = slices;
+    }
+
+    /**
+     * Calculate the thumbnails of all rules
+     *
+     * @param width  The number of cells across, the center cell being <code>width / 2</code>
+     * @param height The number of generations, including generation 0
+     * @return The thumbnails
+     */
+    public static RuleThumbnails calculate(int width, int height) {
+
+        if (width < 1 || height < 1 || (long) width * height * GROUPS > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Thumbnails of " + width + "x" + height + " cells");
+        }
+
+        long[] slices = new long[GROUPS * height * width];
+
+        for (int group = 0; group < GROUPS; group++) {
+
+            StepKernel.Generic kernel = StepKernel.Generic.forRules(group * LANES);
+
+            // generation 0: just the center cell, under every rule, and an 'off' background
+            int rowPos = group * height * width;
+            slices[rowPos + width / 2] = -1L;
+            long background = 0L;
+
+            for (int y = 1; y < height; y++) {
+
+                int prevPos = rowPos;
+                rowPos += width;
+
+                // the same neighbourhoods, shared by all 64 rules
+                for (int x = 0; x < width; x++) {
+                    long l = x > 0 ? slices[prevPos + x - 1] : background;
+                    long r = x < width - 1 ? slices[prevPos + x + 1] : background;
+                    slices[rowPos + x] = kernel.next(l, slices[prevPos + x], r);
+                }
+
+                background = kernel.next(background, background, background);
+            }
+        }
+
+        return new RuleThumbnails(width, height, slices);
+    }
+
+    /**
+     * @return The number of cells across each thumbnail
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The number of generations in each thumbnail
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param rule       The rule number (0-255)
+     * @param cell       The cell, 0 being the leftmost
+     * @param generation The generation, 0 being the first
+     * @return Whether the cell is on
+     */
+    public boolean isOn(int rule, int cell, int generation) {
+        return (slices[((rule / LANES) * height + generation) * width + cell] & (1L << rule)) != 0;
+    }
+
+    /**
+     * Render a rule's thumbnail, a pixel per cell
+     *
+     * @param rule     The rule number (0-255)
+     * @param colorOn  The colour of cells that are on
+     * @param colorOff The colour of cells that are off
+     * @param pixels   The pixels, at least {@link #getWidth()} x {@link #getHeight()}, row by row
+     */
+    public void render(int rule, int colorOn, int colorOff, int[] pixels) {
+
+        if (rule < 0 || rule >= NUM_RULES) {
+            throw new IllegalArgumentException("Rule must be between 0 and 255");
+        }
+
+        long bit = 1L << rule;
+        int pos = (rule / LANES) * height * width;
+        for (int i = 0; i < width * height; i++) {
+            pixels[i] = (slices[pos + i] & bit) != 0 ? colorOn : colorOff;
+        }
+    }
+
+    /**
+     * Save the thumbnails, to be {@link #read(InputStream, int, int) read} back rather than calculated next time
+     *
+     * @param out Where to write the thumbnails, which is left open
+     * @throws IOException If writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(FILE_MAGIC);
+        data.writeInt(FILE_VERSION);
+        data.writeInt(width);
+        data.writeInt(height);
+        for (long slice : slices) {
+            data.writeLong(slice);
+        }
+        data.flush();
+    }
+
+    /**
+     * Read back thumbnails saved with {@link #write(OutputStream)}
+     *
+     * @param in     The saved thumbnails, which is left open
+     * @param width  The number of cells across expected
+     * @param height The number of generations expected
+     * @return The thumbnails
+     * @throws IOException If reading fails, or the thumbnails aren't of the expected size or format version
+     */
+    public static RuleThumbnails read(InputStream in, int width, int height) throws IOException {
+
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != FILE_MAGIC || data.readInt() != FILE_VERSION) {
+            throw new IOException("Not thumbnails of the current version");
+        }
+        if (data.readInt() != width || data.readInt() != height) {
+            throw new IOException("Thumbnails not of size " + width + "x" + height);
+        }
+
+        long[] slices = new long[GROUPS * height * width];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = data.readLong();
+        }
+        return new RuleThumbnails(width, height, slices);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * The working arrays a tile worker thread needs, kept from one band of tiles to the next so that calculating tiles
+ * doesn't allocate anything but the state the tiles keep (their last cell row and bitmap).  Arrays only get
+ * reallocated when a bigger size is asked for, after which the bigger arrays are kept.
+ * <br/><br/>
+ * The contents of the arrays are whatever was left in them by the last use.  Not thread safe, each worker thread
+ * should have its own instance (see {@link #forCurrentThread()}).
+ *
+ * @see BandEngine
+ */
+public final class ScratchArena {
+
+    private static final ThreadLocal<ScratchArena> ARENAS = new ThreadLocal<ScratchArena>() {
+        @Override
+        protected ScratchArena initialValue() {
+            return new ScratchArena();
+        }
+    };
+
+    private long[] startRow = new long[0];
+    private long[][] rows = new long[0][0];
+    private long[][] coneRows = new long[2][0];
+    private int[] pixels;
+
+    // stats for the debug summary
+    private int numGrows = 0;
+
+    private ScratchArena() {
+    } // see forCurrentThread()
+
+    /**
+     * @return The calling thread's arena
+     */
+    public static ScratchArena forCurrentThread() {
+        return ARENAS.get();
+    }
+
+    /**
+     * @param words The number of words needed
+     * @return A packed row of at least that many words
+     */
+    public long[] getStartRow(int words) {
+
+        if (startRow.length < words) {
+            startRow = new long[words];
+            numGrows++;
+        }
+        return startRow;
+    }
+
+    /**
+     * @param numRows The number of rows needed
+     * @param words   The number of words needed in each row
+     * @return At least that many packed rows, each at least that many words
+     */
+    public long[][] getRows(int numRows, int words) {
+
+        if (rows.length < numRows || rows[0].length < words) {
+            rows = new long[Math.max(numRows, rows.length)][Math.max(words, rows.length == 0 ? 0 : rows[0].length)];
+            numGrows++;
+        }
+        return rows;
+    }
+
+    /**
+     * @param words The number of words needed
+     * @return Two packed rows of at least that many words, to step a generation's cone from one to the other (see
+     *         {@link GenerationCheckpoints})
+     */
+    public long[][] getConeRows(int words) {
+
+        if (coneRows[0].length < words) {
+            coneRows = new long[2][words];
+            numGrows++;
+        }
+        return coneRows;
+    }
+
+    /**
+     * @return A pixel buffer for the {@link TileRenderer}
+     */
+    public int[] getPixels() {
+
+        if (pixels == null) {
+            pixels = TileRenderer.createPixelBuffer();
+            numGrows++;
+        }
+        return pixels;
+    }
+
+    /**
+     * @return The number of times an array was (re)allocated, which stops increasing once the arena has grown to
+     *         the biggest sizes asked for
+     */
+    public int getNumGrows() {
+        return numGrows;
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Arrays;
+
+/**
+ * Calculates the next generation of a {@link PackedCells packed} row of cells for a single rule, a word (64 cells)
+ * at a time.  One instance exists per rule, see {@link WolframRuleTable#getKernel(int)}.
+ * <br/><br/>
+ * Most rules are evaluated by subclasses implementing {@link #next(long, long, long)}, which receives every cell in
+ * a word lined up with its left and right neighbours.  Rules that simplify to something trivial (all off, all on,
+ * a copy or a complement of the row) override {@link #step(long[], long[], int, int)} entirely.
+ *
+ * @see WolframRuleTable
+ * @see PackedCells
+ */
+public abstract class StepKernel {
+
+    /**
+     * Calculate the next state of words <code>from</code> (inclusive) to <code>to</code> (exclusive).  The
+     * neighbours of the cells at either end of the range are taken from the adjacent words of <code>src</code> if
+     * they exist, otherwise they are considered off.  Words in <code>dst</code> outside of the range are untouched.
+     *
+     * @param src  The current generation
+     * @param dst  Where the next generation should be written (must not be the same array as <code>src</code>)
+     * @param from The index of the first word to calculate
+     * @param to   The index after the last word to calculate
+     */
+    public void step(long[] src, long[] dst, int from, int to) {
+
+        int last = src.length - 1;
+
+        for (int w = from; w < to; w++) {
+
+            // line up every cell's left and right neighbour with the cell itself, borrowing across word boundaries
+            long c = src[w];
+            long l = (c << 1) | (w > 0 ? src[w - 1] >>> 63 : 0);
+            long r = (c >>> 1) | (w < last ? src[w + 1] << 63 : 0);
+
+            dst[w] = next(l, c, r);
+        }
+    }
+
+    /**
+     * @param l The left neighbour of each of the 64 cells
+     * @param c The 64 cells
+     * @param r The right neighbour of each of the 64 cells
+     * @return The next state of the 64 cells
+     */
+    protected abstract long next(long l, long c, long r);
+
+
+    /* Any rule, evaluated as a tree of multiplexers selecting the rule bit for each of the 64 neighbourhoods in
+     * parallel (l picks the top or bottom half of the rule, c the quarter, r the bit).
+     *
+     * Nothing requires the 64 bits to use the same rule: with bit 'j' of each mask taken from a different rule, the
+     * same operations evaluate 64 rules at once, one per bit (see RuleThumbnails) */
+    static final class Generic extends StepKernel {
+
+        // one mask per bit of the rule number (all-on or all-off for a single rule), see WolframRuleTable
+        private final long m0, m1, m2, m3, m4, m5, m6, m7;
+
+        Generic(int rule) {
+            this(-(rule & 1), -((rule >>> 1) & 1), -((rule >>> 2) & 1), -((rule >>> 3) & 1),
+                    -((rule >>> 4) & 1), -((rule >>> 5) & 1), -((rule >>> 6) & 1), -((rule >>> 7) & 1));
+        }
+
+        Generic(long m0, long m1, long m2, long m3, long m4, long m5, long m6, long m7) {
+            this.m0 = m0;
+            this.m1 = m1;
+            this.m2 = m2;
+            this.m3 = m3;
+            this.m4 = m4;
+            this.m5 = m5;
+            this.m6 = m6;
+            this.m7 = m7;
+        }
+
+        // a kernel evaluating rules 'firstRule' to 'firstRule+63', bit 'j' of each word under rule 'firstRule+j'
+        static Generic forRules(int firstRule) {
+
+            long[] m = new long[8];
+            for (int j = 0; j < 64; j++) {
+                for (int bit = 0; bit < 8; bit++) {
+                    m[bit] |= (long) (((firstRule + j) >>> bit) & 1) << j;
+                }
+            }
+            return new Generic(m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7]);
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+
+            long lOn = (c & ((r & m7) | (~r & m6))) | (~c & ((r & m5) | (~r & m4)));
+            long lOff = (c & ((r & m3) | (~r & m2))) | (~c & ((r & m1) | (~r & m0)));
+
+            return (l & lOn) | (~l & lOff);
+        }
+    }
+
+    // Rules 0 and 255, every cell becomes off or on regardless of the current generation
+    static final class Constant extends StepKernel {
+
+        private final long val;
+
+        Constant(boolean on) {
+            val = on ? -1L : 0L;
+        }
+
+        @Override
+        public void step(long[] src, long[] dst, int from, int to) {
+            Arrays.fill(dst, from, to, val);
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+            return val;
+        }
+    }
+
+    // Rule 204, every cell keeps its state
+    static final class Identity extends StepKernel {
+
+        @Override
+        public void step(long[] src, long[] dst, int from, int to) {
+            System.arraycopy(src, from, dst, from, to - from);
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+            return c;
+        }
+    }
+
+    // Rule 51, every cell flips its state
+    static final class Complement extends StepKernel {
+
+        @Override
+        public void step(long[] src, long[] dst, int from, int to) {
+            for (int w = from; w < to; w++) {
+                dst[w] = ~src[w];
+            }
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+            return ~c;
+        }
+    }
+
+    // Rules 240/15 and 170/85, every cell takes the state of (or the opposite of) its left or right neighbour
+    static final class Shift extends StepKernel {
+
+        private final boolean fromLeft;
+        private final long flip;
+
+        Shift(boolean fromLeft, boolean complement) {
+            this.fromLeft = fromLeft;
+            this.flip = complement ? -1L : 0L;
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+            return (fromLeft ? l : r) ^ flip;
+        }
+    }
+
+    /* The additive rules - the next state is the XOR of some of the neighbourhood (or the complement of it): 60/195
+     * (l^c), 102/153 (c^r), 90/165 (l^r) and 150/105 (l^c^r) */
+    static final class Additive extends StepKernel {
+
+        private final long useL, useC, useR, flip;
+
+        Additive(boolean l, boolean c, boolean r, boolean complement) {
+            useL = l ? -1L : 0L;
+            useC = c ? -1L : 0L;
+            useR = r ? -1L : 0L;
+            flip = complement ? -1L : 0L;
+        }
+
+        @Override
+        protected long next(long l, long c, long r) {
+            return (l & useL) ^ (c & useC) ^ (r & useR) ^ flip;
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Where the cells and generations of each tile of the grid lie, for a given zoom level.
+ * <br/><br/>
+ * Tiles are square, {@link #getCellsPerEdge()} cells across and down.  Each row of cells is a generation, tile row
+ * <i>y</i> starting at generation <code>origin + y * cellsPerEdge</code>, where the origin is the generation shown in
+ * the first cell row of tile row 0.  Tile <i>x</i> holds the cells starting at <code>x * cellsPerEdge -
+ * cellsPerEdge / 2</code>, relative to the center cell that's on in generation 0, so that cell is in the middle of
+ * tile x=0:
+ * <pre>
+ *      |  x=-1  |  x=0   |  x=1   |
+ *      |........|...#....|........|     origin generation (0)
+ * </pre>
+ * Instances are immutable.
+ *
+ * @see BandEngine
+ */
+public class TileGeometry {
+
+    /**
+     * The width and height of a tile, in pixels
+     */
+    public static final int TILE_SIZE = 256;
+
+    private final int pixelsPerCell;
+    private final int cellsPerEdge;
+
+    /**
+     * Constructor
+     *
+     * @param pixelsPerCell The number of pixels across (and down) each cell
+     */
+    public TileGeometry(int pixelsPerCell) {
+
+        if (pixelsPerCell < 1 || pixelsPerCell > TILE_SIZE) {
+            throw new IllegalArgumentException("Pixels per cell " + pixelsPerCell + " not in range 1-" + TILE_SIZE);
+        }
+        this.pixelsPerCell = pixelsPerCell;
+        this.cellsPerEdge = TILE_SIZE / pixelsPerCell;
+    }
+
+    /**
+     * @return The number of pixels across (and down) each cell
+     */
+    public int getPixelsPerCell() {
+        return pixelsPerCell;
+    }
+
+    /**
+     * @return The number of cells across (and down) each tile
+     */
+    public int getCellsPerEdge() {
+        return cellsPerEdge;
+    }
+
+    /**
+     * @param xId The tile's x ID
+     * @return The tile's first cell, relative to the center cell
+     */
+    public long getFirstCell(int xId) {
+        return (long) xId * cellsPerEdge - cellsPerEdge / 2;
+    }
+
+    /**
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param yId    The tile's y ID
+     * @return The generation shown in the tile's first cell row
+     */
+    public long getFirstGeneration(long origin, int yId) {
+        return origin + (long) yId * cellsPerEdge;
+    }
+
+    /**
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param yId    The tile's y ID
+     * @return The generation shown in the tile's last cell row
+     */
+    public long getLastGeneration(long origin, int yId) {
+        return getFirstGeneration(origin, yId) + cellsPerEdge - 1;
+    }
+
+    /**
+     * With the single cell starting generation, a cell <i>c</i> cells from the center can't change from the
+     * background state (see {@link WolframRuleTable#getBackgroundState(int, long)}) before generation <i>|c|</i>.  A
+     * tile entirely outside of that cone is just rows of background.
+     *
+     * @param origin The generation shown in the first cell row of tile row 0
+     * @param xId    The tile's x ID
+     * @param yId    The tile's y ID
+     * @return <code>true</code> if the tile is entirely outside the cone
+     */
+    public boolean isOutsideCone(long origin, int xId, int yId) {
+
+        long lastGen = getLastGeneration(origin, yId);
+        long firstCell = getFirstCell(xId);
+        long lastCell = firstCell + cellsPerEdge - 1;
+
+        return firstCell > lastGen || lastCell < -lastGen;
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lookup part of a tile cache: tiles by x and y ID, created on first use, with a use 'clock' for least recently
+ * used eviction and hit/miss stats.  What's kept in the tiles, and when they're evicted, is up to the cache using it.
+ * <br/><br/>
+ * Safe for use from multiple threads, lookups don't take any locks.
+ *
+ * @param <T> The tile type
+ */
+public class TileIndex<T extends TileIndex.Entry> {
+
+    /**
+     * A tile that can be kept in the index
+     */
+    public interface Entry {
+
+        /**
+         * Called on each {@link TileIndex#getOrCreate(int, int)} of the tile
+         *
+         * @param tick The index's clock, which increases with each call
+         */
+        void setLastUsed(long tick);
+    }
+
+    /**
+     * Creates tiles on first use
+     *
+     * @param <T> The tile type
+     */
+    public interface Factory<T> {
+
+        /**
+         * @param xId The tile's x ID
+         * @param yId The tile's y ID
+         * @return A new tile
+         */
+        T create(int xId, int yId);
+    }
+
+    private final Factory<T> factory;
+
+    private final ConcurrentMap<Long, T> tiles = new ConcurrentHashMap<Long, T>();
+
+    // ticks on each access, tiles store the value on each use for LRU ordering
+    private final AtomicLong clock = new AtomicLong();
+
+    private final AtomicLong numHits = new AtomicLong(), numMisses = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param factory Creates tiles on first use
+     */
+    public TileIndex(Factory<T> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @return The key the tile is indexed by
+     */
+    public static long key(int xId, int yId) {
+        return ((long) xId << 32) | (yId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Get the tile with the specified ID, creating and indexing it if necessary.  Counts as a use of the tile, and
+     * towards the hit/miss stats.
+     *
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @return The indexed tile
+     */
+    public T getOrCreate(int xId, int yId) {
+
+        Long key = key(xId, yId);
+
+        T t = tiles.get(key);
+        if (t != null) {
+            numHits.incrementAndGet();
+        } else {
+            numMisses.incrementAndGet();
+            t = factory.create(xId, yId);
+            T existing = tiles.putIfAbsent(key, t);
+            if (existing != null) {
+                t = existing;
+            }
+        }
+
+        t.setLastUsed(clock.incrementAndGet());
+        return t;
+    }
+
+    /**
+     * Get the tile with the specified ID without creating it, or affecting its last use or the stats.
+     *
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @return The indexed tile, or <code>null</code> if not in the index
+     */
+    public T peek(int xId, int yId) {
+        return tiles.get(key(xId, yId));
+    }
+
+    /**
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     */
+    public void remove(int xId, int yId) {
+        tiles.remove(key(xId, yId));
+    }
+
+    /**
+     * Remove a tile only if it's still the one indexed under its ID, so that a tile created in its place by another
+     * thread isn't removed by mistake.
+     *
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @param t   The tile expected to be indexed
+     * @return <code>true</code> if the tile was removed
+     */
+    public boolean remove(int xId, int yId, T t) {
+        return tiles.remove(key(xId, yId), t);
+    }
+
+    /**
+     * @return A live view of the indexed tiles, which can be iterated while tiles are added and removed
+     */
+    public Collection<T> values() {
+        return tiles.values();
+    }
+
+    /**
+     * @return The number of tiles in the index
+     */
+    public int size() {
+        return tiles.size();
+    }
+
+    /**
+     * Remove all tiles from the index
+     */
+    public void clear() {
+        tiles.clear();
+    }
+
+    /**
+     * @return The number of {@link #getOrCreate(int, int)} calls that found the tile already indexed
+     */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /**
+     * @return The number of {@link #getOrCreate(int, int)} calls that had to create the tile
+     */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+}
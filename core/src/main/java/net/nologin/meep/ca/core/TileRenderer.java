@@ -0,0 +1,123 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+/**
+ * Renders rows of {@link PackedCells packed} cells straight into a tile sized buffer of pixels (which a
+ * {@link PixelSink} then puts on screen), so a tile doesn't need a cell sized bitmap that's then scaled up.
+ * <br/><br/>
+ * Cell <i>i</i> of a tile covers pixels <code>spans[i]</code> to <code>spans[i+1]-1</code>, which (as the tile size
+ * isn't always a multiple of the cell size) are worked out the same way as a nearest neighbour scale from the cell
+ * sized bitmap would.  Rows of cells are rendered 8 cells at a time: for each group of 8 cells, the pixels for all 256
+ * possible patterns of those cells are worked out up front, so a row is just a handful of array copies.  As cells are
+ * square, the same spans apply to the rows.
+ * <br/><br/>
+ * One instance is needed per zoom level and colour scheme.  Instances are immutable (safe for use from multiple
+ * threads), each thread rendering into its own pixel buffer.
+ *
+ * @see BandEngine
+ */
+public class TileRenderer {
+
+    /**
+     * The width and height of the rendered tiles, in pixels
+     */
+    public static final int SIZE = TileGeometry.TILE_SIZE;
+
+    private final int cellsPerEdge;
+
+    // the first pixel of each cell (and one past the last cell)
+    private final int[] spans;
+
+    // for each group of 8 cells, the pixels for each of the 256 patterns, one after the other
+    private final int[][] patternPixels;
+
+    /**
+     * Constructor
+     *
+     * @param cellsPerEdge  The number of cells across (and down) each tile
+     * @param colorPixelOn  The colour of cells that are on
+     * @param colorPixelOff The colour of cells that are off
+     */
+    public TileRenderer(int cellsPerEdge, int colorPixelOn, int colorPixelOff) {
+
+        this.cellsPerEdge = cellsPerEdge;
+
+        /* pixel p shows the cell under its center, ie cell ((p + 0.5) * cellsPerEdge / SIZE).  Work out where each
+         * cell starts from that */
+        spans = new int[cellsPerEdge + 1];
+        spans[cellsPerEdge] = SIZE;
+        for (int p = SIZE - 1; p >= 0; p--) {
+            spans[((2 * p + 1) * cellsPerEdge) / (2 * SIZE)] = p;
+        }
+
+        int numGroups = (cellsPerEdge + 7) / 8;
+        patternPixels = new int[numGroups][];
+
+        for (int g = 0; g < numGroups; g++) {
+
+            int firstCell = g * 8, endCell = Math.min(firstCell + 8, cellsPerEdge);
+            int groupPixels = spans[endCell] - spans[firstCell];
+
+            int[] pixels = new int[256 * groupPixels];
+            for (int pattern = 0; pattern < 256; pattern++) {
+                int pos = pattern * groupPixels;
+                for (int c = firstCell; c < endCell; c++) {
+                    int color = (pattern & (1 << (c - firstCell))) != 0 ? colorPixelOn : colorPixelOff;
+                    for (int p = spans[c]; p < spans[c + 1]; p++) {
+                        pixels[pos++] = color;
+                    }
+                }
+            }
+            patternPixels[g] = pixels;
+        }
+    }
+
+    /**
+     * @return The number of cells across (and down) each tile
+     */
+    public int getCellsPerEdge() {
+        return cellsPerEdge;
+    }
+
+    /**
+     * @return A new pixel buffer of the right size for {@link #renderRow(int, long[], int, int[])}
+     */
+    public static int[] createPixelBuffer() {
+        return new int[SIZE * SIZE];
+    }
+
+    /**
+     * Render a row of the tile's cells into all the pixel rows it covers.
+     *
+     * @param row     The row of cells (0 being the top)
+     * @param cells   The packed cells
+     * @param cellPos The index in <code>cells</code> of the tile's first cell
+     * @param pixels  The tile's pixel buffer, {@link #SIZE} x {@link #SIZE}
+     */
+    public void renderRow(int row, long[] cells, int cellPos, int[] pixels) {
+
+        int lineStart = spans[row] * SIZE;
+
+        for (int g = 0; g < patternPixels.length; g++) {
+
+            int firstCell = g * 8;
+            int pattern = (int) PackedCells.getWord(cells, cellPos + firstCell) & 0xFF;
+
+            int groupPixels = spans[Math.min(firstCell + 8, cellsPerEdge)] - spans[firstCell];
+            System.arraycopy(patternPixels[g], pattern * groupPixels, pixels, lineStart + spans[firstCell],
+                    groupPixels);
+        }
+
+        // the remaining pixel rows of the cell are the same
+        for (int y = spans[row] + 1; y < spans[row + 1]; y++) {
+            System.arraycopy(pixels, lineStart, pixels, y * SIZE, SIZE);
+        }
+    }
+
+}
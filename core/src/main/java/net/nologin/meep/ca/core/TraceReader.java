@@ -0,0 +1,198 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.*;
+
+/**
+ * Reads back a trace recorded by {@link TraceWriter}, passing each event to a {@link Listener} in order.
+ * <br/><br/>
+ * The starting state in the header is available as soon as the reader is constructed, so the listener can set up
+ * the same state before the first event.  Traces of an earlier version are read as if recorded without overviews.
+ */
+public class TraceReader {
+
+    /**
+     * Receives the events of a trace.  Each is given the time since the start of the trace, in microseconds.
+     */
+    public interface Listener {
+
+        /**
+         * The visible tile range changed (see {@link TraceWriter#range(int, int, int, int)})
+         */
+        void onRange(long micros, int left, int top, int right, int bottom);
+
+        /**
+         * The rule changed
+         */
+        void onRule(long micros, int rule);
+
+        /**
+         * The zoom changed
+         */
+        void onZoom(long micros, int pixelsPerCell);
+
+        /**
+         * The overview level changed (see {@link DensityPyramid}), 0 being back to showing cells
+         */
+        void onOverviewLevel(long micros, int level);
+
+        /**
+         * The origin generation changed
+         */
+        void onOrigin(long micros, long origin);
+
+        /**
+         * The provider was asked to trim its memory
+         */
+        void onTrimMemory(long micros, int level);
+
+        /**
+         * The view polled for fresh data, and was told <code>fresh</code>
+         */
+        void onPoll(long micros, boolean fresh);
+    }
+
+    private final DataInputStream in;
+    private final int rule, pixelsPerCell, overviewLevel;
+    private final long origin;
+
+    /**
+     * Constructor, reading the trace's header
+     *
+     * @param in The trace, which is closed once read (or on failure)
+     * @throws IOException If the trace can't be read, or isn't a trace of a supported version
+     */
+    public TraceReader(InputStream in) throws IOException {
+
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (this.in.readInt() != TraceWriter.MAGIC) {
+                throw new IOException("Not a trace");
+            }
+            int version = this.in.readInt();
+            if (version < 1 || version > TraceWriter.VERSION) {
+                throw new IOException("Unsupported trace version " + version);
+            }
+            rule = this.in.readInt();
+            pixelsPerCell = this.in.readInt();
+            origin = this.in.readLong();
+            overviewLevel = version >= 2 ? this.in.readInt() : 0;
+        } catch (IOException e) {
+            this.in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The provider's rule when recording started
+     */
+    public int getRule() {
+        return rule;
+    }
+
+    /**
+     * @return The provider's zoom when recording started
+     */
+    public int getPixelsPerCell() {
+        return pixelsPerCell;
+    }
+
+    /**
+     * @return The provider's overview level when recording started, 0 if showing cells
+     */
+    public int getOverviewLevel() {
+        return overviewLevel;
+    }
+
+    /**
+     * @return The provider's origin generation when recording started
+     */
+    public long getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Read the events, passing each to the listener.  A trace cut short (eg the app was killed while recording) just
+     * ends at its last complete event.
+     *
+     * @param listener The listener
+     * @return The number of events read
+     * @throws IOException If the trace can't be read, or has an unknown event type
+     */
+    public int read(Listener listener) throws IOException {
+
+        int numEvents = 0;
+        long micros = 0;
+
+        try {
+            while (true) {
+
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+
+                micros += readUnsigned();
+
+                switch (type) {
+                    case TraceWriter.EVENT_RANGE:
+                        listener.onRange(micros, (int) readSigned(), (int) readSigned(), (int) readSigned(),
+                                (int) readSigned());
+                        break;
+                    case TraceWriter.EVENT_RULE:
+                        listener.onRule(micros, (int) readSigned());
+                        break;
+                    case TraceWriter.EVENT_ZOOM:
+                        listener.onZoom(micros, (int) readSigned());
+                        break;
+                    case TraceWriter.EVENT_OVERVIEW:
+                        listener.onOverviewLevel(micros, (int) readSigned());
+                        break;
+                    case TraceWriter.EVENT_ORIGIN:
+                        listener.onOrigin(micros, readSigned());
+                        break;
+                    case TraceWriter.EVENT_TRIM:
+                        listener.onTrimMemory(micros, (int) readSigned());
+                        break;
+                    case TraceWriter.EVENT_POLL_STALE:
+                    case TraceWriter.EVENT_POLL_FRESH:
+                        listener.onPoll(micros, type == TraceWriter.EVENT_POLL_FRESH);
+                        break;
+                    default:
+                        throw new IOException("Unknown event type " + type + " after " + numEvents + " events");
+                }
+                numEvents++;
+            }
+        } catch (EOFException e) {
+            // cut short in the middle of an event
+        } finally {
+            in.close();
+        }
+
+        return numEvents;
+    }
+
+    private long readSigned() throws IOException {
+        long value = readUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readUnsigned() throws IOException {
+
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+}
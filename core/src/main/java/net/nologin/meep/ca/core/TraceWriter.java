@@ -0,0 +1,241 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.io.*;
+import java.util.logging.Logger;
+
+/**
+ * Records what a tile provider is asked to do (visible range changes, rule/zoom/overview/origin changes, memory trims
+ * and polls for fresh data), with timestamps, so that a session can be replayed later (without the view) with
+ * {@link TraceReader}.
+ * <br/><br/>
+ * The trace is a header followed by one record per event, each a type byte, the microseconds since the previous
+ * event, and the event's values.  Numbers are written as variable length (7 bits per byte, zig-zag for signed
+ * values), so a poll typically takes 2 or 3 bytes:
+ * <pre>
+ *      header:  magic, version, rule, pixels per cell, origin generation,     (ints, then a long,
+ *               overview level                                                 then an int)
+ *      event:   type, micros since previous event, [values]                   (varints)
+ * </pre>
+ * Version 1 traces (still read) have no overview level in the header, nor overview events.
+ * <br/><br/>
+ * Safe for use from multiple threads (the view polls from its rendering thread, the rest come from the UI thread).
+ * If writing fails, the error is logged and the rest of the events are ignored.
+ *
+ * @see TraceReader
+ */
+public class TraceWriter {
+
+    private static final Logger LOG = Logger.getLogger(TraceWriter.class.getName());
+
+    static final int MAGIC = 0x57434154; // "WCAT"
+
+    /**
+     * The version of the trace format
+     */
+    public static final int VERSION = 2;
+
+    // event types
+    static final int EVENT_RANGE = 1, EVENT_RULE = 2, EVENT_ZOOM = 3, EVENT_ORIGIN = 4, EVENT_TRIM = 5;
+    static final int EVENT_POLL_STALE = 6, EVENT_POLL_FRESH = 7, EVENT_OVERVIEW = 8;
+
+    private final File file;
+
+    // guarded by 'this', null once closed (or failed)
+    private DataOutputStream out;
+    private long lastNanos;
+    private int numEvents = 0;
+
+    /**
+     * Constructor, creating (or replacing) the trace file and writing its header.  The starting state is recorded so
+     * the replay can start from the same place.
+     *
+     * @param file          The file to write to
+     * @param rule          The provider's rule when recording starts
+     * @param pixelsPerCell The provider's zoom when recording starts
+     * @param origin        The provider's origin generation when recording starts
+     * @throws IOException If the file can't be created
+     */
+    public TraceWriter(File file, int rule, int pixelsPerCell, long origin) throws IOException {
+        this(file, rule, pixelsPerCell, origin, 0);
+    }
+
+    /**
+     * Constructor, creating (or replacing) the trace file and writing its header.  The starting state is recorded so
+     * the replay can start from the same place.
+     *
+     * @param file          The file to write to
+     * @param rule          The provider's rule when recording starts
+     * @param pixelsPerCell The provider's zoom when recording starts
+     * @param origin        The provider's origin generation when recording starts
+     * @param overviewLevel The provider's overview level when recording starts, 0 if showing cells
+     * @throws IOException If the file can't be created
+     */
+    public TraceWriter(File file, int rule, int pixelsPerCell, long origin, int overviewLevel) throws IOException {
+
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rule);
+        out.writeInt(pixelsPerCell);
+        out.writeLong(origin);
+        out.writeInt(overviewLevel);
+
+        lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Record a change of the visible tile range
+     *
+     * @param left   The leftmost tile x ID
+     * @param top    The topmost tile y ID
+     * @param right  The rightmost tile x ID
+     * @param bottom The bottommost tile y ID
+     */
+    public synchronized void range(int left, int top, int right, int bottom) {
+
+        if (begin(EVENT_RANGE)) {
+            try {
+                writeSigned(left);
+                writeSigned(top);
+                writeSigned(right);
+                writeSigned(bottom);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * @param rule The new rule number
+     */
+    public synchronized void rule(int rule) {
+        value(EVENT_RULE, rule);
+    }
+
+    /**
+     * @param pixelsPerCell The new zoom
+     */
+    public synchronized void zoom(int pixelsPerCell) {
+        value(EVENT_ZOOM, pixelsPerCell);
+    }
+
+    /**
+     * @param level The new overview level, 0 if showing cells again (see {@link DensityPyramid})
+     */
+    public synchronized void overviewLevel(int level) {
+        value(EVENT_OVERVIEW, level);
+    }
+
+    /**
+     * @param origin The new origin generation
+     */
+    public synchronized void origin(long origin) {
+        value(EVENT_ORIGIN, origin);
+    }
+
+    /**
+     * @param level The level passed to the provider's <code>onTrimMemory()</code>
+     */
+    public synchronized void trimMemory(int level) {
+        value(EVENT_TRIM, level);
+    }
+
+    /**
+     * @param fresh What the provider answered the poll with
+     */
+    public synchronized void poll(boolean fresh) {
+        begin(fresh ? EVENT_POLL_FRESH : EVENT_POLL_STALE);
+    }
+
+    /**
+     * @return The number of events recorded so far
+     */
+    public synchronized int getNumEvents() {
+        return numEvents;
+    }
+
+    /**
+     * Finish the trace.  Any later events are ignored.
+     */
+    public synchronized void close() {
+
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            LOG.info("Trace " + file + " closed, " + numEvents + " events");
+        } catch (IOException e) {
+            LOG.warning("Cannot close trace " + file + ", error:" + e.getMessage());
+        }
+        out = null;
+    }
+
+    // write an event with a single value
+    private void value(int type, long value) {
+
+        if (begin(type)) {
+            try {
+                writeSigned(value);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    // write the type and time of an event, returns false if the trace is closed
+    private boolean begin(int type) {
+
+        if (out == null) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        try {
+            out.writeByte(type);
+            writeUnsigned((now - lastNanos) / 1000);
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+
+        // only count the whole microseconds, so the error doesn't build up
+        lastNanos += (now - lastNanos) / 1000 * 1000;
+        numEvents++;
+        return true;
+    }
+
+    private void writeSigned(long value) throws IOException {
+        writeUnsigned((value << 1) ^ (value >> 63));
+    }
+
+    private void writeUnsigned(long value) throws IOException {
+
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private void fail(IOException e) {
+
+        LOG.warning("Cannot write trace " + file + ", recording stopped, error:" + e.getMessage());
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+        out = null;
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class contains the step kernels for the 256 elementary 1-dimensional cellular automata (CA), as described in:
+ * <br/><br/>
+ * <a href="http://mathworld.wolfram.com/ElementaryCellularAutomaton.html">http://mathworld.wolfram.com/ElementaryCellularAutomaton.html</a>
+ * <br/><br/>
+ * In short, the CA is a row of cells with boolean values (on or off) representing a 'generation' in the CA.
+ * For the next generation/row, the value of every cell changes, depending on its current state, and that of its left
+ * and right neighbour.  This means that to calculate the next state of a cell, there are three boolean inputs,
+ * meaning 8 possible permutations:
+ * <pre>
+ *  numbers 7 to 0 as binary:
+ *          111 | 110 | 101 | 100 | 011 | 010 | 001 | 000
+ * </pre>
+ *
+ * Each entry above is a possible set of cell states (e.g. 111 means all cells are on, 101 means that the left and right
+ * cells are on, but the middle one was off, and so on)
+ * <br/><br/>
+ * Next, we need to define what the next state of a cell will be - this is defined by a <b>rule</b> number.  Since
+ * there are 8 possible inputs, the CA uses an 8-bit number to define the rule to use. Each bit of the rule number
+ * is assigned a position to the table.  So, for <i>Rule 30</i>:
+ *
+ * <pre>
+ *    input permutations: 111 | 110 | 101 | 100 | 011 | 010 | 001 | 000
+ *    ------------------|-----|-----|-----|-----|-----|-----|-----|-----
+ *             Rule  30 |  0  |  0  |  0  |  1  |  1  |  1  |  1  |  0
+ * </pre>
+ *
+ * For rule 30, if all cells are on (111), we can see the next state is off (0).  Or, if the current cell is on, but the
+ * left and right are off (010), then the next state is on (1).
+ * <br/><br/>
+ * Rather than looking up each cell individually, the tile calculation works on {@link PackedCells packed} rows using
+ * a {@link StepKernel} per rule, see {@link #getKernel(int)}.  The kernels are all created up front, so switching rule
+ * costs nothing and the table is safe to use from any thread.  Where only every <i>k</i>th generation is needed, a
+ * {@link BlockStepKernel} (see {@link #getBlockKernel(int)}) advances <i>k</i> generations per pass.  Their tables
+ * are too big to create for every rule, so they're built on demand and only the most recently used are kept.
+ *
+ */
+public class WolframRuleTable {
+
+    /* Step kernel per rule number.  Most rules get a generic kernel which evaluates the rule as a boolean formula,
+     * but some simplify to something trivial (eg rule 204 is the identity, 51 the complement), or to a simple XOR of
+     * the neighbourhood, and get their own kernels */
+    private static final StepKernel[] kernels = new StepKernel[256];
+
+    /**
+     * The generations per pass of the block kernels given by {@link #getBlockKernel(int)}, unless changed with
+     * {@link #setBlockGenerations(int)}.  A 64K table: faster than single steps, and small enough to stay in the cache
+     * of a phone (bigger tables are faster still on a desktop, see <code>BlockStepBenchmark</code>).
+     */
+    public static final int DEFAULT_BLOCK_GENERATIONS = 4;
+
+    // the block kernel tables kept at once, at least one of any size
+    private static final int MAX_BLOCK_TABLE_BYTES = 2 * 1024 * 1024;
+
+    private static volatile int blockGenerations = DEFAULT_BLOCK_GENERATIONS;
+
+    // recently used block kernels, keyed by rule and generations per pass, least recent first (guarded by itself)
+    private static final LinkedHashMap<Integer, BlockStepKernel> blockKernels =
+            new LinkedHashMap<Integer, BlockStepKernel>(16, 0.75f, true);
+    private static int blockTableBytes = 0;
+
+    static {
+
+        for (int rule = 0; rule < 256; rule++) {
+            kernels[rule] = new StepKernel.Generic(rule);
+        }
+
+        kernels[0] = new StepKernel.Constant(false);
+        kernels[255] = new StepKernel.Constant(true);
+        kernels[204] = new StepKernel.Identity();
+        kernels[51] = new StepKernel.Complement();
+
+        kernels[240] = new StepKernel.Shift(true, false);
+        kernels[15] = new StepKernel.Shift(true, true);
+        kernels[170] = new StepKernel.Shift(false, false);
+        kernels[85] = new StepKernel.Shift(false, true);
+
+        kernels[60] = new StepKernel.Additive(true, true, false, false);
+        kernels[195] = new StepKernel.Additive(true, true, false, true);
+        kernels[102] = new StepKernel.Additive(false, true, true, false);
+        kernels[153] = new StepKernel.Additive(false, true, true, true);
+        kernels[90] = new StepKernel.Additive(true, false, true, false);
+        kernels[165] = new StepKernel.Additive(true, false, true, true);
+        kernels[150] = new StepKernel.Additive(true, true, true, false);
+        kernels[105] = new StepKernel.Additive(true, true, true, true);
+    }
+
+    private WolframRuleTable() {
+    }
+
+    /**
+     * Get the kernel that calculates successive generations of packed cell rows for a rule.
+     *
+     * @param rule The rule number (0-255 inclusive)
+     * @return The kernel for that rule
+     * @throws IllegalArgumentException If the rule is not a value from 0 to 255 (inclusive).
+     */
+    public static StepKernel getKernel(int rule) {
+
+        if (rule < 0 || rule > 255) {
+            throw new IllegalArgumentException("Rule must be between 0 and 255");
+        }
+
+        return kernels[rule];
+    }
+
+    /**
+     * Get a kernel that advances packed cell rows by several generations per pass, with the current default number
+     * of generations (see {@link #setBlockGenerations(int)}).
+     *
+     * @param rule The rule number (0-255 inclusive)
+     * @return The block kernel, or null if the rule's {@link #getKernel(int) step kernel} is a simplified one, which
+     *         is quicker than a table lookup anyway
+     * @throws IllegalArgumentException If the rule is not a value from 0 to 255 (inclusive).
+     */
+    public static BlockStepKernel getBlockKernel(int rule) {
+
+        if (!(getKernel(rule) instanceof StepKernel.Generic)) {
+            return null;
+        }
+        return getBlockKernel(rule, blockGenerations);
+    }
+
+    /**
+     * Get a kernel that advances packed cell rows by several generations per pass, building its table if it isn't
+     * one of those recently used.
+     *
+     * @param rule        The rule number (0-255 inclusive)
+     * @param generations The generations per pass, 1 to {@link BlockStepKernel#MAX_GENERATIONS}
+     * @return The block kernel
+     * @throws IllegalArgumentException If the rule is not a value from 0 to 255 (inclusive), or the generations are
+     *                                  out of range
+     */
+    public static BlockStepKernel getBlockKernel(int rule, int generations) {
+
+        getKernel(rule); // checks the rule
+
+        Integer key = (generations << 8) | rule;
+        synchronized (blockKernels) {
+
+            BlockStepKernel kernel = blockKernels.get(key);
+            if (kernel != null) {
+                return kernel;
+            }
+
+            // the table takes a few ms at most, not worth letting other threads in while it's built
+            kernel = new BlockStepKernel(rule, generations);
+            blockKernels.put(key, kernel);
+            blockTableBytes += kernel.getTableBytes();
+
+            Iterator<BlockStepKernel> it = blockKernels.values().iterator();
+            while (blockTableBytes > MAX_BLOCK_TABLE_BYTES && blockKernels.size() > 1) {
+                blockTableBytes -= it.next().getTableBytes();
+                it.remove();
+            }
+            return kernel;
+        }
+    }
+
+    /**
+     * Change the number of generations per pass of the block kernels given by {@link #getBlockKernel(int)}.
+     * Bigger is faster, until the table (<code>2^(2k+8)</code> bytes) no longer fits in the CPU's cache.
+     *
+     * @param generations The generations per pass, 1 to {@link BlockStepKernel#MAX_GENERATIONS}
+     */
+    public static void setBlockGenerations(int generations) {
+
+        if (generations < 1 || generations > BlockStepKernel.MAX_GENERATIONS) {
+            throw new IllegalArgumentException("Generations per pass must be between 1 and "
+                    + BlockStepKernel.MAX_GENERATIONS);
+        }
+        blockGenerations = generations;
+    }
+
+    /**
+     * Get the state of the 'background' cells of a generation: those outside the cone of cells that can have been
+     * affected by the single 'on' cell of the first generation (generation 0).  The first generation's background is
+     * all off, and every later generation's background is the rule applied to the uniform background before it, so
+     * depending on the rule's 000 and 111 bits it stays off, turns on and stays on, or alternates each generation.
+     *
+     * @param rule       The rule number (0-255 inclusive)
+     * @param generation The generation (0 being the first)
+     * @return The state of every background cell of that generation
+     */
+    public static boolean getBackgroundState(int rule, long generation) {
+
+        if (generation == 0 || (rule & 1) == 0) {
+            return false; // 000 -> 0, the background never turns on
+        }
+        if ((rule & 0x80) != 0) {
+            return true; // 000 -> 1 and 111 -> 1, on from generation 1 onwards
+        }
+        return (generation & 1) == 1; // 000 -> 1 but 111 -> 0, alternating
+    }
+
+    /**
+     * Calculate the value of a cell in the next generation based on the state of the relevant cells in the current
+     * generation.  This is handy for one-off lookups, but rows of cells should be calculated with
+     * {@link #getKernel(int)}.
+     *
+     * @param rule  The rule number (0-255 inclusive)
+     * @param curStateLeft The current state of the cell's left neighbour
+     * @param curState The current state of the cell in question
+     * @param curStateRight The current state of the cell's right neighbour
+     * @return The cell's state in the next generation
+     * @throws IllegalArgumentException If the rule is not a value from 0 to 255 (inclusive).
+     */
+    public static boolean getNextState(int rule, boolean curStateLeft, boolean curState, boolean curStateRight) {
+
+        if (rule < 0 || rule > 255) {
+            throw new IllegalArgumentException("Rule must be between 0 and 255");
+        }
+
+        /* 8 possible states can be represented using a 3-bit number.  Start with 0, then add 4, 2 or 1 to
+         * set the left, center or right bit respectively.
+         * e.g.
+         * 101 = 4 + 1
+         * 010 = 2
+         * 111 = 4 + 2 + 1
+         * and so on.
+         *
+         * This value (0-7) is the position of the next state's bit in the rule number.
+         */
+
+        int lookupIdx = curStateLeft ? 4 : 0;
+        lookupIdx += curState ? 2 : 0;
+        lookupIdx += curStateRight ? 1 : 0;
+
+        return (rule & (1 << lookupIdx)) != 0;
+
+    }
+
+}
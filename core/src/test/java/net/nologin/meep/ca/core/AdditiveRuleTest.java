@@ -0,0 +1,112 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link AdditiveRule} calculates cells directly just as they are stepped: against {@link ReferenceRows}
+ * at random generations and cells, and far deeper against {@link HashLifeEngine}, which additive rules take deep
+ * cheaply.  Also checks which rules count as additive, by stepping the rule from random rows.
+ */
+public class AdditiveRuleTest {
+
+    // the additive rules that depend on more than one neighbour, and their complements
+    private static final int[] RULES = {60, 90, 102, 150, 195, 165, 153, 105};
+
+    private static final int GENERATIONS = 2500;
+    private static final int QUERIES = 300;
+
+    @Test
+    public void matchesPlainStepping() {
+
+        Random rnd = new Random(20);
+        for (int rule : RULES) {
+
+            ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            AdditiveRule additive = new AdditiveRule(rule);
+            for (int q = 0; q < QUERIES; q++) {
+
+                int[] range = reference.randomRange(rnd, 300);
+                reference.check(additive, rnd, range[0], range[1], range[2]);
+
+                int cell = range[1] + rnd.nextInt(range[2]);
+                assertEquals("rule " + rule + ", generation " + range[0] + ", cell " + cell,
+                        reference.get(range[0], cell), AdditiveRule.cellAt(rule, cell, range[0]));
+            }
+        }
+    }
+
+    @Test
+    public void matchesHashLifeDeep() {
+
+        Random rnd = new Random(21);
+        for (int rule : RULES) {
+
+            AdditiveRule additive = new AdditiveRule(rule);
+            HashLifeEngine engine = new HashLifeEngine(rule);
+            long generation = 0;
+            for (int q = 0; q < 8; q++) {
+
+                // in increasing order, so the engine never starts over, to a hundred million or so
+                generation += 1 + (rnd.nextLong() >>> 1) % (1L << (3 * q + 6));
+                int numCells = 1 + rnd.nextInt(300);
+                long spread = Math.min(generation, 1L << 20);
+                int firstCell = (int) ((rnd.nextLong() >>> 1) % (2 * spread + 1) - spread) - numCells / 2;
+
+                long[] expected = new long[PackedCells.wordsFor(numCells)], actual = new long[expected.length];
+                engine.copyCells(generation, firstCell, numCells, expected, 0);
+                additive.copyCells(generation, firstCell, numCells, actual, 0);
+                assertArrayEquals("rule " + rule + ", generation " + generation + ", cells from " + firstCell,
+                        expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void additiveRulesAreAffine() {
+
+        // a rule is additive if stepping the XOR of two rows gives the XOR of stepping each, and of stepping nothing
+        Random rnd = new Random(22);
+        int numCells = 256, words = PackedCells.wordsFor(numCells);
+        for (int rule = 0; rule < 256; rule++) {
+
+            StepKernel kernel = WolframRuleTable.getKernel(rule);
+            long[] zero = new long[words], stepZero = new long[words];
+            PackedCells.step(kernel, zero, stepZero, numCells);
+
+            boolean affine = true;
+            for (int r = 0; r < 20 && affine; r++) {
+
+                long[] a = new long[words], b = new long[words], ab = new long[words];
+                for (int w = 0; w < words; w++) {
+                    a[w] = rnd.nextLong();
+                    b[w] = rnd.nextLong();
+                    ab[w] = a[w] ^ b[w];
+                }
+                long[] stepA = new long[words], stepB = new long[words], stepAB = new long[words];
+                PackedCells.step(kernel, a, stepA, numCells);
+                PackedCells.step(kernel, b, stepB, numCells);
+                PackedCells.step(kernel, ab, stepAB, numCells);
+
+                // the end cells aren't calculated
+                for (int i = 1; i < numCells - 1; i++) {
+                    affine &= PackedCells.get(stepAB, i) == (PackedCells.get(stepA, i) ^ PackedCells.get(stepB, i)
+                            ^ PackedCells.get(stepZero, i));
+                }
+            }
+            assertEquals("rule " + rule, affine, AdditiveRule.isAdditive(rule));
+        }
+    }
+
+}
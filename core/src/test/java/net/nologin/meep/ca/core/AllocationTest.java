@@ -0,0 +1,155 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that calculating tiles doesn't allocate per generation once warmed up: a band of tiles allocates nothing
+ * but the last cell row each tile keeps, whatever the number of generations (cells per edge) it steps, and reading
+ * a row back from the {@link GenerationStore} allocates nothing at all.  The tiles are calculated with a
+ * {@link CellStore}, as in the app, and checking whether it has a tile's cells allocates nothing either.
+ * <br/><br/>
+ * Allocation is measured with the HotSpot extension of {@link java.lang.management.ThreadMXBean}, so the tests are
+ * skipped on JVMs without it.
+ */
+public class AllocationTest {
+
+    private static final int RULE = 30;
+    private static final int NUM_TILES = 5;
+    private static final int RUNS = 1000;
+
+    // a few hundred bytes of slack per run, for the measurement itself and the odd lazily initialized JDK class
+    private static final long SLACK_BYTES = 256;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void calculateBandAllocatesOnlyLastCellRows() {
+
+        for (int pixelsPerCell : new int[]{1, 4, 16}) {
+
+            TileGeometry geometry = new TileGeometry(pixelsPerCell);
+            int cellsPerEdge = geometry.getCellsPerEdge();
+            BandEngine engine = new BandEngine(new GenerationSeeker(RULE), geometry,
+                    new TileRenderer(cellsPerEdge, 0xffffffff, 0xff000000), null,
+                    new CellStore(CellStore.DEFAULT_MAX_BYTES));
+
+            // the parents of the band, tile row 0 (one tile wider each side)
+            final long[][] parentRows = new long[NUM_TILES + 2][];
+            engine.calculateBand(0, -NUM_TILES / 2 - 1, 0, NUM_TILES + 2, new NoParents(), parentRows,
+                    new RenderAll());
+            BandEngine.ParentRows parents = new BandEngine.ParentRows() {
+                @Override
+                public long[] getLastCellRow(int xId, int yId) {
+                    return parentRows[xId + NUM_TILES / 2 + 1];
+                }
+            };
+
+            long[][] lastCellRows = new long[NUM_TILES][];
+            RenderAll sink = new RenderAll();
+
+            // warm up (the thread's scratch arrays, the JIT)
+            for (int i = 0; i < RUNS; i++) {
+                engine.calculateBand(0, -NUM_TILES / 2, 1, NUM_TILES, parents, lastCellRows, sink);
+            }
+
+            long before = allocatedBytes();
+            for (int i = 0; i < RUNS; i++) {
+                engine.calculateBand(0, -NUM_TILES / 2, 1, NUM_TILES, parents, lastCellRows, sink);
+            }
+            long perBand = (allocatedBytes() - before) / RUNS;
+
+            // each last cell row is an array header and its words
+            long kept = NUM_TILES * (16 + 8L * PackedCells.wordsFor(cellsPerEdge));
+            assertTrue(cellsPerEdge + " cells per edge: " + perBand + " bytes allocated per band, expected at most "
+                    + kept + " for the last cell rows", perBand <= kept + SLACK_BYTES);
+
+            // the band's tiles are all in the cell store now
+            before = allocatedBytes();
+            for (int i = 0; i < RUNS; i++) {
+                for (int x = -NUM_TILES / 2; x <= NUM_TILES / 2; x++) {
+                    assertTrue(engine.isStored(0, x, 1));
+                }
+            }
+            long perCheck = (allocatedBytes() - before) / RUNS;
+            assertTrue(cellsPerEdge + " cells per edge: " + perCheck + " bytes allocated checking the cell store for "
+                    + NUM_TILES + " tiles", perCheck <= SLACK_BYTES);
+        }
+    }
+
+    @Test
+    public void generationStoreReadAllocatesNothing() throws Exception {
+
+        File file = File.createTempFile("alloctest", ".gens");
+        file.deleteOnExit();
+        GenerationStore store = new GenerationStore(file, 1024 * 1024);
+
+        int numCells = GenerationStore.MAX_CELLS - 3; // not a whole number of words
+        long[] row = new long[PackedCells.wordsFor(numCells)];
+        new GenerationSeeker(RULE).copyCells(5000, -numCells / 2, numCells, row, 0);
+        store.write(RULE, 5000, -numCells / 2, numCells, row, 0);
+
+        long[] dst = new long[row.length + 1];
+        for (int i = 0; i < RUNS; i++) {
+            assertTrue(store.read(RULE, 5000, -numCells / 2, numCells, dst, 3));
+        }
+
+        long before = allocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            store.read(RULE, 5000, -numCells / 2, numCells, dst, 3);
+        }
+        long total = allocatedBytes() - before;
+
+        assertTrue(total + " bytes allocated by " + RUNS + " reads", total <= SLACK_BYTES);
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /* For the first tile row, which starts from the seed */
+    private static class NoParents implements BandEngine.ParentRows {
+
+        @Override
+        public long[] getLastCellRow(int xId, int yId) {
+            return null;
+        }
+    }
+
+    /* Renders every tile, and throws the pixels away */
+    private static class RenderAll implements PixelSink {
+
+        @Override
+        public boolean wantsPixels(int index) {
+            return true;
+        }
+
+        @Override
+        public void setPixels(int index, int[] pixels, int size) {
+        }
+    }
+
+}
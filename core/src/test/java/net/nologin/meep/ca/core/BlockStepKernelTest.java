@@ -0,0 +1,104 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a {@link BlockStepKernel} advancing <i>k</i> generations gives the same cells as <i>k</i> plain steps,
+ * for every <i>k</i>, on random rows of random lengths.  Only the cells more than <i>k</i> from the ends of a row can
+ * be calculated either way, so only they are compared.
+ */
+public class BlockStepKernelTest {
+
+    private static final int ROWS_PER_KERNEL = 200;
+
+    @Test
+    public void blockStepMatchesPlainSteps() {
+
+        Random rnd = new Random(19);
+        for (int rule : ReferenceRows.RULES) {
+
+            StepKernel kernel = WolframRuleTable.getKernel(rule);
+            for (int k = 1; k <= BlockStepKernel.MAX_GENERATIONS; k++) {
+
+                BlockStepKernel blockKernel = WolframRuleTable.getBlockKernel(rule, k);
+                assertEquals(k, blockKernel.getGenerations());
+
+                for (int r = 0; r < ROWS_PER_KERNEL; r++) {
+
+                    int numCells = 2 * k + 1 + rnd.nextInt(600);
+                    long[] row = randomRow(rnd, numCells);
+
+                    long[] expected = row.clone(), tmp = new long[row.length];
+                    for (int g = 0; g < k; g++) {
+                        PackedCells.step(kernel, expected, tmp, numCells);
+                        long[] swap = expected;
+                        expected = tmp;
+                        tmp = swap;
+                    }
+
+                    long[] actual = new long[row.length];
+                    PackedCells.step(blockKernel, row, actual, numCells);
+
+                    for (int i = k; i < numCells - k; i++) {
+                        assertEquals("rule " + rule + ", " + k + " generations, " + numCells + " cells, cell " + i,
+                                PackedCells.get(expected, i), PackedCells.get(actual, i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void partialStepMatchesWholeRow() {
+
+        Random rnd = new Random(20);
+        for (int rule : ReferenceRows.RULES) {
+
+            BlockStepKernel blockKernel = WolframRuleTable.getBlockKernel(rule, BlockStepKernel.MAX_GENERATIONS);
+            for (int r = 0; r < ROWS_PER_KERNEL; r++) {
+
+                int words = 1 + rnd.nextInt(12);
+                long[] row = randomRow(rnd, words * 64);
+
+                long[] whole = new long[words];
+                blockKernel.step(row, whole, 0, words);
+
+                // a range of words, taking the cells beyond it from the words either side
+                int from = rnd.nextInt(words), to = from + 1 + rnd.nextInt(words - from);
+                long[] part = new long[words];
+                long sentinel = rnd.nextLong();
+                Arrays.fill(part, sentinel);
+                blockKernel.step(row, part, from, to);
+
+                for (int w = 0; w < words; w++) {
+                    assertEquals("rule " + rule + ", words " + from + "-" + to + " of " + words + ", word " + w,
+                            w >= from && w < to ? whole[w] : sentinel, part[w]);
+                }
+            }
+        }
+    }
+
+    private static long[] randomRow(Random rnd, int numCells) {
+
+        long[] row = new long[PackedCells.wordsFor(numCells)];
+        for (int i = 0; i < numCells; i++) {
+            if (rnd.nextBoolean()) {
+                PackedCells.set(row, i);
+            }
+        }
+        return row;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bits of {@link ColumnStream}s against the plain stepping of {@link ReferenceRows}: the center column, and
+ * random sets of columns read a bit, a byte or a long at a time, with short skips (stepped over, several generations
+ * at a time where the rule has a block kernel) in between.  Long skips, which seek from the checkpoints, are checked
+ * against {@link GenerationCheckpoints}.
+ */
+public class ColumnStreamTest {
+
+    private static final int GENERATIONS = 2500;
+
+    @Test
+    public void centerColumnMatchesPlainStepping() throws IOException {
+
+        Random rnd = new Random(21);
+        for (int rule : ReferenceRows.RULES) {
+
+            ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            for (int s = 0; s < 5; s++) {
+
+                int start = rnd.nextInt(GENERATIONS / 2), num = rnd.nextInt(GENERATIONS / 2);
+                ColumnStream stream = ColumnStream.centerColumn(rule, start, num);
+
+                long[] bits = new long[num / 64 + 2];
+                int n = 0, read;
+                while ((read = stream.read(bits, n, bits.length - n)) > 0) {
+                    n += read;
+                }
+                assertEquals(PackedCells.wordsFor(num), n);
+
+                for (int k = 0; k < n * 64; k++) {
+                    assertEquals("rule " + rule + ", generation " + (start + k),
+                            k < num && reference.get(start + k, 0), PackedCells.get(bits, k));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void columnsMatchPlainStepping() throws IOException {
+
+        Random rnd = new Random(22);
+        for (int rule : ReferenceRows.RULES) {
+
+            ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule); // shared by the streams
+            for (int s = 0; s < 5; s++) {
+
+                // any columns, in any order, maybe repeated, some outside the cone
+                int[] columns = new int[1 + rnd.nextInt(70)];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = rnd.nextInt(4) == 0 && i > 0 ? columns[rnd.nextInt(i)]
+                            : rnd.nextInt(2 * GENERATIONS) - GENERATIONS;
+                }
+                int start = rnd.nextInt(GENERATIONS / 2), num = rnd.nextInt(GENERATIONS / 2);
+                ColumnStream stream = ColumnStream.create(checkpoints, columns, start, num);
+                long total = (long) num * columns.length;
+
+                String where = "rule " + rule + ", " + columns.length + " columns from " + start + ", bit ";
+                long bit = 0; // of the stream, next to be read
+                while (true) {
+
+                    assertEquals(where + bit, start + bit / columns.length, stream.getGeneration());
+
+                    int how = rnd.nextInt(10);
+                    if (how == 0) {
+                        // stepped over, several generations at a time if it's far enough
+                        long skip = rnd.nextInt(30);
+                        long target = Math.min(stream.getGeneration() + skip, start + num);
+                        stream.skipGenerations(skip);
+                        bit = (target - start) * columns.length;
+                        continue;
+                    }
+
+                    // a bit at a time, a byte at a time, or a long at a time
+                    int bitsPerRead = how < 3 ? 8 : how < 6 ? 8 * (1 + rnd.nextInt(20)) : 64 * (1 + rnd.nextInt(5));
+                    long[] got = new long[bitsPerRead / 64 + 1];
+                    int numRead;
+                    if (how < 3) {
+                        int val = stream.read();
+                        numRead = val < 0 ? -1 : 1;
+                        got[0] = val < 0 ? 0 : val;
+                    } else if (how < 6) {
+                        byte[] bytes = new byte[bitsPerRead / 8];
+                        numRead = stream.read(bytes, 0, bytes.length);
+                        for (int i = 0; i < Math.max(0, numRead); i++) {
+                            got[i / 8] |= (bytes[i] & 0xffL) << (8 * (i % 8));
+                        }
+                    } else {
+                        numRead = stream.read(got, 0, bitsPerRead / 64);
+                    }
+
+                    if (bit == total) {
+                        assertEquals(where + bit, -1, numRead);
+                        break;
+                    }
+
+                    assertTrue(where + bit, numRead > 0);
+
+                    // the last read of the stream is padded with zeros
+                    int unit = how < 6 ? 8 : 64;
+                    long numBits = Math.min((long) numRead * unit, total - bit);
+                    for (int i = 0; i < numRead * unit; i++) {
+                        long k = bit + i;
+                        boolean expected = i < numBits && reference.get((int) (start + k / columns.length),
+                                columns[(int) (k % columns.length)]);
+                        assertEquals(where + k, expected, PackedCells.get(got, i));
+                    }
+                    bit += numBits;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void longSkipsMatchCheckpoints() throws IOException {
+
+        Random rnd = new Random(23);
+        for (int rule : ReferenceRows.RULES) {
+
+            GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule);
+            int[] columns = {0, -3, 5};
+            ColumnStream stream = ColumnStream.create(new GenerationCheckpoints(rule), columns, 0,
+                    ColumnStream.UNBOUNDED);
+
+            long[] row = new long[1];
+            for (int s = 0; s < 4; s++) {
+
+                stream.skipGenerations(4096 + rnd.nextInt(3000));
+                long generation = stream.getGeneration();
+
+                long[] got = new long[1];
+                assertEquals(1, stream.read(got, 0, 1));
+                for (int k = 0; k < 64; k++) {
+                    checkpoints.copyCells(generation + k / 3, columns[k % 3], 1, row, 0);
+                    assertEquals("rule " + rule + ", generation " + (generation + k / 3) + ", column "
+                            + columns[k % 3], PackedCells.get(row, 0), PackedCells.get(got, k));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link GenerationCheckpoints} against the plain stepping of {@link ReferenceRows}, at random generations
+ * (so that seeks go back as well as forward, from and past the checkpoints) and random ranges of cells, from the
+ * single center cell and from a wider seed, and from several threads at once.
+ */
+public class GenerationCheckpointsTest {
+
+    // past the first checkpoint interval (1024 generations)
+    private static final int GENERATIONS = 2500;
+    private static final int QUERIES = 300;
+
+    @Test
+    public void matchesPlainStepping() {
+
+        Random rnd = new Random(6);
+        for (int rule : ReferenceRows.RULES) {
+
+            ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule);
+            for (int q = 0; q < QUERIES; q++) {
+                int[] range = reference.randomRange(rnd, 300);
+                reference.check(checkpoints, rnd, range[0], range[1], range[2]);
+            }
+        }
+    }
+
+    @Test
+    public void matchesPlainSteppingFromSeed() {
+
+        Random rnd = new Random(7);
+        for (int rule : ReferenceRows.RULES) {
+
+            int seedFirst = -40 + rnd.nextInt(80), seedCells = 1 + rnd.nextInt(150);
+            long[] seed = new long[PackedCells.wordsFor(seedCells)];
+            for (int i = 0; i < seedCells; i++) {
+                if (rnd.nextBoolean()) {
+                    PackedCells.set(seed, i);
+                }
+            }
+
+            ReferenceRows reference = new ReferenceRows(rule, seed, seedFirst, seedCells, GENERATIONS);
+            GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule, seed, seedFirst, seedCells);
+            for (int q = 0; q < QUERIES; q++) {
+                int[] range = reference.randomRange(rnd, 300);
+                reference.check(checkpoints, rnd, range[0], range[1], range[2]);
+            }
+        }
+    }
+
+    @Test
+    public void matchesPlainSteppingFromSeveralThreads() throws InterruptedException {
+
+        for (final int rule : new int[]{30, 57}) {
+
+            final ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            final GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule);
+            final List<Throwable> failures = new ArrayList<Throwable>();
+
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < 4; t++) {
+                final Random rnd = new Random(60 + t);
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int q = 0; q < QUERIES; q++) {
+                                int[] range = reference.randomRange(rnd, 300);
+                                reference.check(checkpoints, rnd, range[0], range[1], range[2]);
+                            }
+                        } catch (Throwable e) {
+                            synchronized (failures) {
+                                failures.add(e);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+
+            if (!failures.isEmpty()) {
+                AssertionError e = new AssertionError("rule " + rule + ": " + failures.size() + " threads failed");
+                e.initCause(failures.get(0));
+                throw e;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks {@link HashLifeEngine} against the plain stepping of {@link ReferenceRows} at random generations (going
+ * back as well as forward) and random ranges of cells, then deeper against {@link GenerationCheckpoints}, which is
+ * checked against the same reference by {@link GenerationCheckpointsTest}.
+ */
+public class HashLifeEngineTest {
+
+    private static final int GENERATIONS = 2500;
+    private static final int QUERIES = 100;
+
+    // rules that repeat themselves, which HashLife can take deeper cheaply
+    private static final int[] DEEP_RULES = {90, 150, 105, 153, 18};
+    private static final int DEEP_GENERATIONS = 40000;
+
+    @Test
+    public void matchesPlainStepping() {
+
+        Random rnd = new Random(7);
+        for (int rule : ReferenceRows.RULES) {
+
+            ReferenceRows reference = new ReferenceRows(rule, GENERATIONS);
+            HashLifeEngine engine = new HashLifeEngine(rule);
+            for (int q = 0; q < QUERIES; q++) {
+                int[] range = reference.randomRange(rnd, 300);
+                reference.check(engine, rnd, range[0], range[1], range[2]);
+            }
+        }
+    }
+
+    @Test
+    public void matchesCheckpointsDeeper() {
+
+        Random rnd = new Random(8);
+        for (int rule : DEEP_RULES) {
+
+            HashLifeEngine engine = new HashLifeEngine(rule);
+            GenerationCheckpoints checkpoints = new GenerationCheckpoints(rule);
+            for (int q = 0; q < 10; q++) {
+
+                // in increasing order, so that neither goes back to the start
+                long generation = DEEP_GENERATIONS / 10 * q + rnd.nextInt(DEEP_GENERATIONS / 10);
+                int numCells = 1 + rnd.nextInt(500);
+                int firstCell = (int) (rnd.nextInt((int) (2 * generation + 2)) - generation - numCells / 2);
+
+                long[] expected = new long[PackedCells.wordsFor(numCells)], actual = new long[expected.length];
+                checkpoints.copyCells(generation, firstCell, numCells, expected, 0);
+                engine.copyCells(generation, firstCell, numCells, actual, 0);
+                assertArrayEquals("rule " + rule + ", generation " + generation + ", cells from " + firstCell,
+                        expected, actual);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.core;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The first generations of a rule, calculated the plain way for the engines to be checked against: a generation at a
+ * time with {@link PackedCells#step(StepKernel, long[], long[], int)}, and nothing else.
+ * <br/><br/>
+ * The strip stepped is wider than the seed by twice the number of generations each side.  The cells beyond its ends
+ * are taken to be off, which is wrong for rules whose background turns on, but the error only spreads a cell per
+ * generation, so never reaches the cells that can be asked for: the seed's cone, and as many cells again either side
+ * (the background, with a margin).
+ */
+class ReferenceRows {
+
+    /**
+     * Rules to check: chaotic, complex, additive, and with backgrounds that alternate or stay on
+     */
+    static final int[] RULES = {30, 110, 90, 150, 45, 57, 73, 105, 153, 18};
+
+    private final int rule;
+    private final int numGenerations;
+    private final int firstCell, numCells; // the strip's
+    private final int seedFirst, seedLast;
+    private final long[][] rows;
+
+    /**
+     * Calculate the generations from the single center cell
+     *
+     * @param rule           The rule number
+     * @param numGenerations The number of generations to calculate
+     */
+    ReferenceRows(int rule, int numGenerations) {
+        this(rule, new long[]{1L}, 0, 1, numGenerations);
+    }
+
+    /**
+     * Calculate the generations from a seed, all other cells of generation 0 being off
+     *
+     * @param rule           The rule number
+     * @param seed           The packed cells of the seed
+     * @param seedFirst      The cell number of the first cell of the seed, relative to the center cell
+     * @param seedCells      The number of cells in the seed
+     * @param numGenerations The number of generations to calculate
+     */
+    ReferenceRows(int rule, long[] seed, int seedFirst, int seedCells, int numGenerations) {
+
+        this.rule = rule;
+        this.numGenerations = numGenerations;
+        this.seedFirst = seedFirst;
+        this.seedLast = seedFirst + seedCells - 1;
+        this.firstCell = seedFirst - 2 * numGenerations - 64;
+        this.numCells = seedCells + 4 * numGenerations + 128;
+
+        int words = PackedCells.wordsFor(numCells);
+        rows = new long[numGenerations][];
+        rows[0] = new long[words];
+        PackedCells.copy(seed, 0, rows[0], seedFirst - firstCell, seedCells);
+
+        StepKernel kernel = WolframRuleTable.getKernel(rule);
+        for (int g = 1; g < numGenerations; g++) {
+            rows[g] = new long[words];
+            PackedCells.step(kernel, rows[g - 1], rows[g], numCells);
+        }
+    }
+
+    int getRule() {
+        return rule;
+    }
+
+    int getNumGenerations() {
+        return numGenerations;
+    }
+
+    /**
+     * @return The first cell that can be asked for, of any generation
+     */
+    int getFirstCell() {
+        return seedFirst - numGenerations - 64;
+    }
+
+    /**
+     * @return The last cell that can be asked for, of any generation
+     */
+    int getLastCell() {
+        return seedLast + numGenerations + 64;
+    }
+
+    boolean get(int generation, int cell) {
+        return PackedCells.get(rows[generation], cell - firstCell);
+    }
+
+    /**
+     * Pick a random generation and range of cells that can be asked for, at least partly within the cone
+     *
+     * @param rnd     Where the numbers come from
+     * @param maxSize The most cells in the range
+     * @return The generation, first cell, and number of cells
+     */
+    int[] randomRange(Random rnd, int maxSize) {
+
+        int generation = rnd.nextInt(numGenerations);
+        int size = 1 + rnd.nextInt(maxSize);
+        int coneFirst = seedFirst - generation, coneLast = seedLast + generation;
+        int first = coneFirst - size + 1 + rnd.nextInt(coneLast - coneFirst + size);
+        first = Math.max(getFirstCell(), Math.min(getLastCell() - size + 1, first));
+        return new int[]{generation, first, size};
+    }
+
+    /**
+     * Check a source's cells against ours.  The cells are copied into the middle of a row of random bits, which must
+     * be left alone either side.
+     *
+     * @param source     The source to check
+     * @param rnd        Where the random bits come from
+     * @param generation The generation
+     * @param first      The first cell
+     * @param size       The number of cells
+     */
+    void check(GenerationSource source, Random rnd, int generation, int first, int size) {
+
+        int dstPos = rnd.nextInt(130);
+        long[] dst = new long[PackedCells.wordsFor(dstPos + size + 70)];
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = rnd.nextLong();
+        }
+        long[] before = dst.clone();
+
+        source.copyCells(generation, first, size, dst, dstPos);
+
+        String where = "rule " + rule + ", generation " + generation + ", cell ";
+        for (int i = 0; i < dst.length * 64; i++) {
+            boolean expected = i >= dstPos && i < dstPos + size ? get(generation, first + i - dstPos)
+                    : PackedCells.get(before, i);
+            assertEquals(where + (first + i - dstPos) + " (bit " + i + ")", expected, PackedCells.get(dst, i));
+        }
+    }
+
+}
@@ -8,6 +8,7 @@
 package net.nologin.meep.ca;
 
 import android.app.AlertDialog;
+import android.content.ComponentCallbacks2;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
@@ -17,8 +18,12 @@ import com.actionbarsherlock.app.SherlockActivity;
 import com.actionbarsherlock.view.Menu;
 import com.actionbarsherlock.view.MenuInflater;
 import com.actionbarsherlock.view.MenuItem;
+import net.nologin.meep.ca.model.RuleGallery;
+import net.nologin.meep.ca.view.RuleGalleryAdapter;
 import net.nologin.meep.ca.view.WolframCAView;
 
+import java.io.File;
+
 /**
  * Main WolframCA activity.  This consists of the custom {@link WolframCAView} taking up the full display, with a
  * few menu options being rendered by the {@link SherlockActivity} superclass.
@@ -28,7 +33,8 @@ import net.nologin.meep.ca.view.WolframCAView;
  * <br/><br/>
  * The following menu options are implemented here:
  * <ul>
- * <li><i>Change Rule</i>: A dialog to choose a different {@link net.nologin.meep.ca.model.WolframRuleTable rule}</li>
+ * <li><i>Change Rule</i>: A dialog to choose a different {@link net.nologin.meep.ca.core.WolframRuleTable rule},
+ * by number or from a {@link RuleGallery gallery} of thumbnails</li>
  * <li><i>Change Zoom</i>: A dialog to choose how many pixels wide to render each CA cell</li>
  * <li><i>Back To Top</i>: Scroll the {@link WolframCAView} so tile 0,0 is top center in the surface</li>
  * <li><i>Settings</i>: Calls the {@link SettingsActivity}</li>
@@ -39,8 +45,18 @@ public class MainActivity extends SherlockActivity {
     // start on a more interesting rule
     private static final int DEFAULT_RULE = 110;
 
+    /**
+     * While debug is enabled, the view's use of the provider is traced to this file in the app's files directory,
+     * for replaying with the {@link ReplayActivity}.  Each time the activity resumes, it starts over.
+     */
+    public static final String TRACE_FILENAME = "provider.trace";
+
     private WolframCAView caView;
 
+    // thumbnails for the rule dialog, and the dialog's adapter for them while it's showing
+    private RuleGallery ruleGallery;
+    private RuleGalleryAdapter ruleGalleryAdapter;
+
     // local variables for the dialogs before the user commits their choice
     private int ruleDialog_rule;
     private int zoomDialog_zoom;
@@ -60,6 +76,21 @@ public class MainActivity extends SherlockActivity {
                 getResources().getString(R.string.actionbar_ruleSummary,
                         caView.getCurrentRule()));
 
+        // a single quick background pass (or a read from the cache), so they're ready by the time they're wanted
+        ruleGallery = new RuleGallery(this);
+        ruleGallery.load(new RuleGallery.Listener() {
+            @Override
+            public void onThumbnailsReady() {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (ruleGalleryAdapter != null) {
+                            ruleGalleryAdapter.notifyDataSetChanged();
+                        }
+                    }
+                });
+            }
+        });
     }
 
     @Override
@@ -67,7 +98,35 @@ public class MainActivity extends SherlockActivity {
         super.onResume();
 
         // not in onCreate as we want this to take effect on return from settings
-        caView.setDebugEnabled(WolframUtils.Prefs.getPrefDebugEnabled(this));
+        boolean debugEnabled = WolframUtils.Prefs.getPrefDebugEnabled(this);
+        caView.setDebugEnabled(debugEnabled);
+
+        if (debugEnabled) {
+            caView.startTrace(new File(getFilesDir(), TRACE_FILENAME));
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        caView.stopTrace();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // only called on API 14+, the tile cache will drop bitmaps and then cell rows depending on the level
+        caView.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        // the pre-API 14 equivalent of the most severe onTrimMemory() level
+        caView.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
     }
 
     @Override
@@ -92,9 +151,9 @@ public class MainActivity extends SherlockActivity {
                 createAndShowZoomDialog();
                 return true;
 
-            // "Back to Top"
+            // "Back to Top" (of the CA, in case the view was moved to a later generation)
             case R.id.actionbar_backtotop:
-                caView.moveToOriginTile();
+                caView.moveToGeneration(0);
                 return true;
 
             // "Settings"
@@ -107,8 +166,8 @@ public class MainActivity extends SherlockActivity {
         }
     }
 
-    /* Setup and display rule change dialog.  Seek bar with values between 0-255, summary of selected rule and
-     * 'prev' and 'next' buttons for finer control of rule selection. */
+    /* Setup and display rule change dialog.  Seek bar with values between 0-255, summary of selected rule,
+     * 'prev' and 'next' buttons for finer control of rule selection, and a gallery of thumbnails to pick from. */
     private void createAndShowRuleDialog() {
 
         ruleDialog_rule = caView.getCurrentRule();
@@ -119,6 +178,12 @@ public class MainActivity extends SherlockActivity {
         final TextView ruleSummaryTxt = (TextView) layout.findViewById(R.id.ruleDialog_ruleSummaryTxt);
         ruleSummaryTxt.setText(getResources().getString(R.string.ruledialog_ruleSummary, ruleDialog_rule));
 
+        final GridView gallery = (GridView) layout.findViewById(R.id.ruleDialog_gallery);
+        final RuleGalleryAdapter galleryAdapter = new RuleGalleryAdapter(this, ruleGallery, ruleDialog_rule);
+        ruleGalleryAdapter = galleryAdapter;
+        gallery.setAdapter(galleryAdapter);
+        gallery.setSelection(ruleDialog_rule);
+
         final SeekBar ruleSeek = (SeekBar) layout.findViewById(R.id.ruleDialog_ruleSlider);
         ruleSeek.setMax(255);
         ruleSeek.setProgress(ruleDialog_rule);
@@ -128,6 +193,8 @@ public class MainActivity extends SherlockActivity {
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 ruleDialog_rule = progress;
                 ruleSummaryTxt.setText(getResources().getString(R.string.ruledialog_ruleSummary, ruleDialog_rule));
+                galleryAdapter.setSelectedRule(ruleDialog_rule);
+                gallery.smoothScrollToPosition(ruleDialog_rule);
             }
 
             @Override
@@ -140,6 +207,13 @@ public class MainActivity extends SherlockActivity {
         });
 
 
+        gallery.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                ruleSeek.setProgress(position); // seekbar listener will update the rest
+            }
+        });
+
         layout.findViewById(R.id.ruleDialog_butRulePrev).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -173,7 +247,14 @@ public class MainActivity extends SherlockActivity {
                 });
 
 
-        builder.create().show();
+        AlertDialog dialog = builder.create();
+        dialog.setOnDismissListener(new DialogInterface.OnDismissListener() {
+            @Override
+            public void onDismiss(DialogInterface dialogInterface) {
+                ruleGalleryAdapter = null;
+            }
+        });
+        dialog.show();
 
     }
 
@@ -0,0 +1,92 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca;
+
+import android.app.Activity;
+import android.content.pm.ApplicationInfo;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+import net.nologin.meep.ca.model.TraceReplayer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Developer tool: replays a trace recorded by the {@link MainActivity} (while debug is enabled) into an off-screen
+ * provider, and shows (and logs) the {@link TraceReplayer} report.  Has no launcher entry, start it with eg:
+ * <pre>
+ *      adb shell am start -n net.nologin.meep.ca/.ReplayActivity [--es trace provider.trace] [--ef speed 1.0]
+ * </pre>
+ * The trace is a file name in the app's private files directory.
+ * <br/><br/>
+ * The activity has to be exported for adb to start it, which means any installed app could, so it only does anything
+ * in debuggable builds.  In any other it just finishes.
+ */
+public class ReplayActivity extends Activity {
+
+    /**
+     * Intent extra: the trace's file name (defaults to {@link MainActivity#TRACE_FILENAME})
+     */
+    public static final String EXTRA_TRACE = "trace";
+
+    /**
+     * Intent extra: how fast to replay, 1 (the default) being the recorded speed
+     */
+    public static final String EXTRA_SPEED = "speed";
+
+    private TextView output;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+
+        super.onCreate(savedInstanceState);
+
+        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) == 0) {
+            Log.w(WolframUtils.LOG_TAG, "Replays are only available in debuggable builds");
+            finish();
+            return;
+        }
+
+        output = new TextView(this);
+        setContentView(output);
+
+        // only ever a file of our own, whatever path we're given
+        String name = getIntent().getStringExtra(EXTRA_TRACE);
+        final File trace = new File(getFilesDir(),
+                new File(name == null ? MainActivity.TRACE_FILENAME : name).getName());
+        final float speed = getIntent().getFloatExtra(EXTRA_SPEED, 1f);
+
+        output.setText(getString(R.string.replay_running, trace.getName()));
+
+        // replays take as long as the recording did, keep them off the UI thread
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                String result;
+                try {
+                    result = new TraceReplayer(ReplayActivity.this).replay(trace, speed).toString();
+                    Log.i(WolframUtils.LOG_TAG, "Replay report:\n" + result);
+                } catch (IOException e) {
+                    result = getString(R.string.replay_failed, trace.getName(), e.getMessage());
+                    Log.e(WolframUtils.LOG_TAG, result, e);
+                }
+
+                final String text = result;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        output.setText(text);
+                    }
+                });
+            }
+        }, "TraceReplay").start();
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.model;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A fixed size pool of reusable, mutable bitmaps, so that tiles scrolling on and off screen don't mean a steady
+ * stream of bitmap allocations (and garbage collection).  Bitmaps are pooled by size and config.
+ * <br/><br/>
+ * Bitmaps released once the pool holds {@link #getMaxSize()} bitmaps are recycled rather than pooled.  Instances are
+ * safe for use from multiple threads.
+ *
+ * @see WolframTile#setPooledBmpData(Bitmap, BitmapPool)
+ */
+public class BitmapPool {
+
+    private final int maxSize;
+
+    // guarded by 'this'
+    private final Map<Key, ArrayDeque<Bitmap>> free = new HashMap<Key, ArrayDeque<Bitmap>>();
+    private int size = 0;
+
+    // stats for the debug summary
+    private long numReused = 0, numCreated = 0, numDiscarded = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxSize The number of free bitmaps the pool will hold on to
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The number of free bitmaps the pool will hold on to
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get a mutable bitmap, reusing a free one if possible.  Its contents are undefined.
+     *
+     * @param width  The width
+     * @param height The height
+     * @param config The config
+     * @return The bitmap
+     */
+    public Bitmap acquire(int width, int height, Bitmap.Config config) {
+
+        synchronized (this) {
+            ArrayDeque<Bitmap> bitmaps = free.get(new Key(width, height, config));
+            if (bitmaps != null && !bitmaps.isEmpty()) {
+                size--;
+                numReused++;
+                return bitmaps.pop();
+            }
+            numCreated++;
+        }
+
+        // not while holding the lock
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Give a bitmap back to the pool.  The caller must not use it afterwards.
+     *
+     * @param bmp The bitmap, which should have come from {@link #acquire(int, int, Bitmap.Config)}
+     */
+    public void release(Bitmap bmp) {
+
+        if (bmp == null || bmp.isRecycled()) {
+            return;
+        }
+
+        synchronized (this) {
+            if (size < maxSize && bmp.isMutable()) {
+                Key key = new Key(bmp.getWidth(), bmp.getHeight(), bmp.getConfig());
+                ArrayDeque<Bitmap> bitmaps = free.get(key);
+                if (bitmaps == null) {
+                    bitmaps = new ArrayDeque<Bitmap>();
+                    free.put(key, bitmaps);
+                }
+                bitmaps.push(bmp);
+                size++;
+                return;
+            }
+            numDiscarded++;
+        }
+
+        bmp.recycle();
+    }
+
+    /**
+     * Recycle all the free bitmaps
+     */
+    public synchronized void clear() {
+
+        for (ArrayDeque<Bitmap> bitmaps : free.values()) {
+            for (Bitmap bmp : bitmaps) {
+                bmp.recycle();
+            }
+        }
+        free.clear();
+        size = 0;
+    }
+
+    /**
+     * @return A short summary of the pool's contents and stats, for the provider's debug summary
+     */
+    public synchronized String getDebugSummary() {
+        return String.format("pool=%d/%d,reuse=%d,new=%d,disc=%d", size, maxSize, numReused, numCreated,
+                numDiscarded);
+    }
+
+    // what bitmaps are pooled by
+    private static class Key {
+
+        final int width, height;
+        final Bitmap.Config config;
+
+        Key(int width, int height, Bitmap.Config config) {
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + (config == null ? 0 : config.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+    }
+
+}
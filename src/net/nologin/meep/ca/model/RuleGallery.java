@@ -0,0 +1,158 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.model;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import net.nologin.meep.ca.R;
+import net.nologin.meep.ca.WolframUtils;
+import net.nologin.meep.ca.core.RuleThumbnails;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Thumbnails of every rule for the rule dialog, so rules can be picked by sight rather than flipped through one at
+ * a time (each flip throwing away the tile cache).
+ * <br/><br/>
+ * The thumbnails of all 256 rules are calculated together in a single pass (see {@link RuleThumbnails}) on a
+ * background thread, and saved to the app's cache directory, from where later sessions just read them back.  The
+ * bitmaps are created as they're first asked for, a pixel per cell, to be scaled up (unfiltered) by the view.
+ */
+public class RuleGallery {
+
+    /**
+     * The size of each thumbnail, in cells.  Wide enough for the whole cone of the single starting cell.
+     */
+    public static final int THUMB_WIDTH = 64, THUMB_HEIGHT = 32;
+
+    private static final String CACHE_FILENAME = "rule-thumbnails.dat";
+
+    /**
+     * Notified once the thumbnails are available
+     */
+    public interface Listener {
+
+        /**
+         * Called on the loading thread, not the UI thread
+         */
+        void onThumbnailsReady();
+    }
+
+    private final File cacheFile;
+    private final int colorPixelOn, colorPixelOff;
+
+    private volatile RuleThumbnails thumbnails;
+    private boolean loading = false;
+
+    // created on demand, on the UI thread
+    private final Bitmap[] bitmaps = new Bitmap[RuleThumbnails.NUM_RULES];
+
+    /**
+     * Constructor.  Nothing is loaded until {@link #load(Listener)} is called.
+     *
+     * @param ctx The context, for the cache directory and colours
+     */
+    public RuleGallery(Context ctx) {
+
+        cacheFile = new File(ctx.getCacheDir(), CACHE_FILENAME);
+        colorPixelOn = ctx.getResources().getColor(R.color.CAView_PixelOn);
+        colorPixelOff = ctx.getResources().getColor(R.color.CAView_PixelOff);
+    }
+
+    /**
+     * Start loading the thumbnails in the background (reading them from the cache, or calculating them), unless
+     * that's already been done.
+     *
+     * @param listener Notified once they're available, if they weren't already (may be null)
+     */
+    public synchronized void load(final Listener listener) {
+
+        if (loading || thumbnails != null) {
+            return;
+        }
+        loading = true;
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+
+                thumbnails = readOrCalculate();
+                if (listener != null) {
+                    listener.onThumbnailsReady();
+                }
+            }
+        }, "RuleGallery").start();
+    }
+
+    /**
+     * @return Whether the thumbnails are available
+     */
+    public boolean isReady() {
+        return thumbnails != null;
+    }
+
+    /**
+     * Get a rule's thumbnail, creating its bitmap if this is the first time it's asked for.  Call on the UI thread.
+     *
+     * @param rule The rule number (0-255)
+     * @return The thumbnail, {@link #THUMB_WIDTH} x {@link #THUMB_HEIGHT} pixels, or null if not available yet
+     */
+    public Bitmap getThumbnail(int rule) {
+
+        RuleThumbnails thumbs = thumbnails;
+        if (thumbs == null) {
+            return null;
+        }
+
+        if (bitmaps[rule] == null) {
+            int[] pixels = new int[THUMB_WIDTH * THUMB_HEIGHT];
+            thumbs.render(rule, colorPixelOn, colorPixelOff, pixels);
+            Bitmap bmp = Bitmap.createBitmap(THUMB_WIDTH, THUMB_HEIGHT, Bitmap.Config.RGB_565);
+            bmp.setPixels(pixels, 0, THUMB_WIDTH, 0, 0, THUMB_WIDTH, THUMB_HEIGHT);
+            bitmaps[rule] = bmp;
+        }
+        return bitmaps[rule];
+    }
+
+    private RuleThumbnails readOrCalculate() {
+
+        if (cacheFile.exists()) {
+            try {
+                FileInputStream in = new FileInputStream(cacheFile);
+                try {
+                    return RuleThumbnails.read(in, THUMB_WIDTH, THUMB_HEIGHT);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(WolframUtils.LOG_TAG, "Cannot read " + cacheFile + ", recalculating, error:" + e.getMessage());
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        RuleThumbnails thumbs = RuleThumbnails.calculate(THUMB_WIDTH, THUMB_HEIGHT);
+        Log.d(WolframUtils.LOG_TAG, "Rule thumbnails calculated in " + (System.currentTimeMillis() - start) + "ms");
+
+        try {
+            FileOutputStream out = new FileOutputStream(cacheFile);
+            try {
+                thumbs.write(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(WolframUtils.LOG_TAG, "Cannot save " + cacheFile + ", error:" + e.getMessage());
+        }
+        return thumbs;
+    }
+
+}
@@ -0,0 +1,521 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.model;
+
+import android.util.Log;
+import net.nologin.meep.ca.WolframUtils;
+import net.nologin.meep.tbv.Tile;
+import net.nologin.meep.tbv.TileRange;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Runs tile calculations for the {@link WolframTileProvider} on a pool of worker threads, one per core.
+ * <br/><br/>
+ * A tile can be calculated as soon as the last cell rows of its three parent tiles (x-1, x and x+1 in the tile row
+ * above) are available, so the tiles of a single tile row are independent of each other.  The scheduler tracks these
+ * dependencies: every queued tile counts how many of its parents are still outstanding, and only becomes 'ready' when
+ * that count drops to zero.  Idle workers take whichever ready tile has the best priority, so the provider's ordering
+ * (center and visible tiles first) is kept, while any other ready tiles are picked up by the remaining cores.
+ * <pre>
+ *      y-1:  | x-1 | x  | x+1 |      each finished parent releases its children,
+ *                \   |   /           and the last parent to finish moves the
+ *      y:          [ x ]             child onto the ready queue
+ * </pre>
+ * The queue lives as long as the scheduler.  When the view scrolls, {@link #update(List, TileRange)} doesn't cancel
+ * anything - tiles that are still wanted just get their new priority, and tiles that are no longer wanted are left
+ * where they are, and dropped when a worker comes across them.  A ready tile whose priority changes gets a second
+ * entry in the ready queue rather than being searched for and removed, and the out of date entry is dropped in the
+ * same lazy way.
+ * <br/><br/>
+ * Neighbouring tiles in a tile row share most of their parents' cells, so a worker taking a tile also claims any
+ * ready tiles either side of it (up to {@link #MAX_BAND_TILES} in all), and the {@link TileProcessor} calculates
+ * the whole band of tiles in one go.
+ * <br/><br/>
+ * Every tile taken is first claimed through its lifecycle state (see {@link WolframTile#startComputing(boolean)}), so
+ * no tile is calculated twice at once, even by the view's thread filling in background tiles.  A tile another thread
+ * is already calculating isn't taken into a band: its job waits for that calculation to finish (see
+ * {@link WolframTile#addCompletionListener(WolframTile.Listener)}) and then completes like any other, releasing its
+ * children.
+ *
+ * @see WolframTileProvider
+ */
+public class TileScheduler {
+
+    /**
+     * The most tiles a worker will claim at once
+     */
+    public static final int MAX_BAND_TILES = 8;
+
+    /**
+     * The work done for each scheduled band of tiles
+     */
+    public interface TileProcessor {
+
+        /**
+         * Calculate the state of a band of neighbouring tiles in the same tile row.  Called on a worker thread once
+         * the tiles' parents have been processed.
+         *
+         * @param band       The tiles to process, in order of x ID with no gaps.  Reused by the worker, so only valid
+         *                   for the duration of the call.
+         * @param fillBitmap For each tile in the band, <code>true</code> if its bitmap data should be generated as
+         *                   well as its state (may be longer than the band)
+         */
+        void processBand(List<WolframTile> band, boolean[] fillBitmap);
+    }
+
+    private final TileProcessor processor;
+    private final int numWorkers;
+
+    // entries for tiles whose parents are all processed, best priority first
+    private final PriorityBlockingQueue<Entry> readyQueue = new PriorityBlockingQueue<Entry>();
+
+    // every scheduled tile that isn't finished yet, for O(1) lookups by cache key. Guarded by 'this'.
+    private final Map<Long, Job> jobs = new HashMap<Long, Job>();
+
+    // incremented on every update() call, jobs not touched by the latest update are no longer wanted
+    private int epoch = 0;
+
+    // stats for the debug summary
+    private int numUpdates = 0, numRebuildsAvoided = 0;
+    private long numReprioritised = 0, numDropped = 0, numStaleEntries = 0;
+    private long numBands = 0, numBandTiles = 0, numWaits = 0, numFailed = 0;
+
+    private ExecutorService workers;
+
+    /**
+     * Constructor
+     *
+     * @param processor  Does the actual work for each tile
+     * @param numWorkers The number of worker threads (typically the number of cores)
+     */
+    public TileScheduler(TileProcessor processor, int numWorkers) {
+
+        this.processor = processor;
+        this.numWorkers = Math.max(1, numWorkers);
+    }
+
+    /**
+     * Tell the scheduler which tiles are now wanted, and in what order.  Tiles already scheduled keep their place in
+     * the dependency graph (and any in-progress work), but take the priority of their position in the new list.
+     * Scheduled tiles that aren't in the list are dropped when a worker next comes across them.
+     *
+     * @param renderQueue  The tiles to process.  A tile's parents must either be already processed, or appear
+     *                     earlier in this list.  The list order, nearest to the center of the view first, is the
+     *                     order of preference for processing.
+     * @param visibleRange Bitmap data is generated only for tiles in this range
+     */
+    public synchronized void update(List<WolframTile> renderQueue, TileRange visibleRange) {
+        update(renderQueue, visibleRange, false);
+    }
+
+    /**
+     * As {@link #update(List, TileRange)}, optionally without tracking the dependencies of the new tiles, for when
+     * the starting state of any tile is as cheap to seek as to take from the tiles above it (see
+     * <code>GenerationSeeker.isDirect()</code>).  Every new tile is then ready straight away, and the render queue
+     * needs no prerequisites.
+     *
+     * @param renderQueue  The tiles to process, in order of preference
+     * @param visibleRange Bitmap data is generated only for tiles in this range
+     * @param independent  If <code>true</code>, new tiles don't wait for their parents
+     */
+    public synchronized void update(List<WolframTile> renderQueue, TileRange visibleRange, boolean independent) {
+
+        epoch++;
+        numUpdates++;
+        if (!jobs.isEmpty()) {
+            numRebuildsAvoided++; // previously, the existing queue would have been cancelled here
+        }
+
+        int priority = 0;
+        for (WolframTile t : renderQueue) {
+
+            Job job = jobs.get(t.cacheKey);
+            boolean fillBitmap = visibleRange.contains(t);
+
+            // a job for a tile that's been replaced in the provider's cache (eg after a rule change) is useless
+            if (job != null && job.tile != t) {
+                job = null;
+            }
+
+            if (job != null) {
+
+                if (job.epoch == epoch) {
+                    continue; // already in this update
+                }
+
+                job.epoch = epoch;
+                job.fillBitmap |= fillBitmap;
+
+                if (job.priority != priority) {
+                    job.priority = priority;
+                    numReprioritised++;
+                    if (job.state == Job.READY) {
+                        readyQueue.add(new Entry(job));
+                    }
+                }
+
+                priority++;
+                continue;
+            }
+
+            job = new Job(t, priority++, fillBitmap, epoch);
+            jobs.put(t.cacheKey, job);
+            t.markQueued();
+
+            // register with any parent tiles that are still to be processed
+            if (t.yId > 0 && !independent) {
+                for (int x = t.xId - 1; x <= t.xId + 1; x++) {
+                    Job parent = jobs.get(Tile.createCacheKey(x, t.yId - 1));
+                    if (parent != null) {
+                        parent.dependents.add(job);
+                        job.waitingOn++;
+                    }
+                }
+            }
+
+            if (job.waitingOn == 0) {
+                makeReady(job);
+            }
+        }
+
+        if (workers == null || workers.isShutdown()) {
+            startWorkers();
+        }
+
+        Log.d(WolframUtils.LOG_TAG, "Render queue updated, " + jobs.size() + " tiles scheduled");
+    }
+
+    /**
+     * Forget every scheduled tile (eg because the provider's tiles have all been replaced).  Tiles already being
+     * processed are allowed to finish.
+     */
+    public synchronized void clear() {
+
+        epoch++;
+        for (Job job : jobs.values()) {
+            job.tile.unqueue();
+        }
+        jobs.clear();
+        readyQueue.clear();
+    }
+
+    /**
+     * Stop all worker threads, interrupting any in-progress work.  A later {@link #update(List, TileRange)} will
+     * start a new set of workers.
+     */
+    public synchronized void shutdown() {
+
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        clear();
+    }
+
+    /**
+     * @return The number of worker threads
+     */
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    /**
+     * @return The number of tiles scheduled that are yet to be processed
+     */
+    public synchronized int getPendingCount() {
+        return jobs.size();
+    }
+
+    /**
+     * @return The number of scheduled tiles dropped unprocessed, as they were no longer wanted
+     */
+    public synchronized long getNumDropped() {
+        return numDropped;
+    }
+
+    /**
+     * Check whether a tile's data is still needed by the scheduler, either because the tile is scheduled itself, or
+     * because it's the parent of a scheduled tile.
+     *
+     * @param t The tile
+     * @return <code>true</code> if the tile's last cell row shouldn't be discarded
+     */
+    public synchronized boolean isNeeded(WolframTile t) {
+
+        if (jobs.containsKey(t.cacheKey)) {
+            return true;
+        }
+        for (int x = t.xId - 1; x <= t.xId + 1; x++) {
+            if (jobs.containsKey(Tile.createCacheKey(x, t.yId + 1))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return A short summary of the queue stats, for the provider's debug summary
+     */
+    public synchronized String getDebugSummary() {
+        return String.format("queue=%d,workers=%d,upd=%d,kept=%d,reprio=%d,drop=%d,stale=%d,wait=%d,fail=%d,"
+                + "band=%.1f", jobs.size(), numWorkers, numUpdates, numRebuildsAvoided, numReprioritised, numDropped,
+                numStaleEntries, numWaits, numFailed, numBands == 0 ? 0f : (float) numBandTiles / numBands);
+    }
+
+    private void startWorkers() {
+
+        workers = Executors.newFixedThreadPool(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            workers.submit(new Worker());
+        }
+        Log.d(WolframUtils.LOG_TAG, "Started " + numWorkers + " tile workers");
+    }
+
+    private void makeReady(Job job) {
+        job.state = Job.READY;
+        readyQueue.add(new Entry(job));
+    }
+
+    /* Decide what to do with an entry a worker took off the ready queue.  Fills 'band' with the jobs the worker
+     * should process (the entry's job, and any ready neighbours) and returns true, or returns false if the entry was
+     * out of date or its tile is no longer wanted */
+    private synchronized boolean startBand(Entry entry, List<Job> band) {
+
+        Job job = entry.job;
+
+        // superseded by a later entry for the same job (or the job's already been taken)
+        if (job.state != Job.READY || entry.priority != job.priority || jobs.get(job.tile.cacheKey) != job) {
+            numStaleEntries++;
+            return false;
+        }
+
+        // not wanted by the latest update, and nothing that is wanted depends on it
+        if (job.epoch != epoch && !hasWantedDependents(job)) {
+            drop(job);
+            return false;
+        }
+
+        // already done (eg a background tile filled in by the view's thread), or being done by another thread
+        int started = job.tile.startComputing(job.fillBitmap);
+        if (started != WolframTile.STARTED) {
+            job.state = Job.RUNNING;
+            if (started == WolframTile.BUSY) {
+                numWaits++;
+                awaitTile(job);
+            } else {
+                job.runningWithBitmap = job.fillBitmap;
+                finishJob(job);
+            }
+            return false;
+        }
+
+        // take any ready neighbours, alternating sides so the band stays centered on the best priority tile
+        int y = job.tile.yId, left = job.tile.xId, right = job.tile.xId;
+        boolean leftDone = false, rightDone = false;
+        while (right - left + 1 < MAX_BAND_TILES && !(leftDone && rightDone)) {
+
+            if (!leftDone) {
+                if (claim(left - 1, y)) {
+                    left--;
+                } else {
+                    leftDone = true;
+                }
+            }
+
+            if (!rightDone && right - left + 1 < MAX_BAND_TILES) {
+                if (claim(right + 1, y)) {
+                    right++;
+                } else {
+                    rightDone = true;
+                }
+            }
+        }
+
+        band.clear();
+        for (int x = left; x <= right; x++) {
+            Job j = x == job.tile.xId ? job : jobs.get(Tile.createCacheKey(x, y));
+            j.state = Job.RUNNING;
+            j.runningWithBitmap = j.fillBitmap;
+            band.add(j);
+        }
+
+        numBands++;
+        numBandTiles += band.size();
+        return true;
+    }
+
+    /* true if the tile has a ready (and wanted) job, and its calculation could be claimed.  Any entries the job has in
+     * the ready queue become stale once taken.  A tile that's done or busy is left for its own turn */
+    private boolean claim(int xId, int yId) {
+
+        Job job = jobs.get(Tile.createCacheKey(xId, yId));
+        if (job == null || job.state != Job.READY || (job.epoch != epoch && !hasWantedDependents(job))) {
+            return false;
+        }
+        return job.tile.startComputing(job.fillBitmap) == WolframTile.STARTED;
+    }
+
+    // finish the job once the thread calculating its tile is done, as if it had been calculated in a band
+    private void awaitTile(final Job job) {
+
+        job.tile.addCompletionListener(new WolframTile.Listener() {
+            @Override
+            public void onTileComputed(WolframTile tile) {
+                synchronized (TileScheduler.this) {
+                    // if the other calculation didn't produce the bitmap this job wants, the job goes again
+                    job.runningWithBitmap = tile.getState() == WolframTile.BITMAP_READY;
+                    finishJob(job);
+                }
+            }
+        });
+    }
+
+    // publish the band's tiles, then release their children
+    private synchronized void finishBand(List<Job> band, boolean failed) {
+        if (failed) {
+            numFailed++;
+        }
+        for (Job job : band) {
+            job.tile.finishComputing();
+        }
+        for (Job job : band) {
+            finishJob(job);
+        }
+    }
+
+    // release any children whose parents are now all done
+    private void finishJob(Job job) {
+
+        // became visible while being processed without a bitmap, go again (its parents are still available)
+        if (job.fillBitmap && !job.runningWithBitmap && jobs.get(job.tile.cacheKey) == job) {
+            makeReady(job);
+        } else if (jobs.get(job.tile.cacheKey) == job) {
+            jobs.remove(job.tile.cacheKey);
+        }
+
+        for (Job child : job.dependents) {
+            if (--child.waitingOn == 0 && jobs.get(child.tile.cacheKey) == child) {
+                makeReady(child);
+            }
+        }
+        job.dependents.clear();
+    }
+
+    /* Shouldn't happen, as wanted tiles are always listed in the update along with all their unprocessed ancestors,
+     * but a wanted child would otherwise never get to run */
+    private boolean hasWantedDependents(Job job) {
+
+        for (Job child : job.dependents) {
+            if (child.epoch == epoch) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // remove a job, and the jobs waiting on it (which can now never run)
+    private void drop(Job job) {
+
+        if (jobs.get(job.tile.cacheKey) == job) {
+            jobs.remove(job.tile.cacheKey);
+            job.tile.unqueue();
+            numDropped++;
+        }
+        for (Job child : job.dependents) {
+            drop(child);
+        }
+        job.dependents.clear();
+    }
+
+    /* Each worker loops, taking the next ready job (and its ready neighbours) until interrupted by shutdown() */
+    private class Worker implements Runnable {
+
+        // reused for every band, so the worker loop doesn't allocate
+        private final List<Job> band = new ArrayList<Job>(MAX_BAND_TILES);
+        private final List<WolframTile> tiles = new ArrayList<WolframTile>(MAX_BAND_TILES);
+        private final boolean[] fillBitmap = new boolean[MAX_BAND_TILES];
+
+        @Override
+        public void run() {
+
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+
+                    Entry entry = readyQueue.take();
+                    if (!startBand(entry, band)) {
+                        continue;
+                    }
+
+                    boolean failed = true;
+                    try {
+                        tiles.clear();
+                        for (Job job : band) {
+                            fillBitmap[tiles.size()] = job.runningWithBitmap && job.tile.getBmpData() == null;
+                            tiles.add(job.tile);
+                        }
+
+                        processor.processBand(tiles, fillBitmap);
+                        failed = false;
+                    } catch (RuntimeException e) {
+                        // the band's tiles are left as they were, but the worker carries on with the next band
+                        Log.e(WolframUtils.LOG_TAG, "Band of " + band.size() + " tiles from " + band.get(0).tile.xId
+                                + "," + band.get(0).tile.yId + " failed", e);
+                    } finally {
+                        finishBand(band, failed);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.d(WolframUtils.LOG_TAG, "Tile worker interrupted (shutting down)");
+            }
+        }
+    }
+
+    /* A scheduled tile, with the number of parents it's waiting on and the children waiting on it. All fields are
+     * guarded by the scheduler's lock. */
+    private static class Job {
+
+        static final int WAITING = 0, READY = 1, RUNNING = 2;
+
+        final WolframTile tile;
+        int priority;
+        boolean fillBitmap, runningWithBitmap;
+        int epoch;
+        int state = WAITING;
+
+        int waitingOn = 0;
+        final List<Job> dependents = new ArrayList<Job>(3);
+
+        Job(WolframTile tile, int priority, boolean fillBitmap, int epoch) {
+            this.tile = tile;
+            this.priority = priority;
+            this.fillBitmap = fillBitmap;
+            this.epoch = epoch;
+        }
+    }
+
+    /* A ready queue entry, holding the job's priority at the time it was queued */
+    private static class Entry implements Comparable<Entry> {
+
+        final Job job;
+        final int priority;
+
+        Entry(Job job) {
+            this.job = job;
+            this.priority = job.priority;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            return priority < other.priority ? -1 : (priority == other.priority ? 0 : 1);
+        }
+    }
+
+}
@@ -0,0 +1,355 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.model;
+
+import android.content.Context;
+import android.util.Log;
+import net.nologin.meep.ca.WolframUtils;
+import net.nologin.meep.ca.core.TraceReader;
+import net.nologin.meep.tbv.TileRange;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays a trace recorded by {@link WolframTileProvider#startTrace(File)} into a new provider, with no view, and
+ * reports how the provider kept up.  The same trace can be replayed before and after a change (eg to the
+ * {@link TileScheduler}) to compare the two on an identical workload.
+ * <br/><br/>
+ * Events are replayed with their recorded timing (optionally sped up or slowed down), polls for fresh data included.
+ * The provider gets a generation store of its own, emptied before each replay, so that one replay doesn't speed up
+ * the next.  After each poll (when the view would have drawn) the replayer checks whether the latest visible range is
+ * complete.  It reports:
+ * <ul>
+ * <li><i>Time to visible</i>: for each visible range, the time from the range change until all of its tiles had
+ * bitmaps, or -1 if the view moved on first</li>
+ * <li><i>Wasted tiles</i>: tiles dropped from the schedule unprocessed, and tiles rendered for a range the view had
+ * left by the time they were done</li>
+ * <li><i>Redraws</i>: polls that found fresh data, ie that the view would have redrawn for</li>
+ * <li><i>Peak cache bytes</i>: the most bitmap and cell row bytes the cache held</li>
+ * <li><i>Queue depth</i>: the number of scheduled tiles over time, sampled whenever it changes</li>
+ * </ul>
+ * Replays run on the calling thread, which shouldn't be the UI thread.
+ */
+public class TraceReplayer {
+
+    // once the trace ends, how long to keep polling for the last range to complete
+    private static final long SETTLE_MILLIS = 10000;
+
+    // roughly the view's frame rate
+    private static final long SETTLE_POLL_MILLIS = 16;
+
+    private static final String STORE_FILENAME = "replay-generations.dat";
+
+    private final Context ctx;
+
+    /**
+     * Constructor
+     *
+     * @param ctx The context, for the provider
+     */
+    public TraceReplayer(Context ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Replay a trace
+     *
+     * @param traceFile The trace
+     * @param speed     How fast to replay, 1 being the recorded speed
+     * @return The report
+     * @throws IOException If the trace can't be read
+     */
+    public Report replay(File traceFile, float speed) throws IOException {
+
+        TraceReader reader = new TraceReader(new FileInputStream(traceFile));
+
+        File storeFile = new File(ctx.getCacheDir(), STORE_FILENAME);
+        if (storeFile.exists() && !storeFile.delete()) {
+            Log.w(WolframUtils.LOG_TAG, "Cannot delete " + storeFile + ", replay may use its rows");
+        }
+
+        WolframTileProvider provider = new WolframTileProvider(ctx, reader.getRule(), reader.getPixelsPerCell(),
+                storeFile);
+        provider.setOriginGeneration(reader.getOrigin());
+        if (reader.getOverviewLevel() > 0) {
+            provider.setOverviewLevel(reader.getOverviewLevel());
+        }
+
+        Player player = new Player(provider, speed);
+        try {
+            player.report.numEvents = reader.read(player);
+            player.settle();
+        } finally {
+            provider.onSurfaceDestroyed();
+        }
+
+        Report report = player.report;
+        report.numDropped = provider.getNumDropped();
+        report.numOffscreenBitmaps = provider.getNumOffscreenBitmaps();
+
+        Log.i(WolframUtils.LOG_TAG, "Replayed " + traceFile + ": " + report.getSummary());
+        return report;
+    }
+
+    /**
+     * What a replay measured
+     */
+    public static class Report {
+
+        int numEvents, numRedraws;
+        long numDropped, numOffscreenBitmaps, peakCacheBytes;
+
+        // per visible range, in order: ms until complete, or -1
+        final List<Long> timesToVisible = new ArrayList<Long>();
+
+        // pairs of ms since the start and queue depth
+        final List<long[]> queueDepths = new ArrayList<long[]>();
+
+        /**
+         * @return The number of events replayed
+         */
+        public int getNumEvents() {
+            return numEvents;
+        }
+
+        /**
+         * @return For each visible range in turn, the milliseconds until all its tiles had bitmaps, or -1 if the view
+         *         moved on before then
+         */
+        public long[] getTimesToVisible() {
+            long[] times = new long[timesToVisible.size()];
+            for (int i = 0; i < times.length; i++) {
+                times[i] = timesToVisible.get(i);
+            }
+            return times;
+        }
+
+        /**
+         * @return The number of scheduled tiles dropped unprocessed
+         */
+        public long getNumDropped() {
+            return numDropped;
+        }
+
+        /**
+         * @return The number of tiles rendered that were no longer visible when done
+         */
+        public long getNumOffscreenBitmaps() {
+            return numOffscreenBitmaps;
+        }
+
+        /**
+         * @return The number of polls that found fresh data
+         */
+        public int getNumRedraws() {
+            return numRedraws;
+        }
+
+        /**
+         * @return The most bytes the tile cache held
+         */
+        public long getPeakCacheBytes() {
+            return peakCacheBytes;
+        }
+
+        /**
+         * @return The queue depth timeline, as pairs of milliseconds since the start and the number of scheduled
+         *         tiles, whenever the number changed
+         */
+        public List<long[]> getQueueDepths() {
+            return queueDepths;
+        }
+
+        /**
+         * @return A one line summary of the report
+         */
+        public String getSummary() {
+
+            long[] times = getTimesToVisible();
+            int numComplete = 0;
+            for (long t : times) {
+                if (t >= 0) {
+                    numComplete++;
+                }
+            }
+
+            // the incomplete ones sort first
+            Arrays.sort(times);
+            int first = times.length - numComplete;
+            long median = numComplete == 0 ? -1 : times[first + numComplete / 2];
+            long p90 = numComplete == 0 ? -1 : times[first + (numComplete * 9) / 10];
+            long max = numComplete == 0 ? -1 : times[times.length - 1];
+
+            int maxDepth = 0;
+            for (long[] depth : queueDepths) {
+                maxDepth = Math.max(maxDepth, (int) depth[1]);
+            }
+
+            return String.format("events=%d,ranges=%d/%d,ttv50=%dms,ttv90=%dms,ttvMax=%dms,dropped=%d,offscreen=%d,"
+                    + "redraws=%d,peakCache=%dK,maxQueue=%d", numEvents, numComplete, times.length, median, p90, max,
+                    numDropped, numOffscreenBitmaps, numRedraws, peakCacheBytes / 1024, maxDepth);
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder sb = new StringBuilder(getSummary());
+            sb.append("\ntime to visible (ms):");
+            for (Long t : timesToVisible) {
+                sb.append(' ').append(t);
+            }
+            sb.append("\nqueue depth (ms:tiles):");
+            for (long[] depth : queueDepths) {
+                sb.append(' ').append(depth[0]).append(':').append(depth[1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    // feeds the events to the provider in real time, measuring as it goes
+    private static class Player implements TraceReader.Listener {
+
+        final WolframTileProvider provider;
+        final float speed;
+        final long startNanos = System.nanoTime();
+        final Report report = new Report();
+
+        // the latest visible range, and when it was set (null once complete)
+        TileRange pending;
+        long pendingNanos;
+
+        Player(WolframTileProvider provider, float speed) {
+            this.provider = provider;
+            this.speed = speed;
+        }
+
+        @Override
+        public void onRange(long micros, int left, int top, int right, int bottom) {
+
+            waitUntil(micros);
+
+            if (pending != null) {
+                report.timesToVisible.add(-1L); // never complete
+            }
+
+            TileRange range = new TileRange();
+            range.left = left;
+            range.top = top;
+            range.right = right;
+            range.bottom = bottom;
+
+            provider.onTileIDRangeChange(range);
+            pending = range;
+            pendingNanos = System.nanoTime();
+            sample();
+        }
+
+        @Override
+        public void onRule(long micros, int rule) {
+            waitUntil(micros);
+            provider.setRule(rule);
+            sample();
+        }
+
+        @Override
+        public void onZoom(long micros, int pixelsPerCell) {
+            waitUntil(micros);
+            provider.setPixelsPerCell(pixelsPerCell);
+            sample();
+        }
+
+        @Override
+        public void onOverviewLevel(long micros, int level) {
+            waitUntil(micros);
+            provider.setOverviewLevel(level);
+            sample();
+        }
+
+        @Override
+        public void onOrigin(long micros, long origin) {
+            waitUntil(micros);
+            provider.setOriginGeneration(origin);
+            sample();
+        }
+
+        @Override
+        public void onTrimMemory(long micros, int level) {
+            waitUntil(micros);
+            provider.onTrimMemory(level);
+            sample();
+        }
+
+        @Override
+        public void onPoll(long micros, boolean fresh) {
+            waitUntil(micros);
+            poll();
+        }
+
+        // keep polling until the last range is complete, or it's clearly not going to be
+        void settle() {
+
+            long end = System.nanoTime() + SETTLE_MILLIS * 1000000L;
+            while (pending != null && System.nanoTime() < end) {
+                try {
+                    Thread.sleep(SETTLE_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                poll();
+            }
+
+            if (pending != null) {
+                report.timesToVisible.add(-1L);
+                pending = null;
+            }
+        }
+
+        private void poll() {
+
+            if (provider.hasFreshData()) {
+                report.numRedraws++;
+            }
+
+            if (pending != null && provider.isRangeReady(pending)) {
+                report.timesToVisible.add((System.nanoTime() - pendingNanos) / 1000000L);
+                pending = null;
+            }
+            sample();
+        }
+
+        private void sample() {
+
+            report.peakCacheBytes = Math.max(report.peakCacheBytes, provider.getCacheBytes());
+
+            int depth = provider.getPendingCount();
+            List<long[]> depths = report.queueDepths;
+            if (depths.isEmpty() || depths.get(depths.size() - 1)[1] != depth) {
+                depths.add(new long[]{(System.nanoTime() - startNanos) / 1000000L, depth});
+            }
+        }
+
+        private void waitUntil(long micros) {
+
+            long delayNanos = startNanos + (long) (micros * 1000 / speed) - System.nanoTime();
+            if (delayNanos > 0) {
+                try {
+                    Thread.sleep(delayNanos / 1000000L, (int) (delayNanos % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+}
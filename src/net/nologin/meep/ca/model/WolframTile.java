@@ -7,8 +7,14 @@
  */
 package net.nologin.meep.ca.model;
 
+import android.graphics.Bitmap;
+import net.nologin.meep.ca.core.TileIndex;
 import net.nologin.meep.tbv.Tile;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * We use a sublcass of {@link Tile} because we need to store some of the calculated rule data in
  * each tile as well as the bitmap data that {@link Tile} stores.
@@ -16,16 +22,304 @@ import net.nologin.meep.tbv.Tile;
  * The {@link WolframTileProvider} will clear the bitmap data from tiles that are scrolled off-screen.
  * Should we need that bitmap data again, the provider can use the saved state that's still in each
  * tile to quickly regenerate that tile's contents, instead of regenerating _all_ dependent tiles again.
+ * <br/><br/>
+ * Tiles are shared by the view's rendering thread, the tile workers and the cache's eviction, so each tile carries
+ * its lifecycle in an atomic state, and every change to its data is claimed with a compare-and-set of that state:
+ * <pre>
+ *      EMPTY -> QUEUED                     scheduled
+ *      EMPTY/QUEUED -> COMPUTING           claimed by one thread, the others wait or move on
+ *      EDGE_READY -> COMPUTING             claimed again for a bitmap
+ *      COMPUTING -> EDGE_READY             cell row published
+ *      COMPUTING -> BITMAP_READY           cell row and bitmap published
+ *      BITMAP_READY -> EDGE_READY          bitmap evicted
+ *      EDGE_READY -> EMPTY                 cell row evicted
+ *      EMPTY -> EVICTED                    removed from the cache, never used again
+ * </pre>
+ * Only the thread whose {@link #startComputing(boolean)} succeeds writes the tile's cell row and bitmap, so a tile is
+ * never calculated twice at once, and its data is published by the state change in {@link #finishComputing()}.
+ * Anyone else wanting the result can {@link #addCompletionListener(Listener) subscribe} to it.
+ * <br/><br/>
+ * Each tile belongs to the tile grid of the cache {@link WolframTileCache#getEpoch() epoch} it was created in, ie to a
+ * rule, zoom and origin.  Tiles of another epoch are never used to calculate it.
  *
  * @see WolframTileProvider
  */
-public class WolframTile extends Tile {
+public class WolframTile extends Tile implements TileIndex.Entry {
+
+    /**
+     * Lifecycle states, see class doc
+     */
+    public static final int EMPTY = 0, QUEUED = 1, COMPUTING = 2, EDGE_READY = 3, BITMAP_READY = 4, EVICTED = 5;
+
+    /**
+     * Results of {@link #startComputing(boolean)}: the caller now owns the calculation, there's nothing to calculate,
+     * or another thread is already calculating the tile
+     */
+    public static final int STARTED = 0, DONE = 1, BUSY = 2;
+
+    /**
+     * Notified when a tile that was being calculated is finished with
+     */
+    public interface Listener {
+
+        /**
+         * Called once, on the thread that finished calculating the tile (or was evicting it), or straight away on
+         * the subscribing thread if the tile wasn't being calculated.
+         *
+         * @param tile The tile, whose state is no longer {@link #COMPUTING}
+         */
+        void onTileComputed(WolframTile tile);
+    }
 
-    // the state that we'll keep even when the provider wipes the bitmap content
-    boolean[] lastCellRow = null;
+    private final AtomicInteger state = new AtomicInteger(EMPTY);
 
-    public WolframTile(int xId, int yId) {
+    // waiting for the current calculation to finish. Guarded by 'this'.
+    private List<Listener> listeners = null;
+
+    /* the state that we'll keep even when the provider wipes the bitmap content, packed 64 cells per word
+     * (see PackedCells). Only written by the thread computing the tile (or evicting it, see evictCellRow()), read by
+     * others, hence volatile */
+    volatile long[] lastCellRow = null;
+
+    // when the tile was last requested, for least-recently-used eviction (see WolframTileCache)
+    volatile long lastUsed = 0;
+
+    // the tile cache's epoch when the tile was created, see class doc
+    final int epoch;
+
+    // the bitmap is shared with other tiles (eg a plain background), so mustn't be recycled
+    private volatile boolean bmpShared = false;
+
+    // if not null, the pool the bitmap goes back to instead of being recycled
+    private volatile BitmapPool bmpPool = null;
+
+    /**
+     * Constructor
+     *
+     * @param xId   The tile's x ID
+     * @param yId   The tile's y ID
+     * @param epoch The tile cache's epoch, see {@link WolframTileCache#getEpoch()}
+     */
+    public WolframTile(int xId, int yId, int epoch) {
         super(xId, yId);
+        this.epoch = epoch;
+    }
+
+    @Override
+    public void setLastUsed(long tick) {
+        lastUsed = tick;
+    }
+
+    /**
+     * @return The tile's lifecycle state, see class doc
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * @return <code>true</code> if the tile has been removed from the cache, and mustn't be used any more
+     */
+    public boolean isEvicted() {
+        return state.get() == EVICTED;
+    }
+
+    /**
+     * Mark an empty tile as scheduled for calculation, which keeps it from being removed from the cache.  Does
+     * nothing to a tile in any other state.
+     */
+    public void markQueued() {
+        state.compareAndSet(EMPTY, QUEUED);
+    }
+
+    /**
+     * Undo {@link #markQueued()}, for a tile that's no longer scheduled
+     */
+    public void unqueue() {
+        state.compareAndSet(QUEUED, EMPTY);
+    }
+
+    /**
+     * Claim the tile for calculation.  Only one thread at a time gets to calculate a tile, and it must call
+     * {@link #finishComputing()} when done (successful or not).
+     *
+     * @param wantBitmap <code>true</code> if the bitmap is wanted as well as the cell row
+     * @return {@link #STARTED} if the caller now owns the calculation, {@link #DONE} if the tile already has what's
+     *         wanted (or was evicted), or {@link #BUSY} if another thread is calculating it
+     */
+    public int startComputing(boolean wantBitmap) {
+
+        while (true) {
+            int s = state.get();
+            switch (s) {
+                case EMPTY:
+                case QUEUED:
+                    break;
+                case EDGE_READY:
+                    if (!wantBitmap) {
+                        return DONE;
+                    }
+                    break;
+                case COMPUTING:
+                    return BUSY;
+                default:
+                    return DONE;
+            }
+            if (state.compareAndSet(s, COMPUTING)) {
+                return STARTED;
+            }
+        }
+    }
+
+    /**
+     * End a calculation claimed with {@link #startComputing(boolean)}, publishing whatever cell row and bitmap it
+     * set, and notify any listeners.
+     */
+    public void finishComputing() {
+
+        int next = getBmpData() != null ? BITMAP_READY : (lastCellRow != null ? EDGE_READY : EMPTY);
+        state.compareAndSet(COMPUTING, next); // unless evicted meanwhile
+        notifyListeners();
+    }
+
+    /**
+     * Subscribe to the end of the tile's current calculation.  If the tile isn't being calculated, the listener is
+     * called straight away.
+     *
+     * @param listener Called once, see {@link Listener#onTileComputed(WolframTile)}
+     */
+    public void addCompletionListener(Listener listener) {
+
+        synchronized (this) {
+            if (state.get() == COMPUTING) {
+                if (listeners == null) {
+                    listeners = new ArrayList<Listener>(2);
+                }
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.onTileComputed(this);
+    }
+
+    /**
+     * Drop the bitmap of a finished tile, keeping its cell row
+     *
+     * @return <code>false</code> if the tile had no bitmap, or is being calculated
+     */
+    public boolean evictBitmap() {
+
+        if (!state.compareAndSet(BITMAP_READY, EDGE_READY)) {
+            return false;
+        }
+        clearBmpData();
+        return true;
+    }
+
+    /**
+     * Drop the cell row of a finished tile that has no bitmap
+     *
+     * @return <code>false</code> if the tile had no cell row, still has its bitmap, or is queued or being calculated
+     */
+    public boolean evictCellRow() {
+
+        if (!state.compareAndSet(EDGE_READY, EMPTY)) {
+            return false;
+        }
+        lastCellRow = null;
+        return true;
+    }
+
+    /**
+     * Retire an empty tile, so it can be removed from the cache
+     *
+     * @return <code>false</code> if the tile has data, or is queued or being calculated
+     */
+    public boolean evict() {
+        return state.compareAndSet(EMPTY, EVICTED);
+    }
+
+    /**
+     * Retire the tile whatever its state (eg when the whole cache is cleared).  A calculation in progress finishes,
+     * but leaves the tile evicted.
+     */
+    public void forceEvict() {
+        state.set(EVICTED);
+    }
+
+    private void notifyListeners() {
+
+        List<Listener> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+        if (toNotify != null) {
+            for (Listener l : toNotify) {
+                l.onTileComputed(this);
+            }
+        }
+    }
+
+    /**
+     * Set bitmap data that other tiles may also be using.  It won't be recycled when this tile's bitmap data is
+     * cleared.
+     *
+     * @param bmp The shared bitmap
+     */
+    public void setSharedBmpData(Bitmap bmp) {
+        bmpShared = true;
+        bmpPool = null;
+        super.setBmpData(bmp);
+    }
+
+    /**
+     * Set bitmap data that was taken from a pool.  It will be released back to the pool (rather than recycled) when
+     * this tile's bitmap data is cleared.
+     *
+     * @param bmp  The bitmap
+     * @param pool The pool it came from
+     */
+    public void setPooledBmpData(Bitmap bmp, BitmapPool pool) {
+        bmpShared = false;
+        bmpPool = pool;
+        super.setBmpData(bmp);
+    }
+
+    /**
+     * @return <code>true</code> if the tile's bitmap data was set with {@link #setSharedBmpData(Bitmap)}
+     */
+    public boolean isBmpShared() {
+        return bmpShared;
+    }
+
+    @Override
+    public void setBmpData(Bitmap bmp) {
+        bmpShared = false;
+        bmpPool = null;
+        super.setBmpData(bmp);
+    }
+
+    @Override
+    public void clearBmpData() {
+
+        if (bmpShared) {
+            // just let go of it, the other tiles still need it
+            super.setBmpData(null);
+            bmpShared = false;
+            return;
+        }
+
+        BitmapPool pool = bmpPool;
+        if (pool != null) {
+            Bitmap bmp = getBmpData();
+            super.setBmpData(null);
+            bmpPool = null;
+            pool.release(bmp);
+            return;
+        }
+
+        super.clearBmpData();
     }
 
 }
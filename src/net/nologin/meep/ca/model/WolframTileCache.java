@@ -0,0 +1,305 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.model;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+import net.nologin.meep.ca.WolframUtils;
+import net.nologin.meep.ca.core.TileIndex;
+import net.nologin.meep.tbv.TileRange;
+
+import java.util.*;
+
+/**
+ * The {@link WolframTileProvider}'s tile cache, kept within a memory budget.
+ * <br/><br/>
+ * A tile holds two kinds of data: its bitmap, which is only needed while the tile is (nearly) on screen, and its last
+ * cell row, which is needed to calculate the tiles below it.  Both can be recalculated, the bitmap from the tile row
+ * above, and the cell row from the chain of prerequisite tiles.  The bytes held by each kind are counted separately,
+ * and when their total goes over the budget, the least recently used bitmaps are dropped first, followed by the least
+ * recently used cell rows.  Tiles that hold neither are removed from the cache entirely.
+ * <br/><br/>
+ * Some data is never evicted: bitmaps of tiles within {@link #OFFSCREEN_TILE_BUFFER} tiles of the visible range, and
+ * cell rows that the {@link TileScheduler} still needs for tiles it has queued.  Nor is the data of a tile that's being
+ * calculated: every eviction is a transition of the tile's lifecycle state (see {@link WolframTile}), which fails
+ * rather than tear a tile out from under the thread calculating it.  A removed tile is marked evicted before it
+ * leaves the cache, and {@link #getOrCreate(int, int)} replaces any evicted tile it comes across, so a tile that
+ * another thread just got hold of is never left orphaned.
+ * <br/><br/>
+ * Clearing the cache (on a rule, zoom or origin change) starts a new {@link #getEpoch() epoch}.  Tiles are stamped
+ * with the epoch they're created in, so that a band of tiles still being calculated for the old grid can tell the
+ * tiles of the new grid apart from its own.
+ *
+ * @see WolframTileProvider
+ */
+public class WolframTileCache {
+
+    // how many tiles wide a tile can be scrolled offscreen before its bitmap can be evicted
+    private static final int OFFSCREEN_TILE_BUFFER = 3;
+
+    // by default, allow the cache this fraction of the maximum heap size
+    private static final int DEFAULT_HEAP_FRACTION = 4;
+
+    // must be multithread friendly, it's accessed by the view's rendering thread and the tile workers
+    private final TileIndex<WolframTile> tiles = new TileIndex<WolframTile>(new TileIndex.Factory<WolframTile>() {
+        @Override
+        public WolframTile create(int xId, int yId) {
+            return new WolframTile(xId, yId, epoch);
+        }
+    });
+
+    // the remaining stats and byte counts are only updated in the (synchronized) trim methods
+    private long numBitmapEvictions = 0, numCellRowEvictions = 0, numTileEvictions = 0;
+    private volatile long bitmapBytes = 0, cellRowBytes = 0;
+
+    private volatile long budgetBytes;
+
+    // incremented by each clear()
+    private volatile int epoch = 0;
+
+    /**
+     * Constructor, using a budget of a quarter of the maximum heap size
+     */
+    public WolframTileCache() {
+        this(Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param budgetBytes The number of bytes the cached bitmaps and cell rows should try to stay within
+     */
+    public WolframTileCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @param budgetBytes The number of bytes the cached bitmaps and cell rows should try to stay within.  Takes
+     *                    effect on the next {@link #trim(TileRange, TileScheduler)}.
+     */
+    public void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * @return The number of bytes the cached bitmaps and cell rows should try to stay within
+     */
+    public long getBudget() {
+        return budgetBytes;
+    }
+
+    /**
+     * Get the tile with the specified ID, creating and caching it if necessary.  Counts as a use of the tile for
+     * eviction purposes, and towards the hit/miss stats.
+     *
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @return The cached tile
+     */
+    public WolframTile getOrCreate(int xId, int yId) {
+
+        WolframTile t = tiles.getOrCreate(xId, yId);
+        while (t.isEvicted() || t.epoch != epoch) {
+            // caught between being evicted and removed (or created just as the cache was cleared), finish the job
+            t.forceEvict();
+            tiles.remove(xId, yId, t);
+            t = tiles.getOrCreate(xId, yId);
+        }
+        return t;
+    }
+
+    /**
+     * Get the tile with the specified ID without creating it, or affecting eviction order or stats.
+     *
+     * @param xId The tile's x ID
+     * @param yId The tile's y ID
+     * @return The cached tile, or <code>null</code> if not in the cache
+     */
+    public WolframTile peek(int xId, int yId) {
+        return tiles.peek(xId, yId);
+    }
+
+    /**
+     * @return The bytes of bitmaps and cell rows held, as counted by the last trim
+     */
+    public long getBytes() {
+        return bitmapBytes + cellRowBytes;
+    }
+
+    /**
+     * @return The number of tiles in the cache
+     */
+    public int size() {
+        return tiles.size();
+    }
+
+    /**
+     * @return The epoch, which starts at 0 and goes up with each {@link #clear()}.  The tiles created from then on
+     *         belong to it, see {@link WolframTile}.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Remove all tiles from the cache, and start a new epoch
+     */
+    public synchronized void clear() {
+        epoch++;
+        for (WolframTile t : tiles.values()) {
+            t.forceEvict();
+        }
+        tiles.clear();
+        bitmapBytes = 0;
+        cellRowBytes = 0;
+    }
+
+    /**
+     * Recount the bytes held by the cache, and evict data until it's back within budget.
+     *
+     * @param visibleRange The tiles currently visible in the view
+     * @param scheduler    The scheduler, whose queued tiles' prerequisites must not be evicted
+     */
+    public synchronized void trim(TileRange visibleRange, TileScheduler scheduler) {
+        trimTo(budgetBytes, true, visibleRange, scheduler);
+    }
+
+    /**
+     * Release memory in response to the platform's <code>onTrimMemory()</code> callback.  The more severe the level,
+     * the more is released: first the cache is trimmed to half its budget, then all evictable bitmaps are dropped,
+     * and finally all evictable cell rows too (these can be recalculated, but at a cost).
+     *
+     * @param level        The level, as passed to <code>ComponentCallbacks2.onTrimMemory()</code>
+     * @param visibleRange The tiles currently visible in the view
+     * @param scheduler    The scheduler, whose queued tiles' prerequisites must not be evicted
+     */
+    public synchronized void trimMemory(int level, TileRange visibleRange, TileScheduler scheduler) {
+
+        Log.i(WolframUtils.LOG_TAG, "Trimming tile cache for level " + level + ", " + getDebugSummary());
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimTo(0, true, visibleRange, scheduler);               // bitmaps, then cell rows
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimTo(0, false, visibleRange, scheduler);              // bitmaps only
+        } else {
+            trimTo(budgetBytes / 2, true, visibleRange, scheduler);
+        }
+    }
+
+    /**
+     * @return A short summary of the cache size and stats, for the provider's debug summary
+     */
+    public String getDebugSummary() {
+        return String.format("cache=%d,bmp=%dK,rows=%dK,hit=%d,miss=%d,ev=%d/%d/%d", tiles.size(),
+                bitmapBytes / 1024, cellRowBytes / 1024, tiles.getNumHits(), tiles.getNumMisses(),
+                numBitmapEvictions, numCellRowEvictions, numTileEvictions);
+    }
+
+    /* evict bitmaps, then (if allowed) cell rows, least recently used first, until the total is within
+     * 'targetBytes' */
+    private void trimTo(long targetBytes, boolean evictRows, TileRange visibleRange, TileScheduler scheduler) {
+
+        long bmpTotal = 0, rowTotal = 0;
+        List<Candidate> bmpCandidates = new ArrayList<Candidate>();
+        List<Candidate> rowCandidates = new ArrayList<Candidate>();
+
+        for (WolframTile t : tiles.values()) {
+
+            boolean needed = visibleRange.contains(t) || scheduler.isNeeded(t);
+
+            // shared bitmaps cost (and free) nothing per tile, but hold on to the tile's cell row while it has one
+            if (t.isBmpShared() && !visibleRange.contains(t, OFFSCREEN_TILE_BUFFER)) {
+                t.evictBitmap();
+            }
+            Bitmap bmp = t.isBmpShared() ? null : t.getBmpData();
+            if (bmp != null) {
+                bmpTotal += getByteCount(bmp);
+                if (!visibleRange.contains(t, OFFSCREEN_TILE_BUFFER)) {
+                    bmpCandidates.add(new Candidate(t));
+                }
+            }
+
+            long[] row = t.lastCellRow;
+            if (row != null) {
+                rowTotal += getByteCount(row);
+                if (!needed) {
+                    rowCandidates.add(new Candidate(t));
+                }
+            }
+
+            // nothing worth keeping, don't let the number of tile objects grow forever either
+            if (!needed && t.evict()) {
+                tiles.remove(t.xId, t.yId, t);
+                numTileEvictions++;
+            }
+        }
+
+        if (bmpTotal + rowTotal > targetBytes) {
+
+            Collections.sort(bmpCandidates);
+            for (Candidate c : bmpCandidates) {
+                if (bmpTotal + rowTotal <= targetBytes) {
+                    break;
+                }
+                long bytes = getByteCount(c.tile.getBmpData());
+                if (c.tile.evictBitmap()) {
+                    bmpTotal -= bytes;
+                    numBitmapEvictions++;
+                }
+            }
+        }
+
+        if (evictRows && bmpTotal + rowTotal > targetBytes) {
+
+            Collections.sort(rowCandidates);
+            for (Candidate c : rowCandidates) {
+                if (bmpTotal + rowTotal <= targetBytes) {
+                    break;
+                }
+                long bytes = getByteCount(c.tile.lastCellRow);
+                if (c.tile.evictCellRow()) {
+                    rowTotal -= bytes;
+                    numCellRowEvictions++;
+                }
+            }
+        }
+
+        bitmapBytes = bmpTotal;
+        cellRowBytes = rowTotal;
+    }
+
+    // Bitmap.getByteCount() is API 12+
+    private static long getByteCount(Bitmap bmp) {
+        return bmp == null ? 0 : (long) bmp.getRowBytes() * bmp.getHeight();
+    }
+
+    private static long getByteCount(long[] row) {
+        return row == null ? 0 : row.length * 8L;
+    }
+
+    /* An eviction candidate, least recently used first.  The tile's last use time is copied, as it can change
+     * while the candidates are being sorted */
+    private static class Candidate implements Comparable<Candidate> {
+
+        final WolframTile tile;
+        final long lastUsed;
+
+        Candidate(WolframTile tile) {
+            this.tile = tile;
+            this.lastUsed = tile.lastUsed;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return lastUsed < other.lastUsed ? -1 : (lastUsed == other.lastUsed ? 0 : 1);
+        }
+    }
+
+}
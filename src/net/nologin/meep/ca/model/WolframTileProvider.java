@@ -7,19 +7,23 @@
  */
 package net.nologin.meep.ca.model;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.*;
 import android.util.Log;
 import net.nologin.meep.ca.R;
 import net.nologin.meep.ca.WolframUtils;
+import net.nologin.meep.ca.core.*;
 import net.nologin.meep.tbv.GridAnchor;
 import net.nologin.meep.tbv.Tile;
 import net.nologin.meep.tbv.TileProvider;
 import net.nologin.meep.tbv.TileRange;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The WolframCA provider is a {@link TileProvider} implementation for the {@link net.nologin.meep.ca.view.WolframCAView}.
@@ -54,24 +58,60 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * All other cell rows follow the 3-cell dependency.
  * <br/><br/>
  * <b>Implementation</b>:<br/>
- * When the view requests a set of tiles, all prerequisite tiles are added to a processing queue, and a background
- * task processess these in such an order that the dependencies are met for each tile.  In an ideal world, we'd
- * just store the bitmap, and move on.  Unfortnately, this will quickly lead to the exhaustion of heap space.
- * Rather than resort to local storage, we wipe the bitmaps of tiles that have gone far enough out of view.  However,
- * we maintain a boolean array in each tile containing the state of the last cell row/generation.  That way, when a
- * tile is re-requested, rather than build all the dependent tiles all over again, we only need go one tile row up,
- * and we have the state required to regenerate the cell data we need.
- * <br><br/>
+ * The calculation itself (stepping the cells of a band of tiles, seeking deep generations, the on-disk store, and
+ * rendering pixels) is done by a {@link BandEngine} from the Android independent core, this class adapting it to the
+ * view: deciding which tiles to calculate, and keeping the results in tiles and bitmaps.
+ * <br/><br/>
+ * When the view requests a set of tiles, all prerequisite tiles are added to a processing queue, and a
+ * {@link TileScheduler} spreads these over one worker thread per core, starting each tile once its dependencies are
+ * met.  In an ideal world, we'd just store the bitmap, and move on.  Unfortnately, this will quickly lead to the
+ * exhaustion of heap space. Rather than resort to local storage, we wipe the bitmaps of tiles that have gone far enough
+ * out of view.  However, we maintain a packed array (see {@link PackedCells}) in each tile containing the state of the
+ * last cell row/generation.  That way, when a tile is re-requested, rather than build all the dependent tiles all over
+ * again, we only need go one tile row up, and we have the state required to regenerate the cell data we need.
+ * Cell rows of deep generations are also written to a {@link GenerationStore}, so they outlive the cache (and the
+ * process).
+ * <br/><br/>
+ * Additive rules (90, 150 and the like, see {@link AdditiveRule}) are the exception: any cell row can be calculated
+ * directly, so each tile seeks its own starting state, with no prerequisites and without waiting for the tiles above.
+ * Tiles of these rules take the same time at any depth.
+ * <br/><br/>
+ * The cells of rendered tiles are also kept in a {@link CellStore}, in absolute generation/cell coordinates, so a
+ * zoom change (which replaces the whole tile grid) doesn't throw them away.  Tiles of the new grid that the store
+ * covers need no prerequisites, and are just rendered again.
+ * <br/><br/>
+ * Pinching out past one pixel per cell switches to overview levels (see {@link #setOverviewLevel(int)}), where each
+ * pixel shows the density of a block of cells, rendered from a {@link DensityPyramid} rather than cell by cell.
+ * Overview tiles are independent of each other, so are scheduled without prerequisites.
+ * <br/><br/>
+ * Finished tiles are announced to the view by {@link #hasFreshData()}, but only those it could be drawing: a tile
+ * whose bitmap was filled while inside the visible range.  Their keys are collected in a concurrent set, which
+ * coalesces repeated changes to a tile, and drained on each poll, so a poll only says there's fresh data when
+ * something visible has changed.  Prerequisite tiles (no bitmap) and tiles the view scrolled away from never cause a
+ * redraw.  A {@link TileChangeListener} gets the drained keys, for a view that can redraw single tiles.
+ * <br/><br/>
  */
 public class WolframTileProvider implements TileProvider {
 
+    /**
+     * Told which tiles have changed since the last poll, see {@link #setTileChangeListener(TileChangeListener)}
+     */
+    public interface TileChangeListener {
+
+        /**
+         * Called on the view's rendering thread (from {@link #hasFreshData()}), only when there are changes
+         *
+         * @param cacheKeys The {@link Tile#cacheKey cache keys} of the changed tiles, each once.  Only valid for the
+         *                  duration of the call.
+         */
+        void onTilesChanged(Collection<Long> cacheKeys);
+    }
+
     /* Improvements that can be made in future versions:
-     * - Increase heap usage (see OFFSCREEN_TILE_BUFFER) - possibly to the exclusions of older devices
-     * - Add a flag to tiles that result in common patterns (eg all off/on), and when requests for bitmap data
-     *   occur, reuse a common copy.
      * - Many rules result in repeating patters, perhaps add detection for these, cutting off a lot of calculation
      * - Add hints to many of the rules that don't generate anything on one half of the space (eg rule 110), so we
-     *   can shortcircuit processing/prerequisites for those.
+     *   can shortcircuit processing/prerequisites for those (tiles outside the cone on both sides already are, see
+     *   applyBackground()).
      */
 
     /**
@@ -85,23 +125,92 @@ public class WolframTileProvider implements TileProvider {
      */
     public static final int DEFAULT_ZOOMLEVEL = WolframUtils.getNumCores() == 1 ? 6 : 2;
 
-    // how many tiles wide a tile can be scrolled offscreen before getting cleared (caching performance v memory)
-    private static final int OFFSCREEN_TILE_BUFFER = 3;
+    /* How many tile rows above a requested tile addPrerequisites() will queue before giving up and letting the top
+     * row of prerequisites start from a generation calculated by the checkpoints instead */
+    private static final int MAX_PREREQUISITE_TILE_ROWS = 4;
+
+    // tile bitmaps kept for reuse, rather than recycled when tiles scroll off
+    private static final int MAX_POOLED_BITMAPS = 16;
+
+    // in the app's private files dir, versioned by the store itself
+    private static final String STORE_FILENAME = "generations.dat";
+
+    // next to the store, the density pyramid's chunks
+    private static final String PYRAMID_DIRNAME = "density";
 
     private int ruleNo;
     private int pixelsPerCell;
+
+    // the zoom chosen from the menu, which pinching scales (see onZoomFactorChange())
+    private int basePixelsPerCell;
+
+    // 0 for cells, otherwise the density pyramid level shown (2^level cells per pixel)
+    private volatile int overviewLevel = 0;
+
+    /* the zoom and overview level the pinch gesture in progress would switch to, 0 for no change.  Applied once the
+     * gesture ends (see onZoomGestureEnd()). Guarded by 'this'. */
+    private int pendingZoom = 0, pendingLevel = 0;
     private int colorPixelOn, colorPixelOff;
 
-    // background tasks here will set it, view's rendering thread (via hasFreshData()) will poll it
-    private AtomicBoolean hasFreshData = new AtomicBoolean(false);
+    /* the keys of visible tiles changed since the last poll. Background tasks here add to it, view's rendering thread
+     * (via hasFreshData()) drains it */
+    private final Set<Long> changedTiles = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
 
-    /* All referenced tiles get cached here, even though their bitmap content will be cleared as necessary (see
-     * OFFSCREEN_TILE_BUFFER). Must be mulithread friendly as it'll be accessed indirectly by view's rendering thread
+    // only used by the polling thread, in hasFreshData()
+    private final List<Long> drainedTiles = new ArrayList<Long>();
+
+    private volatile TileChangeListener changeListener;
+
+    // tiles announced to the view, and tiles finished without needing to be
+    private final AtomicLong numChangedTiles = new AtomicLong(), numQuietTiles = new AtomicLong();
+
+    /* All referenced tiles get cached here, their bitmaps and cell rows being evicted as necessary to stay within
+     * the cache's memory budget. Mulithread friendly as it'll be accessed indirectly by view's rendering thread
      * via getTile(), as well as by tile generation stuff here. */
-    private final ConcurrentMap<Long, WolframTile> tileCache;
+    private final WolframTileCache tileCache;
+
+    // only used from the (synchronized) onTileIDRangeChange()
+    private final PrerequisitePlanner planner = new PrerequisitePlanner(MAX_PREREQUISITE_TILE_ROWS);
+
+    // the range passed to the last onTileIDRangeChange(), null until the first call
+    private volatile TileRange visibleRange;
+
+    // runs WolframTileProcessor over the render queue, one worker thread per core
+    private final TileScheduler scheduler;
+
+    // the generation shown in the first cell row of tile row y=0
+    private volatile long originGeneration = 0;
+
+    /* Calculates bands of tiles for the current rule and zoom, replaced when either changes (keeping whichever of
+     * its seeker and renderer still apply).  Each band reads it once, with the origin and overview level (see
+     * WolframTileProcessor), so always uses a consistent rule and zoom */
+    private volatile BandEngine engine;
+
+    /* deep cell rows, kept on disk across cache clears and restarts. Keyed by rule and absolute generation/cells, so
+     * not cleared on rule, zoom or origin change */
+    private final GenerationStore store;
+
+    // every cell of the rendered tiles, in memory. Keyed like the store, so a zoom change only has to render again
+    private final CellStore cellStore = new CellStore(CellStore.DEFAULT_MAX_BYTES);
+
+    // densities for the overview levels, also keyed by rule and absolute position, so kept across all changes
+    private final DensityPyramid pyramid;
+    private final int[] densityPalette;
+
+    /* Shared bitmaps for tiles entirely outside the cone, see applyBackground().  Indexed by BG_*, created as needed
+     * and replaced (not recycled, tiles may still be drawing them) on rule or zoom change.  Two threads creating the
+     * same one at once is harmless, one copy is just dropped */
+    private volatile Bitmap[] backgroundBitmaps = new Bitmap[3];
+    private static final int BG_EVEN = 0, BG_ODD = 1, BG_GEN_ZERO = 2;
 
-    private ExecutorService executorService;
-    private Future lastSubmittedTask;
+    // rendered tiles go into these, rather than new bitmaps each time
+    private final BitmapPool bitmapPool = new BitmapPool(MAX_POOLED_BITMAPS);
+
+    // if not null, what the view asks of us is recorded here (see startTrace())
+    private volatile TraceWriter trace;
+
+    // tiles rendered for a visible range that had moved on by the time they were done, see TraceReplayer
+    private final AtomicLong numOffscreenBitmaps = new AtomicLong();
 
     /**
      * Constructor, defaulting the rule number to {@link #DEFAULT_RULE} and zoom level to {@link #DEFAULT_ZOOMLEVEL}
@@ -120,6 +229,18 @@ public class WolframTileProvider implements TileProvider {
      * @param zoomLevel The zoomLevel (1-16, step of 2). Invalid levels will be adjusted to the nearest valid value.
      */
     public WolframTileProvider(Context ctx, int ruleNo, int zoomLevel) {
+        this(ctx, ruleNo, zoomLevel, new File(ctx.getFilesDir(), STORE_FILENAME));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param ctx       The context
+     * @param ruleNo    The rule number (0-255). Invalid rule numbers will result in {@link #DEFAULT_RULE}.
+     * @param zoomLevel The zoomLevel (1-16, step of 2). Invalid levels will be adjusted to the nearest valid value.
+     * @param storeFile Where the {@link GenerationStore} keeps deep cell rows
+     */
+    WolframTileProvider(Context ctx, int ruleNo, int zoomLevel, File storeFile) {
 
         this.ruleNo = ruleNo < 1 || ruleNo > 255 ? DEFAULT_RULE : ruleNo;
         this.pixelsPerCell = zoomLevel < 1 ? DEFAULT_ZOOMLEVEL : WolframUtils.sanitizeZoom(zoomLevel);
@@ -128,8 +249,18 @@ public class WolframTileProvider implements TileProvider {
         colorPixelOn = ctx.getResources().getColor(R.color.CAView_PixelOn);
         colorPixelOff = ctx.getResources().getColor(R.color.CAView_PixelOff);
 
-        // as mentioned in field comment, this should be multi-thread friendly
-        tileCache = new ConcurrentHashMap<Long, WolframTile>();
+        tileCache = new WolframTileCache();
+        store = new GenerationStore(storeFile, GenerationStore.DEFAULT_MAX_BYTES);
+        pyramid = new DensityPyramid(new File(storeFile.getParentFile(), PYRAMID_DIRNAME));
+        cellStore.setBlockListener(pyramid); // overviews count the cells of rendered tiles, rather than step them again
+        densityPalette = DensityPyramid.createPalette(colorPixelOn, colorPixelOff);
+        basePixelsPerCell = pixelsPerCell;
+
+        TileGeometry geometry = new TileGeometry(pixelsPerCell);
+        engine = new BandEngine(new GenerationSeeker(this.ruleNo), geometry,
+                new TileRenderer(geometry.getCellsPerEdge(), colorPixelOn, colorPixelOff), store, cellStore);
+
+        scheduler = new TileScheduler(new WolframTileProcessor(), WolframUtils.getNumCores());
 
         Log.i(WolframUtils.LOG_TAG, "WolframTileProvider created, rule=" + ruleNo + ", pixelsPerCell=" + pixelsPerCell);
     }
@@ -146,15 +277,75 @@ public class WolframTileProvider implements TileProvider {
      *
      * @param newRule The new rule number.  If not in range 0-255, {@link #DEFAULT_RULE} will be used
      */
-    public void setRule(int newRule) {
+    public synchronized void setRule(int newRule) {
 
         if (newRule < 1 || newRule > 255) {
             Log.w(WolframUtils.LOG_TAG, "Rule " + newRule + " not in range 0-255, defaulting to " + DEFAULT_RULE);
             newRule = DEFAULT_RULE;
         }
 
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            trace.rule(newRule);
+        }
+
         ruleNo = newRule;
+        BandEngine old = engine;
+        engine = new BandEngine(new GenerationSeeker(newRule), old.getGeometry(), old.getRenderer(), store,
+                cellStore);
+        backgroundBitmaps = new Bitmap[3];
         tileCache.clear();
+        scheduler.clear();
+    }
+
+    /**
+     * Get a single cell of any generation of any rule, starting from the single center cell that's on in generation
+     * 0.  Additive rules are calculated directly (see {@link AdditiveRule}), the current rule from the checkpoints it
+     * already has, and any other rule from scratch.
+     *
+     * @param rule       The rule number (0-255)
+     * @param cell       The cell, relative to the center cell
+     * @param generation The generation (0 being the first)
+     * @return Whether the cell is on
+     */
+    public boolean cellAt(int rule, int cell, long generation) {
+
+        GenerationSeeker seeker = engine.getSeeker();
+        if (seeker.getRule() == rule) {
+            return seeker.cellAt(cell, generation);
+        }
+        return GenerationSeeker.cellAt(rule, cell, generation);
+    }
+
+    /**
+     * @return The generation shown in the first cell row of the top tile row
+     */
+    public long getOriginGeneration() {
+        return originGeneration;
+    }
+
+    /**
+     * Set the generation to be shown in the first cell row of the top tile row (y=0), so that the view can jump
+     * straight to any generation rather than scroll (and calculate) its way down.  The generation is calculated
+     * by the {@link GenerationSeeker}, from the nearest checkpoint or for deep generations, by HashLife.
+     *
+     * @param generation The generation (0 being the starting generation)
+     */
+    public synchronized void setOriginGeneration(long generation) {
+
+        if (generation < 0) {
+            Log.w(WolframUtils.LOG_TAG, "Generation " + generation + " invalid, defaulting to 0");
+            generation = 0;
+        }
+
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            trace.origin(generation);
+        }
+
+        originGeneration = generation;
+        tileCache.clear();
+        scheduler.clear();
     }
 
     /**
@@ -171,12 +362,60 @@ public class WolframTileProvider implements TileProvider {
      *
      * @param newZoom The number of pixels (1-16, step of 2). Invalid values will be adjusted to the nearest valid one.
      */
-    public void setPixelsPerCell(int newZoom) {
+    public synchronized void setPixelsPerCell(int newZoom) {
 
         newZoom = WolframUtils.sanitizeZoom(newZoom);
+        basePixelsPerCell = newZoom;
+        pendingZoom = 0;
+        applyZoom(newZoom, 0);
+    }
+
+    /**
+     * @return The overview level shown (each pixel being the density of <code>2<sup>level</sup></code> cells
+     *         square), or 0 if cells are shown
+     */
+    public int getOverviewLevel() {
+        return overviewLevel;
+    }
+
+    /**
+     * Show the density of blocks of cells rather than cells, see {@link DensityPyramid}.  Cleared by
+     * {@link #setPixelsPerCell(int)}.
+     *
+     * @param level The level (each pixel being the density of <code>2<sup>level</sup></code> cells square), up to
+     *              {@link DensityPyramid#MAX_LEVEL}, or 0 to show cells.  Out of range values are clamped.
+     */
+    public synchronized void setOverviewLevel(int level) {
+        pendingZoom = 0;
+        applyZoom(level > 0 ? 1 : basePixelsPerCell, Math.max(0, Math.min(DensityPyramid.MAX_LEVEL, level)));
+    }
+
+    /* switch to a new zoom, which replaces the whole tile grid.  Called with the provider's lock held, so that
+     * onTileIDRangeChange() never sees the switch half made */
+    private void applyZoom(int newZoom, int newLevel) {
+
+        // one event per switch, which the replay makes with setPixelsPerCell() or setOverviewLevel() alike
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            if (newLevel > 0) {
+                trace.overviewLevel(newLevel);
+            } else {
+                trace.zoom(newZoom);
+            }
+        }
 
+        Log.i(WolframUtils.LOG_TAG, "Zoom now " + newZoom + "px per cell, overview level " + newLevel);
+
+        /* the tiles are a different grid, so go, but the cells they were calculated from stay in the cell store, and
+         * the new tiles those cells cover are just rendered again */
         pixelsPerCell = newZoom;
+        overviewLevel = newLevel;
+        TileGeometry geometry = new TileGeometry(newZoom);
+        engine = new BandEngine(engine.getSeeker(), geometry,
+                new TileRenderer(geometry.getCellsPerEdge(), colorPixelOn, colorPixelOff), store, cellStore);
+        backgroundBitmaps = new Bitmap[3];
         tileCache.clear();
+        scheduler.clear();
     }
 
 
@@ -200,46 +439,225 @@ public class WolframTileProvider implements TileProvider {
         return Tile.DEFAULT_TILE_SIZE; // default is fine
     }
 
+    /**
+     * Set the number of bytes that cached tile data should try to stay within.  The default is a quarter of the
+     * maximum heap size.
+     *
+     * @param budgetBytes The number of bytes
+     */
+    public void setCacheBudget(long budgetBytes) {
+        tileCache.setBudget(budgetBytes);
+    }
+
+    /**
+     * Release cached tile data in response to memory pressure.  Bitmaps go first, then (at more severe levels)
+     * cell rows that will have to be recalculated.  Should be called from the activity's <code>onTrimMemory()</code>.
+     *
+     * @param level The level, as passed to <code>ComponentCallbacks2.onTrimMemory()</code>
+     */
+    public synchronized void onTrimMemory(int level) {
+
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            trace.trimMemory(level);
+        }
+
+        bitmapPool.clear();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            cellStore.clear(); // only a shortcut, the tile cache still has what's needed
+        }
+
+        if (visibleRange == null) {
+            tileCache.clear();
+            return;
+        }
+        tileCache.trimMemory(level, visibleRange, scheduler);
+    }
+
     @Override
     public WolframTile getTile(int xId, int yId) {
 
         // Return cache hits, otherwise create, cache and return. Async processing triggered by onTileIDRangeChange
-        WolframTile t = tileCache.get(Tile.createCacheKey(xId, yId));
-        if (t != null) {
-            return t;
+        return tileCache.getOrCreate(xId, yId);
+    }
+
+    @Override
+    public boolean hasFreshData() {
+
+        // Added to by the tile processor for visible tiles. Drained on poll to prevent pointless re-rendering.
+        drainedTiles.clear();
+        Iterator<Long> it = changedTiles.iterator();
+        while (it.hasNext()) {
+            drainedTiles.add(it.next());
+            it.remove(); // a tile changed again meanwhile is added back, and picked up by the next poll
         }
+        boolean fresh = !drainedTiles.isEmpty();
 
-        t = new WolframTile(xId, yId);
-        tileCache.put(t.cacheKey, t);
-        return t;
+        TileChangeListener listener = changeListener;
+        if (fresh && listener != null) {
+            listener.onTilesChanged(drainedTiles);
+        }
 
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            trace.poll(fresh);
+        }
+        return fresh;
     }
 
-    @Override
-    public boolean hasFreshData() {
+    /**
+     * @param listener Told which visible tiles changed at each {@link #hasFreshData()} poll that finds any, or
+     *                 <code>null</code> for none
+     */
+    public void setTileChangeListener(TileChangeListener listener) {
+        this.changeListener = listener;
+    }
 
-        // Set by WolframQueueProcessorTask on new data. Reset value on poll to prevent pointless re-rendering.
-        return hasFreshData.getAndSet(false);
+    /**
+     * Start recording what the view asks of the provider (see {@link TraceWriter}), replacing any recording in
+     * progress.  The trace can be replayed off-screen with a {@link TraceReplayer}.
+     *
+     * @param file The file to record to, replaced if it exists
+     */
+    public synchronized void startTrace(File file) {
+
+        stopTrace();
+        try {
+            trace = new TraceWriter(file, ruleNo, pixelsPerCell, originGeneration, overviewLevel);
+            Log.i(WolframUtils.LOG_TAG, "Recording trace to " + file);
+        } catch (IOException e) {
+            Log.w(WolframUtils.LOG_TAG, "Cannot record trace to " + file + ", error:" + e.getMessage());
+        }
     }
 
+    /**
+     * Stop any recording started by {@link #startTrace(File)}
+     */
+    public synchronized void stopTrace() {
 
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            this.trace = null;
+            trace.close();
+        }
+    }
+
+    /**
+     * @param range A range of tiles
+     * @return <code>true</code> if every tile in the range has its bitmap, ie the view could draw the whole range
+     */
+    boolean isRangeReady(TileRange range) {
+
+        for (int y = range.top; y <= range.bottom; y++) {
+            for (int x = range.left; x <= range.right; x++) {
+                WolframTile t = tileCache.peek(x, y);
+                if (t == null || t.getBmpData() == null) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The bytes of bitmaps and cell rows held by the cache, as of its last trim
+     */
+    long getCacheBytes() {
+        return tileCache.getBytes();
+    }
+
+    /**
+     * @return The number of tiles scheduled that are yet to be processed
+     */
+    int getPendingCount() {
+        return scheduler.getPendingCount();
+    }
+
+    /**
+     * @return The number of scheduled tiles dropped unprocessed, as no longer wanted
+     */
+    long getNumDropped() {
+        return scheduler.getNumDropped();
+    }
+
+    /**
+     * @return The number of tiles rendered that were no longer visible when done
+     */
+    long getNumOffscreenBitmaps() {
+        return numOffscreenBitmaps.get();
+    }
+
+
+    /**
+     * Note the zoom a pinch gesture has got to, to be applied when it ends (see {@link #onZoomGestureEnd()}) rather
+     * than replacing the tile grid at every step of the gesture.
+     *
+     * @param newZoom The factor to scale the zoom chosen from the menu (see {@link #setPixelsPerCell(int)}) by
+     */
     @Override
-    public void onZoomFactorChange(float newZoom) {
-        // NOP - At the moment, pixelsPerCell is set by a menu item, but pinch-to-zoom is a possibile future feature
+    public synchronized void onZoomFactorChange(float newZoom) {
+
+        if (newZoom <= 0) {
+            return;
+        }
+
+        /* the factor scales the zoom chosen from the menu.  Below a pixel per cell, each halving is an overview level
+         * (rounded in log scale, so the switch comes half way between levels) */
+        float scale = basePixelsPerCell * newZoom;
+        int zoom, level;
+        if (scale >= 1f) {
+            zoom = WolframUtils.sanitizeZoom(Math.round(scale));
+            level = 0;
+        } else {
+            double halvings = Math.log(1 / scale) / Math.log(2);
+            zoom = 1;
+            level = Math.min(DensityPyramid.MAX_LEVEL, Math.max(1, (int) Math.round(halvings)));
+        }
+
+        pendingZoom = zoom;
+        pendingLevel = level;
+    }
+
+    /**
+     * Apply the zoom of a pinch gesture that has ended, if it changed the zoom (see
+     * {@link #onZoomFactorChange(float)}).  Should be called by the view once the touch that made the gesture ends.
+     */
+    public synchronized void onZoomGestureEnd() {
+
+        if (pendingZoom == 0) {
+            return;
+        }
+
+        int zoom = pendingZoom;
+        pendingZoom = 0;
+        if (zoom != pixelsPerCell || pendingLevel != overviewLevel) {
+            applyZoom(zoom, pendingLevel);
+        }
     }
 
     @Override
-    public void onTileIDRangeChange(TileRange newRange) {
+    public synchronized void onTileIDRangeChange(TileRange newRange) {
 
-        // free up bitmap data of non-rendered tiles (observing OFFSCREEN_TILE_BUFFER). Tile lastCellRow stays.
-        Collection<WolframTile> entries = tileCache.values();
-        for (WolframTile t : entries) {
-            if (t.lastCellRow != null && t.getBmpData() != null && !newRange.contains(t, OFFSCREEN_TILE_BUFFER)) {
-                t.clearBmpData();
-            }
+        TraceWriter trace = this.trace;
+        if (trace != null) {
+            trace.range(newRange.left, newRange.top, newRange.right, newRange.bottom);
         }
 
-        List<WolframTile> renderQueue = new LinkedList<WolframTile>();
+        visibleRange = newRange;
+
+        // keep the cache within budget, evicting the least recently used bitmaps (then cell rows) as necessary
+        tileCache.trim(newRange, scheduler);
+
+        List<WolframTile> renderQueue = new ArrayList<WolframTile>();
+
+        // additive rules seek every tile's starting state directly, so there are no prerequisites to queue
+        boolean direct = engine.getSeeker().isDirect();
+
+        // overview tiles come from the density pyramid, and don't depend on each other either
+        boolean overview = overviewLevel > 0;
+
+        // cache keys of the tiles in renderQueue, so checking for a tile doesn't mean searching the list
+        Set<Long> queued = new HashSet<Long>();
 
         /* Adding the tiles to the renderQueue in a row-by-row, cell-by-cell manner is not very optimal, given that
          * the chain of prerequisites (calculated by addPrerequisites) is an inverted triangle.  It's better to add
@@ -263,240 +681,326 @@ public class WolframTileProvider implements TileProvider {
                     continue;
                 }
 
-                addPrerequisites(t, renderQueue);
-                renderQueue.add(t);
-            }
-        }
+                if (overview) {
+                    if (queued.add(t.cacheKey)) {
+                        renderQueue.add(t);
+                    }
+                    continue;
+                }
 
-        // init the executor if not ready, and try to kill any previous task, should one exist
-        if (executorService == null || executorService.isShutdown()) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        if (lastSubmittedTask != null) {
-            lastSubmittedTask.cancel(true);
+                // nothing to calculate outside the cone
+                if (applyBackground(t, true)) {
+                    markChanged(t);
+                    continue;
+                }
+
+                // tiles whose cells are stored (eg from before a zoom change) are just rendered again
+                if (!direct && !engine.isStored(originGeneration, t.xId, t.yId)) {
+                    addPrerequisites(t, renderQueue, queued);
+                }
+                if (queued.add(t.cacheKey)) {
+                    renderQueue.add(t);
+                }
+            }
         }
 
-        // fire off the async job
-        Log.d(WolframUtils.LOG_TAG, "Starting async queue processing, queue size:" + renderQueue.size());
-        lastSubmittedTask = executorService.submit(new WolframQueueProcessorTask(renderQueue, newRange));
+        /* hand the queue over to the workers.  Nothing is cancelled, tiles already scheduled just get reprioritised
+         * according to their place in the new queue */
+        Log.d(WolframUtils.LOG_TAG, "Updating tile processing, queue size:" + renderQueue.size());
+        scheduler.update(renderQueue, newRange, direct || overview);
     }
 
 
     /**
-     * Add any (unprocessed) preqrequisite tiles for the specified tile to the queue.  To generate any given tile,
-     * we need access to the last generation of cells in the above left, above, and above right tiles.  If those
-     * tiles haven't been processed, we keep iterating up the inverse triangle of dependencies (adding all those
-     * found to the queue), until we hit the top row (y=0).
+     * Add any (unprocessed) preqrequisite tiles for the specified tile to the queue, as worked out by the
+     * {@link PrerequisitePlanner}.  Tiles outside the cone get their last cell row filled in instead.
+     * <br/><br/>
+     * Tiles the scheduler already has from an earlier call are added again if unprocessed, so that they (and their
+     * own prerequisites) are kept in the scheduler's queue.
      *
      * @param t           The tile whose prerequisite tiles we are searching for
      * @param renderQueue The queue to add any unprocessed prerequisite tiles to
+     * @param queued      The cache keys of the tiles in renderQueue, updated with any tiles added
      */
-    private void addPrerequisites(WolframTile t, List<WolframTile> renderQueue) {
+    private void addPrerequisites(WolframTile t, final List<WolframTile> renderQueue, final Set<Long> queued) {
 
-        List<WolframTile> deps = new LinkedList<WolframTile>();
+        planner.plan(t.xId, t.yId, new PrerequisitePlanner.Grid() {
 
-        if (t.yId <= 0) {  // top tile doesn't have prerequisite tiles
-            return;
-        }
-
-        int curY = t.yId - 1;   // start one tile row up
-        int curXMin = t.xId - 1, curXMax = t.xId + 1;  // scan from y-1 to y+1 of that parent tile row
-
-        // keep looping up to the top tile row (y=0) unless we hit a set of already processed prerequisite tiles first
-        while (curY >= 0) {
-
-            boolean foundMissing = false;
-
-            for (int x = curXMin; x <= curXMax; x++) {
-
-                // the impl of getTile() above puts the tile in the cache if it wasn't already there
-                WolframTile preReq = getTile(x, curY);
-                if (!renderQueue.contains(preReq) && preReq.lastCellRow == null) {
-                    foundMissing = true;
-                    deps.add(preReq);
-                }
+            @Override
+            public boolean claim(int xId, int yId) {
+                // the impl of getTile() puts the tile in the cache if it wasn't already there
+                WolframTile preReq = getTile(xId, yId);
+                return preReq.lastCellRow == null && !applyBackground(preReq, false) && queued.add(preReq.cacheKey);
             }
 
-            // if the current level of prerequisite tiles are already processed, we're done
-            if (!foundMissing) {
-                break;
+            @Override
+            public void enqueue(int xId, int yId) {
+                renderQueue.add(getTile(xId, yId));
             }
-
-            // move up a tile row, expand left and right by one tile
-            curXMin--;
-            curXMax++;
-            curY--;
-
-        }
-
-        // we added deps while working upwards - reverse this so higher up tiles get processed first!
-        Collections.reverse(deps);
-        renderQueue.addAll(deps);
-
+        });
     }
 
     /**
-     * An instance of this task is started every time {@link #onTileIDRangeChange(net.nologin.meep.tbv.TileRange)}
-     * generates a new list of required tiles.  This task processes each tile in order, and when done, toggles the
-     * flag that {@link #hasFreshData()} checks when polled.
+     * A tile entirely outside of the cone (see {@link TileGeometry#isOutsideCone(long, int, int)}) is just rows of
+     * background, which we can fill in without any calculation: a synthetic last cell row, and (if wanted) one of a
+     * few bitmaps shared by all such tiles.
+     * <br/><br/>
+     * For tiles not already claimed by the caller.  If another thread is calculating the tile, it's left to it.
+     *
+     * @param t          The tile
+     * @param fillBitmap <code>true</code> if the tile should get a bitmap as well as its last cell row
+     * @return <code>true</code> if the tile is outside the cone, and has been (or is being) filled in
      */
-    class WolframQueueProcessorTask implements Runnable {
+    private boolean applyBackground(WolframTile t, boolean fillBitmap) {
 
-        private List<WolframTile> renderQueue;
-        private TileRange visibleRange;
+        BandEngine engine = this.engine;
+        long origin = originGeneration;
+
+        if (!engine.getGeometry().isOutsideCone(origin, t.xId, t.yId)) {
+            return false;
+        }
 
-        public WolframQueueProcessorTask(List<WolframTile> renderQueue, TileRange visibleRange) {
+        if (t.startComputing(fillBitmap) == WolframTile.STARTED) {
+            try {
+                fillBackground(engine, origin, t, fillBitmap);
+            } finally {
+                t.finishComputing();
+            }
+        }
+        return true;
+    }
 
-            this.renderQueue = renderQueue;
-            this.visibleRange = visibleRange;
+    /* as applyBackground(), for a tile the caller has already claimed with startComputing(), with the engine and
+     * origin of the tile's epoch */
+    private boolean applyClaimedBackground(BandEngine engine, long origin, WolframTile t, boolean fillBitmap) {
 
+        if (!engine.getGeometry().isOutsideCone(origin, t.xId, t.yId)) {
+            return false;
         }
 
-        @Override
-        public void run() {
+        fillBackground(engine, origin, t, fillBitmap);
+        return true;
+    }
 
-            Log.d(WolframUtils.LOG_TAG, "WolframQueueProcessorTask task starting");
+    private void fillBackground(BandEngine engine, long origin, WolframTile t, boolean fillBitmap) {
 
-            /* this task ends as soon as the queue is finished.  If the provider detects a change in the
-             * list of required tiles, it'll start a new task (requesting that this one stop) */
-            while (!renderQueue.isEmpty()) {
+        if (t.lastCellRow == null) {
+            t.lastCellRow = engine.createBackgroundRow(origin, t.yId);
+        }
 
-                // check for interruption every time, we need to stop quickly if requested
-                if (Thread.currentThread().isInterrupted()) {
-                    Log.d(WolframUtils.LOG_TAG, "WolframQueueProcessorTask interrupted (new task incoming?)");
-                    return;
-                }
+        if (fillBitmap && t.getBmpData() == null) {
+            t.setSharedBmpData(getBackgroundBitmap(engine, engine.getGeometry().getFirstGeneration(origin, t.yId)));
+        }
+    }
 
-                WolframTile t = renderQueue.remove(0);
+    // announce a tile with a new bitmap to the next hasFreshData() poll
+    private void markChanged(WolframTile t) {
+        changedTiles.add(t.cacheKey);
+        numChangedTiles.incrementAndGet();
+    }
 
-                // sanity check for null or already processed tiles
-                if (t == null || t.getBmpData() != null) {
-                    continue;
-                }
+    /* The background only depends on whether the generation is 0, and if not, whether it's odd or even, so a tile's
+     * worth of background rows only comes in three varieties */
+    private Bitmap getBackgroundBitmap(BandEngine engine, long firstGen) {
 
-                Log.d(WolframUtils.LOG_TAG, "WolframQueueProcessorTask processing tile " + t);
+        int type = firstGen == 0 ? BG_GEN_ZERO : (int) (firstGen & 1);
 
-                processTileState(t, visibleRange.contains(t));
+        Bitmap[] bitmaps = backgroundBitmaps;
+        if (bitmaps[type] == null) {
 
-                // allow the hasFreshData() interface method to report that there's new data available
-                hasFreshData.set(true);
-            }
+            // a generation of the same variety
+            int[] pixels = ScratchArena.forCurrentThread().getPixels();
+            engine.renderBackground(type == BG_GEN_ZERO ? 0 : (type == BG_ODD ? 1 : 2), pixels);
 
-            Log.d(WolframUtils.LOG_TAG, "WolframQueueProcessorTask task finished normally");
+            // shared, so never released to the pool
+            Bitmap bmp = Bitmap.createBitmap(TileRenderer.SIZE, TileRenderer.SIZE, Bitmap.Config.RGB_565);
+            bmp.setPixels(pixels, 0, TileRenderer.SIZE, 0, 0, TileRenderer.SIZE, TileRenderer.SIZE);
+            bitmaps[type] = bmp;
         }
+        return bitmaps[type];
+    }
 
-        /**
-         * Calculate the state of all the cells in the tile. When done, we record the state of the last row of cells
-         * in the tile. If requested, the bitmap data to be rendered for this tile is also generated and stored.
-         *
-         * @param t          The tile to process
-         * @param fillBitmap If <code>true</code>, the bitmap data for this cell is generated and stored in the tile,
-         *                   otherwise just the last cell row will be stored.
-         */
-        private void processTileState(WolframTile t, boolean fillBitmap) {
-
-            // how many cells high/wide our square tile measures
-            int cellsPerEdge = Tile.DEFAULT_TILE_SIZE / pixelsPerCell;
+    /**
+     * Does the work for each band of tiles that the {@link TileScheduler} hands out.  The scheduler only passes a tile
+     * once its parent tiles are processed, and may call this from several worker threads at once.  The scheduler has
+     * already claimed every tile of the band (see {@link WolframTile#startComputing(boolean)}), and publishes them
+     * when the band is done.  After each band, the visible tiles with new bitmaps are added to the set that
+     * {@link #hasFreshData()} drains when polled.
+     * <br/><br/>
+     * A rule, zoom or origin change doesn't wait for the bands already being processed.  Each band reads the engine,
+     * origin and overview level once, along with the tile cache's epoch they belong to, and only takes parent rows
+     * from tiles of that epoch.  A band whose tiles are of an earlier epoch (the grid changed after it was scheduled)
+     * is dropped, without calculating anything or writing to the stores.
+     */
+    class WolframTileProcessor implements TileScheduler.TileProcessor {
 
-            // bitmap data is stored as an int array updated row by row, then converted to bmp at the end
-            int[] bmpData = null;
-            if (fillBitmap) {
-                bmpData = new int[cellsPerEdge * cellsPerEdge]; // rows * cols
+        @Override
+        public void processBand(List<WolframTile> band, boolean[] fillBitmap) {
+
+            Log.d(WolframUtils.LOG_TAG, "WolframTileProcessor processing " + band.size() + " tiles from "
+                    + band.get(0));
+
+            // the grid the tiles are calculated for, all read at once, as the switches make them all at once
+            BandEngine engine;
+            long origin;
+            int level, epoch;
+            synchronized (WolframTileProvider.this) {
+                engine = WolframTileProvider.this.engine;
+                origin = originGeneration;
+                level = overviewLevel;
+                epoch = tileCache.getEpoch();
             }
 
-            // 'current' generation, across 3 tiles (tile t in center)
-            boolean[] curGenCells = new boolean[cellsPerEdge * 3];
-
-            // 'next' generation (same length)
-            boolean[] nextGenCells = new boolean[curGenCells.length];
-
-            /* Copy the last cell row in the top-left, top and top-right tiles into each third of the 'curGenCells'
-             * array respectively - this is our 'starting state' (first tile row has no starting state) */
-            if (t.yId != 0) {
-                int yAbove = t.yId - 1;
-                try {
-                    boolean[] stateAL = getLastCellRowState(t.xId - 1, yAbove);
-                    boolean[] stateA = getLastCellRowState(t.xId, yAbove);
-                    boolean[] stateAR = getLastCellRowState(t.xId + 1, yAbove);
+            // the tiles have left the cache with their grid, there's no one to calculate them for
+            if (band.get(0).epoch != epoch) {
+                numQuietTiles.addAndGet(band.size());
+                return;
+            }
 
-                    System.arraycopy(stateAL, 0, curGenCells, 0, cellsPerEdge);
-                    System.arraycopy(stateA, 0, curGenCells, cellsPerEdge, cellsPerEdge);
-                    System.arraycopy(stateAR, 0, curGenCells, cellsPerEdge * 2, cellsPerEdge);
+            if (level > 0) {
+                for (int i = 0; i < band.size(); i++) {
+                    // a tile the pyramid couldn't render has nothing new to draw
+                    announce(band.get(i), fillBitmap[i] && renderOverview(engine, origin, band.get(i), level));
+                }
+                return;
+            }
 
-                } catch (IllegalStateException e) {
-                    Log.w(WolframUtils.LOG_TAG, "Cannot process tile " + t + ", error:" + e.getMessage());
-                    return;
+            /* tiles outside the cone need no calculation (normally caught before they're scheduled), nor do tiles
+             * whose cells are stored, and they split the band */
+            Parents parents = new Parents(epoch);
+            int start = 0;
+            for (int i = 0; i <= band.size(); i++) {
+                if (i == band.size() || applyClaimedBackground(engine, origin, band.get(i), fillBitmap[i])
+                        || applyStored(engine, origin, band.get(i), fillBitmap[i])) {
+                    if (i > start) {
+                        processBandState(engine, origin, parents, band.subList(start, i), fillBitmap, start);
+                    }
+                    start = i + 1;
                 }
             }
 
-            // set end pointers to one element in from each side of nextGenCells (see class doc for logic)
-            int leftPtr = 1, rightPtr = curGenCells.length - 2;
+            for (int i = 0; i < band.size(); i++) {
+                announce(band.get(i), fillBitmap[i]);
+            }
+        }
 
-            for (int row = 0; row < cellsPerEdge; row++) { // for each row of cells in tile t
+        // tell the view about a processed tile, if it got a new bitmap and is still visible
+        private void announce(WolframTile t, boolean filled) {
+
+            // the view may have moved on while we were working
+            TileRange range = visibleRange;
+            if (!filled) {
+                numQuietTiles.incrementAndGet(); // a prerequisite, nothing to draw
+            } else if (range != null && !range.contains(t)) {
+                numOffscreenBitmaps.incrementAndGet();
+                numQuietTiles.incrementAndGet();
+            } else {
+                // allow the hasFreshData() interface method to report that there's new data available
+                markChanged(t);
+            }
+        }
 
+        /* render a (claimed) overview tile from the density pyramid, building whatever it needs of the pyramid.
+         * Returns false if it couldn't be rendered */
+        private boolean renderOverview(BandEngine engine, long origin, WolframTile t, int level) {
+
+            int[] pixels = ScratchArena.forCurrentThread().getPixels();
+            try {
+                pyramid.renderTile(engine.getSeeker(), level, origin, t.xId, t.yId, densityPalette, pixels);
+            } catch (IllegalStateException e) {
+                // interrupted (shutting down), or the pyramid couldn't be built
+                Log.w(WolframUtils.LOG_TAG, "Cannot render overview tile " + t + ", error:" + e.getMessage());
+                return false;
+            }
 
-                if (row == 0 && t.yId == 0) {
+            Bitmap bmp = bitmapPool.acquire(TileRenderer.SIZE, TileRenderer.SIZE, Bitmap.Config.RGB_565);
+            bmp.setPixels(pixels, 0, TileRenderer.SIZE, 0, 0, TileRenderer.SIZE, TileRenderer.SIZE);
+            t.setPooledBmpData(bmp, bitmapPool);
+            return true;
+        }
 
-                   /* For all our rules, we start our very first row of cells, in every tile on the first row (y=0)
-                    * to be false(off), except for one cell right in the middle of tile x=0.  This is our CA starting
-                    * data.
-                    *
-                    * If the xId==0, we set the first cell row's middle cell to true.  However, we shouldn't forget
-                    * that neighbouring tiles x=-1 and x=1 need to see this value (in the right and left segments of
-                    * nextGenCells respectively) */
-                    if ((t.xId == -1 || t.xId == 0 || t.xId == 1)) {
-                        nextGenCells[nextGenCells.length / 2 - (t.xId * cellsPerEdge)] = true;
-                    }
+        // render a (claimed) tile from the cell store, if it has the tile's cells
+        private boolean applyStored(BandEngine engine, long origin, final WolframTile t, final boolean fillBitmap) {
 
-                } else {
-                    // for all other cell rows in all other tiles, simply do a rule lookup
-                    for (int col = leftPtr; col <= rightPtr; col++) {
-                        nextGenCells[col] = WolframRuleTable.getNextState(ruleNo,
-                                curGenCells[col - 1], curGenCells[col], curGenCells[col + 1]);
-                    }
-                }
+            long[] lastCellRow = engine.calculateStoredTile(origin, t.xId, t.yId, new PixelSink() {
 
-                // mid segment of nextGenCells holds the data for the respective row of the bitmap content (if needed)
-                if (fillBitmap) {
-                    int rowOffset = row * cellsPerEdge;
-                    for (int col = cellsPerEdge; col < cellsPerEdge * 2; col++) {
-                        int val = nextGenCells[col] ? colorPixelOn : colorPixelOff;
-                        bmpData[rowOffset + col - cellsPerEdge] = val;
-                    }
+                @Override
+                public boolean wantsPixels(int index) {
+                    return fillBitmap;
                 }
 
-                /* finally, regardless of whether we want a bitmap or not, we keep a copy of the last cell row
-                 * (the mid segment of nextGenCells) */
-                if (row == cellsPerEdge - 1) {
-                    t.lastCellRow = new boolean[cellsPerEdge];
-                    System.arraycopy(nextGenCells, cellsPerEdge, t.lastCellRow, 0, cellsPerEdge);
+                @Override
+                public void setPixels(int index, int[] pixels, int size) {
+                    Bitmap bmp = bitmapPool.acquire(size, size, Bitmap.Config.RGB_565);
+                    bmp.setPixels(pixels, 0, size, 0, 0, size, size);
+                    t.setPooledBmpData(bmp, bitmapPool);
                 }
+            });
 
-                // the 'next' generation becomes the current, and we loop
-                System.arraycopy(nextGenCells, 0, curGenCells, 0, curGenCells.length);
-
+            if (lastCellRow == null) {
+                return false;
             }
+            t.lastCellRow = lastCellRow;
+            return true;
+        }
 
-            // finally, if needed, we convert the int array of colours into the desired bitmap
-            if (fillBitmap) {
-                Bitmap bmp = Bitmap.createBitmap(cellsPerEdge, cellsPerEdge, Bitmap.Config.RGB_565);
-                bmp.setPixels(bmpData, 0, cellsPerEdge, 0, 0, cellsPerEdge, cellsPerEdge);
-                t.setBmpData(Bitmap.createScaledBitmap(bmp, Tile.DEFAULT_TILE_SIZE, Tile.DEFAULT_TILE_SIZE, false));
+        /**
+         * Calculate the state of all the cells in a band of neighbouring tiles, with the {@link BandEngine}.  When
+         * done, we record the state of the last row of cells in each tile.  If requested, the bitmap data to be
+         * rendered for each tile is also generated and stored.
+         *
+         * @param engine     The engine of the tiles' epoch
+         * @param origin     The origin generation of the tiles' epoch
+         * @param parents    The last cell rows of the tiles' epoch
+         * @param tiles      The tiles to process, in order of x ID with no gaps
+         * @param fillBitmap If <code>true</code>, the bitmap data for the respective tile is generated and stored in
+         *                   the tile, otherwise just the last cell row will be stored.
+         * @param fillOffset The index in <code>fillBitmap</code> of the first tile's flag
+         */
+        private void processBandState(BandEngine engine, long origin, Parents parents, final List<WolframTile> tiles,
+                                      final boolean[] fillBitmap, final int fillOffset) {
+
+            int numTiles = tiles.size();
+            long[][] lastCellRows = new long[numTiles][];
+
+            engine.calculateBand(origin, tiles.get(0).xId, tiles.get(0).yId, numTiles, parents, lastCellRows,
+                    new PixelSink() {
+
+                        @Override
+                        public boolean wantsPixels(int index) {
+                            return fillBitmap[fillOffset + index];
+                        }
+
+                        @Override
+                        public void setPixels(int index, int[] pixels, int size) {
+                            Bitmap bmp = bitmapPool.acquire(size, size, Bitmap.Config.RGB_565);
+                            bmp.setPixels(pixels, 0, size, 0, 0, size, size);
+                            tiles.get(index).setPooledBmpData(bmp, bitmapPool);
+                        }
+                    });
+
+            for (int i = 0; i < numTiles; i++) {
+                tiles.get(i).lastCellRow = lastCellRows[i];
             }
-
         }
 
+    }
 
-        // Convenience method to get the last row of cells from the desired tile with some sanity checking
-        private boolean[] getLastCellRowState(int xId, int yId) {
-            WolframTile tile = tileCache.get(Tile.createCacheKey(xId, yId));
-            if (tile == null) {
-                throw new IllegalStateException("Prerequisite tile (" + xId + "," + yId + ") not in cache");
-            }
-            if (tile.lastCellRow == null) {
-                throw new IllegalStateException("Prerequisite tile (" + xId + "," + yId + ") not yet processed");
-            }
-            return tile.lastCellRow;
+    /* The last cell rows of the tiles of one epoch.  Tiles of another epoch (the cache having been cleared since) are
+     * of another grid, so their rows are no use */
+    private class Parents implements BandEngine.ParentRows {
+
+        private final int epoch;
+
+        Parents(int epoch) {
+            this.epoch = epoch;
+        }
+
+        // The last row of cells from the desired tile, or null if it's not available
+        @Override
+        public long[] getLastCellRow(int xId, int yId) {
+            WolframTile tile = yId < 0 ? null : tileCache.peek(xId, yId);
+            return tile == null || tile.epoch != epoch ? null : tile.lastCellRow;
         }
     }
 
@@ -504,15 +1008,20 @@ public class WolframTileProvider implements TileProvider {
     public void onSurfaceDestroyed() {
 
         // ensure we don't leave any hanging threads
-        if (executorService != null) {
-            executorService.shutdownNow();
-        }
+        scheduler.shutdown();
+
+        store.flush();
+        bitmapPool.clear();
+        stopTrace();
 
     }
 
     @Override
     public String getDebugSummary() {
-        return String.format("WolframProv[r=%d,cache=%d]", ruleNo, tileCache.size());
+        return String.format("WolframProv[r=%d,g=%d,lvl=%d,dirty=%d/%d,%s,%s,%s,%s,%s]", ruleNo, originGeneration,
+                overviewLevel, numChangedTiles.get(), numChangedTiles.get() + numQuietTiles.get(),
+                tileCache.getDebugSummary(), scheduler.getDebugSummary(), engine.getDebugSummary(),
+                bitmapPool.getDebugSummary(), pyramid.getDebugSummary());
     }
 
 }
@@ -0,0 +1,97 @@
+/*
+ *    WolframCA - an android application to view 1-dimensional cellular automata (CA)
+ *    Copyright 2013 Barry O'Neill (http://barryoneill.net/)
+ *
+ *    Licensed under Apache 2.0 with limited permission from, and no affiliation with Steven
+ *    Wolfram, LLC. See the LICENSE file in the root of this project for the full license terms.
+ */
+package net.nologin.meep.ca.view;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+import net.nologin.meep.ca.R;
+import net.nologin.meep.ca.core.RuleThumbnails;
+import net.nologin.meep.ca.model.RuleGallery;
+
+/**
+ * Adapter showing the {@link RuleGallery} thumbnails in a grid, one item per rule (the position being the rule
+ * number), with the currently selected rule highlighted.  Until the thumbnails are ready the items just show the
+ * rule numbers; call {@link #notifyDataSetChanged()} once they are.
+ */
+public class RuleGalleryAdapter extends BaseAdapter {
+
+    private final Context ctx;
+    private final RuleGallery gallery;
+    private int selectedRule;
+
+    /**
+     * Constructor
+     *
+     * @param ctx          The context, for inflating the items
+     * @param gallery      The thumbnails
+     * @param selectedRule The rule to highlight
+     */
+    public RuleGalleryAdapter(Context ctx, RuleGallery gallery, int selectedRule) {
+        this.ctx = ctx;
+        this.gallery = gallery;
+        this.selectedRule = selectedRule;
+    }
+
+    /**
+     * @param rule The rule to highlight
+     */
+    public void setSelectedRule(int rule) {
+        if (rule != selectedRule) {
+            selectedRule = rule;
+            notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return RuleThumbnails.NUM_RULES;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return position;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+
+        View item = convertView != null ? convertView
+                : LayoutInflater.from(ctx).inflate(R.layout.rule_thumbnail, parent, false);
+
+        ImageView image = (ImageView) item.findViewById(R.id.ruleThumb_image);
+        Bitmap thumb = gallery.getThumbnail(position);
+        if (thumb != null) {
+            // a pixel per cell, so scale up without smoothing the cells into each other
+            BitmapDrawable drawable = new BitmapDrawable(ctx.getResources(), thumb);
+            drawable.setFilterBitmap(false);
+            image.setImageDrawable(drawable);
+        } else {
+            image.setImageDrawable(null);
+        }
+
+        TextView label = (TextView) item.findViewById(R.id.ruleThumb_label);
+        label.setText(String.valueOf(position));
+
+        item.setBackgroundResource(position == selectedRule ? R.color.RuleThumb_Selected : android.R.color.transparent);
+
+        return item;
+    }
+
+}
@@ -12,10 +12,13 @@ import android.os.Bundle;
 import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.MotionEvent;
 import net.nologin.meep.ca.model.WolframTileProvider;
 import net.nologin.meep.ca.WolframUtils;
 import net.nologin.meep.tbv.TiledBitmapView;
 
+import java.io.File;
+
 /**
  * This is a subclass of {@link TiledBitmapView} with some modifications to simplify use for wolfram tiles.
  * Most of the actual work for the view is done by the {@link WolframTileProvider} - This subclass exists
@@ -31,6 +34,8 @@ public class WolframCAView extends TiledBitmapView {
     private static final String STATEKEY_SUPERCLASS = "net.nologin.meep.ca.view.superclass";
     private static final String STATEKEY_RULENO = "net.nologin.meep.ca.view.ruleno";
     private static final String STATEKEY_PXPERCELL = "net.nologin.meep.ca.view.pxpercell";
+    private static final String STATEKEY_ORIGINGEN = "net.nologin.meep.ca.view.origingen";
+    private static final String STATEKEY_OVERVIEW = "net.nologin.meep.ca.view.overview";
 
     public WolframCAView(Context context, AttributeSet attrs) {
 
@@ -41,9 +46,25 @@ public class WolframCAView extends TiledBitmapView {
 
     }
 
+    /**
+     * As the superclass, then once the touch ends, let the provider apply the zoom of any pinch gesture it made (see
+     * {@link WolframTileProvider#onZoomGestureEnd()})
+     */
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        boolean handled = super.onTouchEvent(event);
+
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            getProvider().onZoomGestureEnd();
+        }
+        return handled;
+    }
+
     /**
      * Tell the registered {@link WolframTileProvider} to generate tiles for the specified rule
-     * @param newRule The {@link net.nologin.meep.ca.model.WolframRuleTable rule number}
+     * @param newRule The {@link net.nologin.meep.ca.core.WolframRuleTable rule number}
      */
     public void setupForRule(int newRule){
 
@@ -68,7 +89,55 @@ public class WolframCAView extends TiledBitmapView {
     }
 
     /**
-     * @return The current {@link net.nologin.meep.ca.model.WolframRuleTable rule} value
+     * Show the specified generation at the top of the view, calculating it directly rather than scrolling down to it.
+     * Generations above it are no longer shown until this is called again with a lower value (0 for the start).
+     * @param generation The generation (0 being the starting generation)
+     */
+    public void moveToGeneration(long generation){
+
+        WolframTileProvider tp = getProvider();
+        if(tp.getOriginGeneration() != generation){
+            Log.i(WolframUtils.LOG_TAG,"Moving to generation " + generation);
+            tp.setOriginGeneration(generation);
+        }
+
+        moveToOriginTile(true);
+    }
+
+    /**
+     * @return The generation currently shown at the top of the view (when scrolled to the origin tile)
+     */
+    public long getCurrentOriginGeneration(){
+        return getProvider().getOriginGeneration();
+    }
+
+    /**
+     * Tell the registered {@link WolframTileProvider} to release cached tile data in response to memory pressure
+     * @param level The level, as passed to the activity's <code>onTrimMemory()</code>
+     */
+    public void trimMemory(int level){
+
+        Log.i(WolframUtils.LOG_TAG,"Trimming memory, level " + level);
+        getProvider().onTrimMemory(level);
+    }
+
+    /**
+     * Start recording what the view asks of the registered {@link WolframTileProvider}, for replaying later
+     * @param file The file to record to, replaced if it exists
+     */
+    public void startTrace(File file){
+        getProvider().startTrace(file);
+    }
+
+    /**
+     * Stop any recording started by {@link #startTrace(File)}
+     */
+    public void stopTrace(){
+        getProvider().stopTrace();
+    }
+
+    /**
+     * @return The current {@link net.nologin.meep.ca.core.WolframRuleTable rule} value
      */
     public int getCurrentRule(){
         return getProvider().getRule();
@@ -81,6 +150,13 @@ public class WolframCAView extends TiledBitmapView {
         return getProvider().getPixelsPerCell();
     }
 
+    /**
+     * @return The current overview level (see {@link WolframTileProvider#setOverviewLevel(int)}), 0 if showing cells
+     */
+    public int getCurrentOverviewLevel(){
+        return getProvider().getOverviewLevel();
+    }
+
     /**
      * @return The currently registered {@link WolframTileProvider}
      */
@@ -99,6 +175,8 @@ public class WolframCAView extends TiledBitmapView {
         bundle.putParcelable(STATEKEY_SUPERCLASS, super.onSaveInstanceState());
         bundle.putInt(STATEKEY_RULENO, getCurrentRule());
         bundle.putInt(STATEKEY_PXPERCELL, getCurrentPxPerCell());
+        bundle.putLong(STATEKEY_ORIGINGEN, getCurrentOriginGeneration());
+        bundle.putInt(STATEKEY_OVERVIEW, getCurrentOverviewLevel());
         return bundle;
     }
 
@@ -118,6 +196,16 @@ public class WolframCAView extends TiledBitmapView {
                 setupForZoom(pxPerCell);
             }
 
+            long originGen = bundle.getLong(STATEKEY_ORIGINGEN, 0);
+            if(originGen > 0){
+                moveToGeneration(originGen);
+            }
+
+            int overview = bundle.getInt(STATEKEY_OVERVIEW, 0);
+            if(overview > 0){
+                getProvider().setOverviewLevel(overview);
+            }
+
             super.onRestoreInstanceState(bundle.getParcelable(STATEKEY_SUPERCLASS));
             return;
         }